@@ -18,6 +18,9 @@ import java.net.InetAddress;
 
 import java.util.List;
 import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +33,27 @@ public class AbstractGraphiteReporterConfig extends AbstractHostPortReporterConf
     private boolean udp;
     @Valid
     private boolean pickled;
+    // keep the TCP connection to each host open across ticks
+    @Valid
+    private boolean keepAlive;
+    // replicate sends every metric to every host, consistent-hash splits them
+    // across the hosts the way a carbon relay does
+    @Pattern(
+            regexp = "^(replicate|consistent-hash)$",
+            message = "must be replicate or consistent-hash"
+    )
+    private String routing = "replicate";
+    // with udp, pack as many entries as fit in datagrams of up to this many
+    // bytes; 0 sends one datagram per entry
+    @Min(0)
+    @Max(65507)
+    private int udpPayloadSize = 0;
+    // over tcp, milliseconds to wait for a connection and for a relay to take
+    // more of a tick before giving up on it; 0 waits forever
+    @Min(0)
+    private int connectTimeout = 2000;
+    @Min(0)
+    private int socketTimeout = 2000;
 
     /**
      * Test constructor
@@ -61,6 +85,50 @@ public class AbstractGraphiteReporterConfig extends AbstractHostPortReporterConf
         return pickled;
     }
 
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public String getRouting() {
+        return routing;
+    }
+
+    public void setRouting(String routing) {
+        this.routing = routing;
+    }
+
+    public int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    public void setUdpPayloadSize(int udpPayloadSize) {
+        this.udpPayloadSize = udpPayloadSize;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public boolean isConsistentHash() {
+        return "consistent-hash".equals(routing);
+    }
+
     @Override
     public List<HostPort> getFullHostList()
     {
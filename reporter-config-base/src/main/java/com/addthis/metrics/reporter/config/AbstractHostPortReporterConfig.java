@@ -103,7 +103,12 @@ public abstract class AbstractHostPortReporterConfig extends AbstractMetricRepor
         for (int i = 0; i < hostPairs.length; i++)
         {
             String[] pair = hostPairs[i].split(":");
-            hosts.add(new HostPort(pair[0], Integer.valueOf(pair[1])));
+            HostPort hostPort = new HostPort(pair[0], Integer.valueOf(pair[1]));
+            if (pair.length > 2)
+            {
+                hostPort.setInstance(pair[2]);
+            }
+            hosts.add(hostPort);
         }
         return hosts;
     }
@@ -43,6 +43,19 @@ public abstract class AbstractMetricReporterConfig
     protected String durationunit = "MILLISECONDS";
     @Valid
     protected PredicateConfig predicate;
+    // keep the filtered metric set up to date from registry events instead of
+    // re-filtering the whole registry on every report
+    protected boolean indexed = false;
+    // in timeunit; null waits one period before the first report
+    @Min(0)
+    protected Long initialDelay;
+    // in timeunit; each report is delayed by a random amount below this
+    @Min(0)
+    protected long jitter = 0;
+    // spread the first reports of this config's reporters across the period
+    protected boolean stagger = false;
+    // report on multiples of the period since the epoch and stamp the boundary time
+    protected boolean alignToWallClock = false;
 
     public long getPeriod()
     {
@@ -109,6 +122,56 @@ public abstract class AbstractMetricReporterConfig
         this.predicate = predicate;
     }
 
+    public boolean isIndexed()
+    {
+        return indexed;
+    }
+
+    public void setIndexed(boolean indexed)
+    {
+        this.indexed = indexed;
+    }
+
+    public Long getInitialDelay()
+    {
+        return initialDelay;
+    }
+
+    public void setInitialDelay(Long initialDelay)
+    {
+        this.initialDelay = initialDelay;
+    }
+
+    public long getJitter()
+    {
+        return jitter;
+    }
+
+    public void setJitter(long jitter)
+    {
+        this.jitter = jitter;
+    }
+
+    public boolean isStagger()
+    {
+        return stagger;
+    }
+
+    public void setStagger(boolean stagger)
+    {
+        this.stagger = stagger;
+    }
+
+    public boolean isAlignToWallClock()
+    {
+        return alignToWallClock;
+    }
+
+    public void setAlignToWallClock(boolean alignToWallClock)
+    {
+        this.alignToWallClock = alignToWallClock;
+    }
+
     protected boolean isClassAvailable(String className)
     {
          try
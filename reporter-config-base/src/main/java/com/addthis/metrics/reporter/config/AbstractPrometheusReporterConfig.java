@@ -14,6 +14,8 @@
 
 package com.addthis.metrics.reporter.config;
 
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import java.util.HashMap;
@@ -21,7 +23,7 @@ import java.util.Map;
 
 public abstract class AbstractPrometheusReporterConfig extends AbstractHostPortReporterConfig {
     public enum Type {
-        pushgateway, servlet;
+        pushgateway, servlet, http;
     }
 
     protected String name = "prometheus";
@@ -35,6 +37,21 @@ public abstract class AbstractPrometheusReporterConfig extends AbstractHostPortR
     protected Map<String, String> labels = new HashMap<>();
     protected Map<String, String> resolvedLabels = new HashMap<>();
 
+    // address the http type listens on; every interface when unset
+    protected String httpHost;
+    @Min(0)
+    @Max(65535)
+    protected Integer httpPort;
+    // scrapes served at once, and waiting beyond those
+    @Min(1)
+    protected int httpThreads = 2;
+    @Min(1)
+    protected int httpQueueSize = 16;
+    // milliseconds a scrape is reused for by the servlet and http types; 0
+    // collects every scrape
+    @Min(0)
+    protected long scrapeCacheTtl = 0;
+
     public String getName() {
         return name;
     }
@@ -73,4 +90,44 @@ public abstract class AbstractPrometheusReporterConfig extends AbstractHostPortR
     public Map<String, String> getResolvedLabels() {
         return resolvedLabels;
     }
+
+    public String getHttpHost() {
+        return httpHost;
+    }
+
+    public void setHttpHost(String httpHost) {
+        this.httpHost = httpHost;
+    }
+
+    public Integer getHttpPort() {
+        return httpPort;
+    }
+
+    public void setHttpPort(Integer httpPort) {
+        this.httpPort = httpPort;
+    }
+
+    public int getHttpThreads() {
+        return httpThreads;
+    }
+
+    public void setHttpThreads(int httpThreads) {
+        this.httpThreads = httpThreads;
+    }
+
+    public int getHttpQueueSize() {
+        return httpQueueSize;
+    }
+
+    public void setHttpQueueSize(int httpQueueSize) {
+        this.httpQueueSize = httpQueueSize;
+    }
+
+    public long getScrapeCacheTtl() {
+        return scrapeCacheTtl;
+    }
+
+    public void setScrapeCacheTtl(long scrapeCacheTtl) {
+        this.scrapeCacheTtl = scrapeCacheTtl;
+    }
 }
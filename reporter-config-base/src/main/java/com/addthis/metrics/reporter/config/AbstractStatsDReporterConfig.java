@@ -15,6 +15,9 @@
 package com.addthis.metrics.reporter.config;
 
 import java.util.List;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +26,44 @@ public class AbstractStatsDReporterConfig extends AbstractHostPortReporterConfig
 {
     private static final Logger log = LoggerFactory.getLogger(AbstractStatsDReporterConfig.class);
 
+    // pack lines into datagrams of up to this many bytes; 0 sends one
+    // datagram per line
+    @Min(0)
+    @Max(65507)
+    private int maxPacketSize = 0;
+    // absolute sends counts as gauges every tick, delta sends only their
+    // changes as counters
+    @Pattern(
+            regexp = "^(absolute|delta)$",
+            message = "must be absolute or delta"
+    )
+    private String mode = "absolute";
+
+    public int getMaxPacketSize()
+    {
+        return maxPacketSize;
+    }
+
+    public void setMaxPacketSize(int maxPacketSize)
+    {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    public String getMode()
+    {
+        return mode;
+    }
+
+    public void setMode(String mode)
+    {
+        this.mode = mode;
+    }
+
+    public boolean isDelta()
+    {
+        return "delta".equals(mode);
+    }
+
     @Override
     public List<HostPort> getFullHostList()
     {
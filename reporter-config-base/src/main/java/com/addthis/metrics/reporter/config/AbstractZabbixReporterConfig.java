@@ -15,6 +15,7 @@
 package com.addthis.metrics.reporter.config;
 
 import javax.validation.constraints.Min;
+import javax.validation.constraints.Pattern;
 
 public abstract class AbstractZabbixReporterConfig extends AbstractHostPortReporterConfig
 {
@@ -22,6 +23,26 @@ public abstract class AbstractZabbixReporterConfig extends AbstractHostPortRepor
     protected int connectTimeout = 2000;
     @Min(0)
     protected int socketTimeout = 2000;
+    @Min(0)
+    protected int batchSize = 0;
+    @Min(1)
+    protected int maxInFlight = 1;
+    // replicate sends every tick to every host, failover to the first
+    // healthy one and round-robin to each healthy one in turn
+    @Pattern(
+            regexp = "^(replicate|failover|round-robin)$",
+            message = "must be replicate, failover or round-robin"
+    )
+    protected String routing = "replicate";
+    // seconds between connection checks of hosts that failed, when not
+    // replicating
+    @Min(1)
+    protected int healthCheckInterval = 10;
+    // send a low-level discovery item listing the metrics whenever they
+    // change, and every refresh interval in seconds unless it is 0
+    protected boolean discovery = false;
+    @Min(0)
+    protected int discoveryRefreshInterval = 3600;
 
     protected String name = "zabbix";
     protected String hostName;
@@ -47,6 +68,66 @@ public abstract class AbstractZabbixReporterConfig extends AbstractHostPortRepor
         this.socketTimeout = socketTimeout;
     }
 
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public String getRouting()
+    {
+        return routing;
+    }
+
+    public void setRouting(String routing)
+    {
+        this.routing = routing;
+    }
+
+    public int getHealthCheckInterval()
+    {
+        return healthCheckInterval;
+    }
+
+    public void setHealthCheckInterval(int healthCheckInterval)
+    {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    public boolean isDiscovery()
+    {
+        return discovery;
+    }
+
+    public void setDiscovery(boolean discovery)
+    {
+        this.discovery = discovery;
+    }
+
+    public int getDiscoveryRefreshInterval()
+    {
+        return discoveryRefreshInterval;
+    }
+
+    public void setDiscoveryRefreshInterval(int discoveryRefreshInterval)
+    {
+        this.discoveryRefreshInterval = discoveryRefreshInterval;
+    }
+
     public String getName()
     {
         return name;
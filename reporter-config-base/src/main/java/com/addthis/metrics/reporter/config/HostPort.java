@@ -26,6 +26,8 @@ public class HostPort
     @Min(0)
     @Max(65535)
     private int port;
+    // carbon instance name, only used to place the host on a graphite hash ring
+    private String instance;
 
     public HostPort() {}
 
@@ -54,6 +56,16 @@ public class HostPort
     {
         this.port = port;
     }
+
+    public String getInstance()
+    {
+        return instance;
+    }
+
+    public void setInstance(String instance)
+    {
+        this.instance = instance;
+    }
 }
 
 
@@ -0,0 +1,486 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics.reporter.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches a name against a list of regular expressions in one pass, with the
+ * same result as running {@link java.util.regex.Matcher#matches()} for every
+ * pattern and or-ing the results.
+ * <p>
+ * Patterns that are a plain literal or prefix (for example
+ * {@code ^org.apache.cassandra.metrics.Cache.+}) are loaded into a trie, and
+ * suffix patterns such as {@code .*JMXONLY$} into a second trie keyed from the
+ * end of the name.
+ * Unescaped '.' is kept as a single character wildcard so the usual unescaped
+ * dotted names still behave exactly like the regex.  Everything else is folded
+ * into a single alternation, except for the few constructs that cannot be
+ * safely concatenated (back references, named groups, inline flags and
+ * {@code \Q} quoting) which are matched one by one.
+ */
+final class PatternSetMatcher
+{
+    private static final String META_CHARS = "\\^$.|?*+()[]{}";
+
+    private final Node trie = new Node();
+    private final Node reverseTrie = new Node();
+    private boolean trieEmpty = true;
+    private boolean reverseTrieEmpty = true;
+    private final Pattern alternation;
+    private final Pattern[] standalone;
+
+    PatternSetMatcher(List<String> patterns)
+    {
+        List<String> combinable = new ArrayList<String>();
+        List<Pattern> separate = new ArrayList<Pattern>();
+        for (String s : patterns)
+        {
+            // preserve the PatternSyntaxException behaviour of compiling each pattern
+            Pattern compiled = Pattern.compile(s);
+            if (addToTrie(s))
+            {
+                continue;
+            }
+            if (isCombinable(s))
+            {
+                combinable.add(s);
+            }
+            else
+            {
+                separate.add(compiled);
+            }
+        }
+        this.alternation = combine(combinable, separate);
+        this.standalone = separate.toArray(new Pattern[separate.size()]);
+    }
+
+    boolean matches(String name)
+    {
+        if (!trieEmpty && trie.matches(name, 0, lastLineTerminator(name)))
+        {
+            return true;
+        }
+        if (!reverseTrieEmpty && reverseTrie.matchesReverse(name, name.length(), firstLineTerminator(name)))
+        {
+            return true;
+        }
+        if (alternation != null && alternation.matcher(name).matches())
+        {
+            return true;
+        }
+        for (Pattern pattern : standalone)
+        {
+            if (pattern.matcher(name).matches())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern combine(List<String> combinable, List<Pattern> separate)
+    {
+        if (combinable.isEmpty())
+        {
+            return null;
+        }
+        if (combinable.size() == 1)
+        {
+            return Pattern.compile(combinable.get(0));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String s : combinable)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append('|');
+            }
+            sb.append("(?:").append(s).append(')');
+        }
+        try
+        {
+            return Pattern.compile(sb.toString());
+        }
+        catch (PatternSyntaxException e)
+        {
+            // should not happen for patterns that passed isCombinable, but
+            // falling back to one at a time is always correct
+            for (String s : combinable)
+            {
+                separate.add(Pattern.compile(s));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Patterns that change meaning when wrapped in a group and or-ed with
+     * others: \Q quoting runs past the closing paren, group numbers of back
+     * references shift, named groups may collide and inline flags such as
+     * (?x) turn the rest of the alternation into a comment.
+     */
+    private static boolean isCombinable(String pattern)
+    {
+        for (int i = 0; i < pattern.length() - 1; i++)
+        {
+            char c = pattern.charAt(i);
+            char next = pattern.charAt(i + 1);
+            if (c == '\\')
+            {
+                if (next == 'Q' || next == 'k' || Character.isDigit(next))
+                {
+                    return false;
+                }
+                i++;
+            }
+            else if (c == '(' && next == '?' && (i + 2 >= pattern.length() || pattern.charAt(i + 2) != ':'))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the pattern to one of the tries when it has the shape
+     * {@code ^?atom*(.*|.+)?$?} or {@code ^?(.*|.+)atom*$?} where each atom
+     * is a literal character, an escaped punctuation character or an
+     * unescaped '.'.  The second form is stored reversed.
+     *
+     * @return false if the pattern has any other construct
+     */
+    private boolean addToTrie(String pattern)
+    {
+        int start = 0;
+        int end = pattern.length();
+        if (start < end && pattern.charAt(start) == '^')
+        {
+            start++;
+        }
+        if (end > start && pattern.charAt(end - 1) == '$' && !isEscaped(pattern, end - 1))
+        {
+            end--;
+        }
+        int suffix = Node.AFFIX_NONE;
+        if (end - start >= 2 && pattern.charAt(end - 2) == '.' && !isEscaped(pattern, end - 2))
+        {
+            suffix = affix(pattern.charAt(end - 1));
+            if (suffix != Node.AFFIX_NONE)
+            {
+                end -= 2;
+            }
+        }
+        int prefix = Node.AFFIX_NONE;
+        if (end - start >= 2 && pattern.charAt(start) == '.')
+        {
+            prefix = affix(pattern.charAt(start + 1));
+            if (prefix != Node.AFFIX_NONE)
+            {
+                if (suffix != Node.AFFIX_NONE)
+                {
+                    // a "contains" pattern, leave it to the regex engine
+                    return false;
+                }
+                start += 2;
+            }
+        }
+
+        // validate before touching the trie so a rejected pattern leaves no trace
+        int atoms = 0;
+        char[] chars = new char[end - start];
+        boolean[] wildcards = new boolean[end - start];
+        for (int i = start; i < end; i++)
+        {
+            char c = pattern.charAt(i);
+            if (c == '\\')
+            {
+                if (i + 1 >= end || Character.isLetterOrDigit(pattern.charAt(i + 1)))
+                {
+                    return false;
+                }
+                chars[atoms++] = pattern.charAt(++i);
+            }
+            else if (c == '.')
+            {
+                wildcards[atoms++] = true;
+            }
+            else if (META_CHARS.indexOf(c) >= 0)
+            {
+                return false;
+            }
+            else
+            {
+                chars[atoms++] = c;
+            }
+        }
+
+        if (prefix != Node.AFFIX_NONE)
+        {
+            Node node = reverseTrie;
+            for (int i = atoms - 1; i >= 0; i--)
+            {
+                node = wildcards[i] ? node.wildcardChild() : node.child(chars[i]);
+            }
+            node.accept(prefix);
+            reverseTrieEmpty = false;
+        }
+        else
+        {
+            Node node = trie;
+            for (int i = 0; i < atoms; i++)
+            {
+                node = wildcards[i] ? node.wildcardChild() : node.child(chars[i]);
+            }
+            node.accept(suffix);
+            trieEmpty = false;
+        }
+        return true;
+    }
+
+    private static int affix(char quantifier)
+    {
+        switch (quantifier)
+        {
+            case '*':
+                return Node.AFFIX_ANY;
+            case '+':
+                return Node.AFFIX_NON_EMPTY;
+            default:
+                return Node.AFFIX_NONE;
+        }
+    }
+
+    private static boolean isEscaped(String pattern, int index)
+    {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && pattern.charAt(i) == '\\'; i--)
+        {
+            backslashes++;
+        }
+        return (backslashes & 1) == 1;
+    }
+
+    private static boolean isLineTerminator(char c)
+    {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static int firstLineTerminator(String name)
+    {
+        for (int i = 0; i < name.length(); i++)
+        {
+            if (isLineTerminator(name.charAt(i)))
+            {
+                return i;
+            }
+        }
+        return name.length();
+    }
+
+    private static int lastLineTerminator(String name)
+    {
+        for (int i = name.length() - 1; i >= 0; i--)
+        {
+            if (isLineTerminator(name.charAt(i)))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Node
+    {
+        static final int AFFIX_NONE = 0;
+        static final int AFFIX_ANY = 1;
+        static final int AFFIX_NON_EMPTY = 2;
+
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Node wildcard;
+        private boolean exact;
+        private boolean anyAffix;
+        private boolean nonEmptyAffix;
+
+        Node child(char c)
+        {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0)
+            {
+                return children[index];
+            }
+            int insert = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insert);
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+            System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+            Node node = new Node();
+            newKeys[insert] = c;
+            newChildren[insert] = node;
+            keys = newKeys;
+            children = newChildren;
+            return node;
+        }
+
+        Node wildcardChild()
+        {
+            if (wildcard == null)
+            {
+                wildcard = new Node();
+            }
+            return wildcard;
+        }
+
+        void accept(int affix)
+        {
+            switch (affix)
+            {
+                case AFFIX_ANY:
+                    anyAffix = true;
+                    break;
+                case AFFIX_NON_EMPTY:
+                    nonEmptyAffix = true;
+                    break;
+                default:
+                    exact = true;
+            }
+        }
+
+        Node literalChild(char c)
+        {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node wildcardChild(char c)
+        {
+            return isLineTerminator(c) ? null : wildcard;
+        }
+
+        /**
+         * Walks the name forward from offset.
+         *
+         * @param lastBreak index of the last line terminator in name, which
+         *                  '.' never matches, or -1
+         */
+        boolean matches(String name, int offset, int lastBreak)
+        {
+            Node node = this;
+            int length = name.length();
+            while (true)
+            {
+                if (offset == length)
+                {
+                    return node.exact || node.anyAffix;
+                }
+                if ((node.anyAffix || node.nonEmptyAffix) && lastBreak < offset)
+                {
+                    return true;
+                }
+                char c = name.charAt(offset);
+                Node literal = node.literalChild(c);
+                Node wild = node.wildcardChild(c);
+                if (literal != null && wild != null)
+                {
+                    // the only place both a literal and a '.' can continue
+                    if (literal.matches(name, offset + 1, lastBreak))
+                    {
+                        return true;
+                    }
+                    literal = null;
+                }
+                if (literal != null)
+                {
+                    node = literal;
+                    offset++;
+                }
+                else if (wild != null)
+                {
+                    node = wild;
+                    // '.' consumes a whole code point
+                    if (Character.isHighSurrogate(c) && offset + 1 < length
+                            && Character.isLowSurrogate(name.charAt(offset + 1)))
+                    {
+                        offset++;
+                    }
+                    offset++;
+                }
+                else
+                {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Walks the name backwards from end (exclusive).
+         *
+         * @param firstBreak index of the first line terminator in name, or
+         *                   its length if there is none
+         */
+        boolean matchesReverse(String name, int end, int firstBreak)
+        {
+            Node node = this;
+            while (true)
+            {
+                if (end == 0)
+                {
+                    return node.exact || node.anyAffix;
+                }
+                if ((node.anyAffix || node.nonEmptyAffix) && firstBreak >= end)
+                {
+                    return true;
+                }
+                char c = name.charAt(end - 1);
+                Node literal = node.literalChild(c);
+                Node wild = node.wildcardChild(c);
+                if (literal != null && wild != null)
+                {
+                    if (literal.matchesReverse(name, end - 1, firstBreak))
+                    {
+                        return true;
+                    }
+                    literal = null;
+                }
+                if (literal != null)
+                {
+                    node = literal;
+                    end--;
+                }
+                else if (wild != null)
+                {
+                    node = wild;
+                    if (Character.isLowSurrogate(c) && end - 2 >= 0
+                            && Character.isHighSurrogate(name.charAt(end - 2)))
+                    {
+                        end--;
+                    }
+                    end--;
+                }
+                else
+                {
+                    return false;
+                }
+            }
+        }
+    }
+}
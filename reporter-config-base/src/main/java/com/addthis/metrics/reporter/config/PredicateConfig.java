@@ -22,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
@@ -39,6 +40,9 @@ public class PredicateConfig
     @Size(min=1)
     private List<String> patterns;
     private boolean useQualifiedName;
+    // max number of name -> decision entries memoized by the filter, 0 disables
+    @Min(0)
+    private int cacheSize;
     private Measurement meter;
     private Measurement histogram;
     private Measurement timer;
@@ -102,7 +106,9 @@ public class PredicateConfig
     }
 
 
-    private List<Pattern> cPatterns;
+    private PatternSetMatcher matcher;
+    private boolean black;
+    private boolean white;
     private List<MeasurementPattern> meterPatterns;
     private List<MeasurementPattern> histogramPatterns;
     private List<MeasurementPattern> timerPatterns;
@@ -129,6 +135,8 @@ public class PredicateConfig
     public void setColor(String color)
     {
         this.color = color;
+        this.black = "black".equals(color);
+        this.white = "white".equals(color);
     }
 
     public List<String> getPatterns()
@@ -139,11 +147,7 @@ public class PredicateConfig
     public void setPatterns(List<String> patterns)
     {
         this.patterns = patterns;
-        cPatterns = new ArrayList<Pattern>();
-        for (String s : patterns)
-        {
-            cPatterns.add(Pattern.compile(s));
-        }
+        this.matcher = new PatternSetMatcher(patterns);
     }
 
     public boolean getUseQualifiedName()
@@ -156,6 +160,16 @@ public class PredicateConfig
         this.useQualifiedName = useQualifiedName;
     }
 
+    public int getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
+
     public Measurement getMeter()
     {
         return meter;
@@ -205,28 +219,13 @@ public class PredicateConfig
 
     public boolean allowString(String name)
     {
-
-        if (color.equals("black"))
+        if (black)
         {
-            for (Pattern pat : cPatterns)
-            {
-                if (pat.matcher(name).matches())
-                {
-                    return false;
-                }
-            }
-            return true;
+            return !matcher.matches(name);
         }
-
-        if (color.equals("white"))
+        if (white)
         {
-            for (Pattern pat : cPatterns)
-            {
-                if (pat.matcher(name).matches())
-                {
-                    return true;
-                }
-            }
+            return matcher.matches(name);
         }
         return false; // trusting validator
     }
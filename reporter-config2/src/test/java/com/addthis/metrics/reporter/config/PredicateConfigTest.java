@@ -130,6 +130,39 @@ public class PredicateConfigTest
         assertFalse(pc.allowString("org.apache.cassandra.metrics.ColumnFamily.system.NodeIdInfo.MeanRowSize"));
     }
 
+    @Test
+    public void prefixWildcardDots()
+    {
+        PredicateConfig pc = new PredicateConfig("white",
+                                                 ImmutableList.of("^org.apache.cassandra.metrics.Cache.+",
+                                                                  "org\\.example\\.Exact",
+                                                                  "^jvm\\.gc\\..*$"));
+        assertTrue(pc.allowString("org.apache.cassandra.metrics.Cache.KeyCache.Size"));
+        assertTrue(pc.allowString("orgXapache.cassandra.metrics.Cache.KeyCache.Size"));
+        assertFalse(pc.allowString("org.apache.cassandra.metrics.Cache"));
+        assertTrue(pc.allowString("org.example.Exact"));
+        assertFalse(pc.allowString("orgXexample.Exact"));
+        assertFalse(pc.allowString("org.example.Exact.count"));
+        assertTrue(pc.allowString("jvm.gc."));
+        assertTrue(pc.allowString("jvm.gc.PS-Scavenge.count"));
+        assertFalse(pc.allowString("jvm.gc.PS-Scavenge\ncount"));
+        assertFalse(pc.allowString("jvmXgc.count"));
+    }
+
+    @Test
+    public void mixedTrieAndRegex()
+    {
+        PredicateConfig pc = new PredicateConfig("black",
+                                                 ImmutableList.of("^bad.+", ".*JMXONLY$", "(\\w+)\\.\\1", "(?i)loud"));
+        assertTrue(pc.allowString("foo"));
+        assertFalse(pc.allowString("badFoo"));
+        assertFalse(pc.allowString("com.example.foo.CoolMetric_JMXONLY"));
+        assertFalse(pc.allowString("echo.echo"));
+        assertTrue(pc.allowString("echo.ohce"));
+        assertFalse(pc.allowString("LOUD"));
+        assertTrue(pc.allowString("loudly"));
+    }
+
     @Test
     public void emptyMeasurement()
     {
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import com.codahale.metrics.Clock;
+
+/**
+ * Reports wall clock time rounded down to a multiple of the period, so every
+ * reporter ticking on the same period boundary stamps the same time no
+ * matter how late after the boundary it runs.  A report run by
+ * {@link ReporterScheduler} stamps the boundary it was scheduled for, so
+ * that a stagger offset, jitter or a busy pool pushing it past the next
+ * boundary does not stamp it with that one.
+ */
+public class AlignedClock extends Clock
+{
+    private static final ThreadLocal<Long> SCHEDULED = new ThreadLocal<Long>();
+
+    private final long periodMillis;
+
+    public AlignedClock(long periodMillis)
+    {
+        if (periodMillis < 1)
+        {
+            throw new IllegalArgumentException("period must be at least one millisecond");
+        }
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * Stamps what reports on this thread read until {@link #clearScheduled}
+     * with the boundary they were scheduled for.
+     */
+    static void setScheduled(long boundaryMillis)
+    {
+        SCHEDULED.set(boundaryMillis);
+    }
+
+    static void clearScheduled()
+    {
+        SCHEDULED.remove();
+    }
+
+    @Override
+    public long getTick()
+    {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long getTime()
+    {
+        Long scheduled = SCHEDULED.get();
+        return floor(scheduled != null ? scheduled : System.currentTimeMillis());
+    }
+
+    long floor(long millis)
+    {
+        return millis - millis % periodMillis;
+    }
+}
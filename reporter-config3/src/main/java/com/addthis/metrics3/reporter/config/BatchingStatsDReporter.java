@@ -0,0 +1,398 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the same lines as {@link com.readytalk.metrics.StatsDReporter}, but
+ * packs as many of them as fit into each datagram, separated by newlines,
+ * instead of sending a datagram per line.  A line longer than the packet
+ * size is sent on its own; a packet size of 0 sends every line on its own.
+ * <p>
+ * In delta mode counts, of counters and of the samples of histograms,
+ * meters and timers, are sent as StatsD counters holding the change since
+ * the last report, and not at all when they did not change.  A count is
+ * only recorded as reported once the packet holding it has been written, so
+ * the changes in a packet that failed are sent again with the next report.
+ */
+public class BatchingStatsDReporter extends ScheduledReporter
+{
+    private static final Logger log = LoggerFactory.getLogger(BatchingStatsDReporter.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
+
+    private static final String GAUGE = "g";
+    private static final String COUNTER = "c";
+    private static final String TIMER = "ms";
+
+    private final String prefix;
+    private final InetSocketAddress address;
+    private final ByteBuffer packet;
+    private final MetricRegistry registry;
+    private final boolean delta;
+    private final StringLongMap reported = new StringLongMap();
+    // counts in the packet being filled, recorded as reported once it is written
+    private String[] stagedMetrics = new String[16];
+    private long[] stagedCounts = new long[16];
+    private int staged;
+    private final Queue<String> removed = new ConcurrentLinkedQueue<String>();
+    private final MetricRegistryListener listener = new MetricRegistryListener.Base()
+    {
+        @Override
+        public void onCounterRemoved(String name)
+        {
+            removed.add(name);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name)
+        {
+            removed.add(name);
+        }
+
+        @Override
+        public void onMeterRemoved(String name)
+        {
+            removed.add(name);
+        }
+
+        @Override
+        public void onTimerRemoved(String name)
+        {
+            removed.add(name);
+        }
+    };
+    private DatagramChannel channel;
+    private long packets;
+    private int failures;
+
+    BatchingStatsDReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit,
+                           String prefix, InetSocketAddress address, int maxPacketSize)
+    {
+        this(registry, filter, rateUnit, durationUnit, prefix, address, maxPacketSize, false);
+    }
+
+    /**
+     * @param delta send changes of counts as StatsD counters instead of the
+     *              counts as gauges
+     */
+    BatchingStatsDReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit,
+                           String prefix, InetSocketAddress address, int maxPacketSize, boolean delta)
+    {
+        super(registry, "statsd-reporter", filter, rateUnit, durationUnit);
+        this.prefix = prefix;
+        this.address = address;
+        this.packet = ByteBuffer.allocate(maxPacketSize);
+        this.registry = registry;
+        this.delta = delta;
+        if (delta)
+        {
+            // the last reported counts of removed metrics are forgotten so a
+            // metric registered again under the name starts from zero
+            registry.addListener(listener);
+        }
+    }
+
+    @Override
+    public synchronized void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+                                    SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+                                    SortedMap<String, Timer> timers)
+    {
+        try
+        {
+            if (channel == null)
+            {
+                channel = DatagramChannel.open();
+                channel.connect(address);
+            }
+            packet.clear();
+            staged = 0;
+            for (String name = removed.poll(); name != null; name = removed.poll())
+            {
+                reported.remove(name);
+            }
+            for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+            {
+                String value = format(entry.getValue().getValue());
+                if (value != null)
+                {
+                    send(name(entry.getKey()), value, GAUGE);
+                }
+            }
+            for (Map.Entry<String, Counter> entry : counters.entrySet())
+            {
+                sendCount(entry.getKey(), null, entry.getValue().getCount());
+            }
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+            {
+                reportHistogram(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, Meter> entry : meters.entrySet())
+            {
+                reportMetered(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, Timer> entry : timers.entrySet())
+            {
+                reportTimer(entry.getKey(), entry.getValue());
+            }
+            flush();
+            failures = 0;
+        }
+        catch (IOException e)
+        {
+            failures++;
+            log.warn("Unable to report to StatsD " + address + " (" + failures + " failures in a row)", e);
+            close();
+        }
+    }
+
+    private void reportHistogram(String name, Histogram histogram) throws IOException
+    {
+        Snapshot snapshot = histogram.getSnapshot();
+        sendCount(name, "samples", histogram.getCount());
+        send(name(name, "max"), format(snapshot.getMax()), GAUGE);
+        send(name(name, "mean"), format(snapshot.getMean()), GAUGE);
+        send(name(name, "min"), format(snapshot.getMin()), GAUGE);
+        send(name(name, "stddev"), format(snapshot.getStdDev()), GAUGE);
+        send(name(name, "p50"), format(snapshot.getMedian()), GAUGE);
+        send(name(name, "p75"), format(snapshot.get75thPercentile()), GAUGE);
+        send(name(name, "p95"), format(snapshot.get95thPercentile()), GAUGE);
+        send(name(name, "p98"), format(snapshot.get98thPercentile()), GAUGE);
+        send(name(name, "p99"), format(snapshot.get99thPercentile()), GAUGE);
+        send(name(name, "p999"), format(snapshot.get999thPercentile()), GAUGE);
+    }
+
+    private void reportMetered(String name, Metered meter) throws IOException
+    {
+        sendCount(name, "samples", meter.getCount());
+        send(name(name, "m1_rate"), format(convertRate(meter.getOneMinuteRate())), GAUGE);
+        send(name(name, "m5_rate"), format(convertRate(meter.getFiveMinuteRate())), GAUGE);
+        send(name(name, "m15_rate"), format(convertRate(meter.getFifteenMinuteRate())), GAUGE);
+        send(name(name, "mean_rate"), format(convertRate(meter.getMeanRate())), GAUGE);
+    }
+
+    private void reportTimer(String name, Timer timer) throws IOException
+    {
+        Snapshot snapshot = timer.getSnapshot();
+        send(name(name, "max"), format(convertDuration(snapshot.getMax())), TIMER);
+        send(name(name, "mean"), format(convertDuration(snapshot.getMean())), TIMER);
+        send(name(name, "min"), format(convertDuration(snapshot.getMin())), TIMER);
+        send(name(name, "stddev"), format(convertDuration(snapshot.getStdDev())), TIMER);
+        send(name(name, "p50"), format(convertDuration(snapshot.getMedian())), TIMER);
+        send(name(name, "p75"), format(convertDuration(snapshot.get75thPercentile())), TIMER);
+        send(name(name, "p95"), format(convertDuration(snapshot.get95thPercentile())), TIMER);
+        send(name(name, "p98"), format(convertDuration(snapshot.get98thPercentile())), TIMER);
+        send(name(name, "p99"), format(convertDuration(snapshot.get99thPercentile())), TIMER);
+        send(name(name, "p999"), format(convertDuration(snapshot.get999thPercentile())), TIMER);
+        reportMetered(name, timer);
+    }
+
+    /**
+     * Sends a count as a gauge, or in delta mode the change since it was
+     * last reported as a counter.
+     *
+     * @param measurement appended to the metric name, or null for none
+     */
+    private void sendCount(String metric, String measurement, long count) throws IOException
+    {
+        if (!delta)
+        {
+            send(name(metric, measurement), format(count), GAUGE);
+            return;
+        }
+        long change = count - reported.get(metric, 0);
+        if (change == 0)
+        {
+            return;
+        }
+        if (send(name(metric, measurement), format(change), COUNTER))
+        {
+            stage(metric, count);
+        }
+        else
+        {
+            reported.put(metric, count);
+        }
+    }
+
+    private void stage(String metric, long count)
+    {
+        if (staged == stagedMetrics.length)
+        {
+            stagedMetrics = Arrays.copyOf(stagedMetrics, staged * 2);
+            stagedCounts = Arrays.copyOf(stagedCounts, staged * 2);
+        }
+        stagedMetrics[staged] = metric;
+        stagedCounts[staged] = count;
+        staged++;
+    }
+
+    /**
+     * Appends a line to the packet, sending the packet first if the line
+     * does not fit.
+     *
+     * @return true if the line is in the packet, false if it did not fit in
+     *         any and has been sent on its own
+     */
+    private boolean send(String name, String value, String type) throws IOException
+    {
+        String line = WHITESPACE.matcher(name).replaceAll("-") + ':'
+                      + WHITESPACE.matcher(value).replaceAll("-") + '|' + type;
+        byte[] bytes = line.getBytes(UTF_8);
+        int separator = packet.position() == 0 ? 0 : 1;
+        if (packet.remaining() < separator + bytes.length)
+        {
+            flush();
+            separator = 0;
+        }
+        if (packet.remaining() < bytes.length)
+        {
+            write(ByteBuffer.wrap(bytes));
+            return false;
+        }
+        if (separator > 0)
+        {
+            packet.put((byte) '\n');
+        }
+        packet.put(bytes);
+        return true;
+    }
+
+    private void flush() throws IOException
+    {
+        if (packet.position() > 0)
+        {
+            packet.flip();
+            write(packet);
+            packet.clear();
+        }
+        for (int i = 0; i < staged; i++)
+        {
+            reported.put(stagedMetrics[i], stagedCounts[i]);
+            stagedMetrics[i] = null;
+        }
+        staged = 0;
+    }
+
+    private void write(ByteBuffer datagram) throws IOException
+    {
+        channel.write(datagram);
+        packets++;
+    }
+
+    private String name(String name, String... components)
+    {
+        return MetricRegistry.name(prefix, MetricRegistry.name(name, components));
+    }
+
+    private static String format(long value)
+    {
+        return Long.toString(value);
+    }
+
+    private static String format(double value)
+    {
+        return String.format(Locale.US, "%2.2f", value);
+    }
+
+    private static String format(Object value)
+    {
+        if (value instanceof Float || value instanceof Double
+            || value instanceof BigDecimal || value instanceof BigInteger)
+        {
+            return format(((Number) value).doubleValue());
+        }
+        else if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long)
+        {
+            return format(((Number) value).longValue());
+        }
+        return null;
+    }
+
+    private void close()
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                log.debug("Error closing datagram channel to {}", address, e);
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        try
+        {
+            super.stop();
+        }
+        finally
+        {
+            registry.removeListener(listener);
+            synchronized (this)
+            {
+                close();
+            }
+        }
+    }
+
+    synchronized long getPackets()
+    {
+        return packets;
+    }
+
+    synchronized int getFailures()
+    {
+        return failures;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.addthis.metrics.reporter.config.HostPort;
+
+/**
+ * The consistent hash ring carbon relays use to split metrics across
+ * carbon-cache destinations (carbon_ch): each destination is placed at 100
+ * points given by the first 16 bits of the md5 of its key, and a metric goes
+ * to the first point at or after the position of its own path.  Hosts listed
+ * with the same instance names as the relay's {@code DESTINATIONS} receive
+ * the same metrics the relay would send them.
+ */
+class CarbonHashRing
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int REPLICAS = 100;
+
+    private final int[] positions;
+    private final int[] nodes;
+    private final MessageDigest md5;
+
+    CarbonHashRing(List<HostPort> hosts)
+    {
+        this.md5 = newMd5();
+        long[] ring = new long[hosts.size() * REPLICAS];
+        int size = 0;
+        for (int node = 0; node < hosts.size(); node++)
+        {
+            String key = nodeKey(hosts.get(node));
+            for (int i = 0; i < REPLICAS; i++)
+            {
+                int position = position(key + ":" + i);
+                // carbon moves a replica up until it finds a free position
+                while (contains(ring, size, position))
+                {
+                    position++;
+                }
+                ring[size++] = ((long) position << 32) | node;
+            }
+        }
+        Arrays.sort(ring);
+        positions = new int[size];
+        nodes = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            positions[i] = (int) (ring[i] >>> 32);
+            nodes[i] = (int) ring[i];
+        }
+    }
+
+    /**
+     * @return the node key carbon derives from a destination, the python
+     *         repr of its (server, instance) tuple
+     */
+    static String nodeKey(HostPort host)
+    {
+        String instance = host.getInstance() == null ? "None" : "'" + host.getInstance() + "'";
+        return "('" + host.getHost() + "', " + instance + ")";
+    }
+
+    /**
+     * @return the index of the host the metric path belongs to
+     */
+    int node(String path)
+    {
+        int index = Arrays.binarySearch(positions, position(path));
+        if (index < 0)
+        {
+            index = -index - 1;
+        }
+        return nodes[index % positions.length];
+    }
+
+    private int position(String key)
+    {
+        byte[] digest = md5.digest(key.getBytes(UTF_8));
+        return ((digest[0] & 0xff) << 8) | (digest[1] & 0xff);
+    }
+
+    private static boolean contains(long[] ring, int size, int position)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if ((int) (ring[i] >>> 32) == position)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MessageDigest newMd5()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("MD5 is required of every JVM", e);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.metrics.reporter.config.AbstractMetricReporterConfig;
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts, reports and stops the {@link ScheduledReporter}s built by one
+ * reporter config, one per destination host.  All reporters of a config share
+ * its filter, so they also share its {@link FilteredMetricIndex} when
+ * {@code indexed} is set.  When the enclosing {@link ReporterConfig} shares
+ * snapshots, reporters of every config on the same period read through one
+ * {@link RegistryCapture}, and when it has a {@link ReporterScheduler} the
+ * reporters run on that instead of their own threads.
+ * <p>
+ * The metrics reporters can only start on a fixed rate one period from now,
+ * so a reporter with an initial delay, jitter or stagger runs on a
+ * {@link ReporterScheduler} of its own when there is no shared one.
+ */
+class ConfiguredReporters
+{
+    private static final Logger log = LoggerFactory.getLogger(ConfiguredReporters.class);
+
+    private final AbstractMetricReporterConfig config;
+    private final List<ScheduledReporter> reporters = new CopyOnWriteArrayList<ScheduledReporter>();
+    private final List<ReporterScheduler.ReportTask> scheduled = new CopyOnWriteArrayList<ReporterScheduler.ReportTask>();
+    private final List<ReporterScheduler> ownSchedulers = new CopyOnWriteArrayList<ReporterScheduler>();
+    private final Set<MetricFilter> filters = new CopyOnWriteArraySet<MetricFilter>();
+    private final List<RegistryCapture> captures = new CopyOnWriteArrayList<RegistryCapture>();
+
+    private FilteredMetricIndex index;
+    private ReporterContext context;
+    private int staggered;
+
+    ConfiguredReporters(AbstractMetricReporterConfig config)
+    {
+        this.config = config;
+    }
+
+    void setContext(ReporterContext context)
+    {
+        this.context = context;
+    }
+
+    /**
+     * Starts the reporter on the config's period.  Nothing is started or
+     * registered if the config's time units are invalid.
+     *
+     * @param name thread name prefix, as the metrics builders would use
+     * @return the reporter that was started, which wraps the given one when
+     *         the config is indexed or snapshots are shared
+     */
+    ScheduledReporter start(ScheduledReporter reporter, String name, MetricRegistry registry, MetricFilter filter)
+    {
+        long period = config.getPeriod();
+        TimeUnit timeUnit = config.getRealTimeunit();
+        TimeUnit rateUnit = config.getRealRateunit();
+        TimeUnit durationUnit = config.getRealDurationunit();
+        MetricSource source = null;
+        if (config.isIndexed())
+        {
+            if (index == null)
+            {
+                index = FilteredMetricIndex.attach(registry, filter);
+            }
+            source = index;
+        }
+        if (context != null && context.isSharedSnapshots())
+        {
+            if (source == null)
+            {
+                source = new FilteredRegistrySource(registry, filter);
+            }
+            RegistryCapture capture = context.getCapture(registry, period, timeUnit);
+            captures.add(capture);
+            source = capture.capture(source);
+        }
+        if (source != null)
+        {
+            reporter = new DelegatingReporter(reporter, source, registry, name, filter, rateUnit, durationUnit);
+        }
+        ReporterScheduler scheduler = getScheduler();
+        boolean timed = config.getInitialDelay() != null || config.getJitter() > 0 || config.isStagger()
+                        || config.isAlignToWallClock();
+        if (scheduler == null && timed)
+        {
+            scheduler = new ReporterScheduler(1, name);
+            ownSchedulers.add(scheduler);
+        }
+        if (scheduler != null)
+        {
+            long periodNanos = timeUnit.toNanos(period);
+            long jitter = timeUnit.toNanos(config.getJitter());
+            if (config.isAlignToWallClock() && jitter > periodNanos / 2)
+            {
+                log.warn("Limiting the jitter of {} to half its period, so that reports stay within their period",
+                         name);
+                jitter = periodNanos / 2;
+            }
+            // with alignment, stagger within what the jitter leaves of the period
+            long spread = config.isAlignToWallClock() ? periodNanos - jitter : periodNanos;
+            long offset = config.isStagger() ? staggerOffset(staggered++, spread) : 0;
+            if (config.isAlignToWallClock())
+            {
+                scheduled.add(scheduler.scheduleAligned(reporter, offset, periodNanos, jitter, TimeUnit.NANOSECONDS));
+            }
+            else
+            {
+                long initialDelay = periodNanos;
+                if (config.getInitialDelay() != null)
+                {
+                    initialDelay = timeUnit.toNanos(config.getInitialDelay());
+                }
+                scheduled.add(scheduler.schedule(reporter, initialDelay + offset, periodNanos, jitter,
+                                                 TimeUnit.NANOSECONDS));
+            }
+        }
+        else
+        {
+            reporter.start(period, timeUnit);
+        }
+        reporters.add(reporter);
+        filters.add(filter);
+        return reporter;
+    }
+
+    /**
+     * @return the pool shared by every reporter of the {@link ReporterConfig},
+     *         or null if there is none
+     */
+    ReporterScheduler getScheduler()
+    {
+        return context != null ? context.getScheduler() : null;
+    }
+
+    /**
+     * @return the clock reporters should stamp their points with; with
+     *         {@code alignToWallClock} it reads the period boundary the tick
+     *         belongs to, the same for every reporter on that period
+     */
+    Clock getClock()
+    {
+        if (config.isAlignToWallClock())
+        {
+            return new AlignedClock(Math.max(1, config.getRealTimeunit().toMillis(config.getPeriod())));
+        }
+        return Clock.defaultClock();
+    }
+
+    /**
+     * Offsets the n-th reporter by the fractional part of n times the golden
+     * ratio, which spreads any number of reporters evenly over the period
+     * without knowing up front how many there will be.
+     */
+    static long staggerOffset(int n, long periodNanos)
+    {
+        double fraction = (n * 0.6180339887498949) % 1.0;
+        return (long) (fraction * periodNanos);
+    }
+
+    void report()
+    {
+        for (ScheduledReporter reporter : reporters)
+        {
+            reporter.report();
+        }
+    }
+
+    /**
+     * Stops every reporter and removes the registry listeners of the index
+     * and of the filters the reporters were started with, so the config can
+     * be enabled again from scratch.  Shared captures no other config uses
+     * any more are detached as well.
+     */
+    void stop()
+    {
+        for (ReporterScheduler.ReportTask task : scheduled)
+        {
+            task.cancel();
+        }
+        for (ScheduledReporter reporter : reporters)
+        {
+            reporter.stop();
+        }
+        for (ReporterScheduler scheduler : ownSchedulers)
+        {
+            scheduler.shutdown();
+        }
+        if (index != null)
+        {
+            index.detach();
+            index = null;
+        }
+        for (MetricFilter filter : filters)
+        {
+            MetricFilterTransformer.detach(filter);
+        }
+        for (RegistryCapture capture : captures)
+        {
+            context.releaseCapture(capture);
+        }
+        scheduled.clear();
+        reporters.clear();
+        ownSchedulers.clear();
+        filters.clear();
+        captures.clear();
+        staggered = 0;
+    }
+
+    List<ScheduledReporter> getReporters()
+    {
+        return reporters;
+    }
+}
@@ -18,8 +18,8 @@ import java.io.PrintStream;
 
 import com.addthis.metrics.reporter.config.AbstractConsoleReporterConfig;
 import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.graphite.GraphiteReporter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,7 +29,7 @@ public class ConsoleReporterConfig extends AbstractConsoleReporterConfig impleme
 {
     private static final Logger log = LoggerFactory.getLogger(ConsoleReporterConfig.class);
 
-    private ConsoleReporter reporter;
+    private final ConfiguredReporters reporters = new ConfiguredReporters(this);
 
     @Override
     public boolean enable(MetricRegistry registry)
@@ -37,15 +37,17 @@ public class ConsoleReporterConfig extends AbstractConsoleReporterConfig impleme
         try
         {
             PrintStream stream = createPrintStream();
+            MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate(), registry);
 
-            reporter = ConsoleReporter.forRegistry(registry)
+            ConsoleReporter reporter = ConsoleReporter.forRegistry(registry)
                             .convertRatesTo(getRealRateunit())
                             .convertDurationsTo(getRealDurationunit())
-                            .filter(MetricFilterTransformer.generateFilter(getPredicate()))
+                            .filter(filter)
+                            .withClock(reporters.getClock())
                             .outputTo(stream)
                             .build();
 
-            reporter.start(getPeriod(), getRealTimeunit());
+            reporters.start(reporter, "console-reporter", registry, filter);
         }
         catch (Exception e)
         {
@@ -55,10 +57,13 @@ public class ConsoleReporterConfig extends AbstractConsoleReporterConfig impleme
         return true;
     }
 
+    void setContext(ReporterContext context)
+    {
+        reporters.setContext(context);
+    }
+
     @Override public void report() {
-        if (reporter != null) {
-            reporter.report();
-        }
+        reporters.report();
     }
 
 
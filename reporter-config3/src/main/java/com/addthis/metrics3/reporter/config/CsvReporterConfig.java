@@ -18,6 +18,7 @@ import java.io.File;
 
 import com.addthis.metrics.reporter.config.AbstractCsvReporterConfig;
 import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 
 import org.slf4j.Logger;
@@ -28,7 +29,7 @@ public class CsvReporterConfig extends AbstractCsvReporterConfig implements Metr
 {
     private static final Logger log = LoggerFactory.getLogger(CsvReporterConfig.class);
 
-    private CsvReporter reporter;
+    private final ConfiguredReporters reporters = new ConfiguredReporters(this);
 
     @Override
     public boolean enable(MetricRegistry registry)
@@ -45,13 +46,15 @@ public class CsvReporterConfig extends AbstractCsvReporterConfig implements Metr
             // static enable() methods omit the option of specifying a
             // predicate.  Calling constructor and starting manually
             // instead
-           reporter = CsvReporter.forRegistry(registry)
+            MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate(), registry);
+            CsvReporter reporter = CsvReporter.forRegistry(registry)
                             .convertRatesTo(getRealRateunit())
                             .convertDurationsTo(getRealDurationunit())
-                            .filter(MetricFilterTransformer.generateFilter(getPredicate()))
+                            .filter(filter)
+                            .withClock(reporters.getClock())
                             .build(foutDir);
 
-            reporter.start(getPeriod(), getRealTimeunit());
+            reporters.start(reporter, "csv-reporter", registry, filter);
         }
         catch (Exception e)
         {
@@ -61,10 +64,13 @@ public class CsvReporterConfig extends AbstractCsvReporterConfig implements Metr
         return true;
     }
 
+    void setContext(ReporterContext context)
+    {
+        reporters.setContext(context);
+    }
+
     @Override public void report() {
-        if (reporter != null) {
-            reporter.report();
-        }
+        reporters.report();
     }
 
 
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Timer;
+
+/**
+ * Drives a reporter built by one of the metrics builders from a
+ * {@link MetricSource} instead of letting it query the registry on each tick.
+ */
+public class DelegatingReporter extends ScheduledReporter
+{
+    private final ScheduledReporter delegate;
+    private final MetricSource source;
+
+    public DelegatingReporter(ScheduledReporter delegate, MetricSource source, MetricRegistry registry,
+                              String name, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit)
+    {
+        super(registry, name, filter, rateUnit, durationUnit);
+        this.delegate = delegate;
+        this.source = source;
+    }
+
+    public ScheduledReporter getDelegate()
+    {
+        return delegate;
+    }
+
+    @Override
+    public void report()
+    {
+        synchronized (this)
+        {
+            report(source.getGauges(), source.getCounters(), source.getHistograms(),
+                   source.getMeters(), source.getTimers());
+        }
+    }
+
+    @Override
+    public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+                       SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+                       SortedMap<String, Timer> timers)
+    {
+        delegate.report(gauges, counters, histograms, meters, timers);
+    }
+
+    @Override
+    public void stop()
+    {
+        try
+        {
+            super.stop();
+        }
+        finally
+        {
+            delegate.stop();
+        }
+    }
+}
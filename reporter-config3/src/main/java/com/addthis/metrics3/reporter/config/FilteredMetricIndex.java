@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+/**
+ * The subset of a registry accepted by a filter, kept up to date by listening
+ * for additions and removals.  The filter runs once per registered metric
+ * rather than once per metric per reporter per tick, and reporting reads the
+ * already sorted maps instead of building new ones from the whole registry.
+ */
+public class FilteredMetricIndex implements MetricRegistryListener, MetricSource
+{
+    private final MetricFilter filter;
+
+    // set while attached
+    private volatile MetricRegistry registry;
+
+    private final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+    private final ConcurrentSkipListMap<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+    private final ConcurrentSkipListMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+    private final ConcurrentSkipListMap<String, Meter> meters = new ConcurrentSkipListMap<String, Meter>();
+    private final ConcurrentSkipListMap<String, Timer> timers = new ConcurrentSkipListMap<String, Timer>();
+
+    private final SortedMap<String, Gauge> gaugesView = Collections.unmodifiableSortedMap(gauges);
+    private final SortedMap<String, Counter> countersView = Collections.unmodifiableSortedMap(counters);
+    private final SortedMap<String, Histogram> histogramsView = Collections.unmodifiableSortedMap(histograms);
+    private final SortedMap<String, Meter> metersView = Collections.unmodifiableSortedMap(meters);
+    private final SortedMap<String, Timer> timersView = Collections.unmodifiableSortedMap(timers);
+
+    public FilteredMetricIndex(MetricFilter filter)
+    {
+        this.filter = filter;
+    }
+
+    /**
+     * Creates an index and registers it with the registry, which replays the
+     * metrics already registered.  Call {@link #detach} once the index is no
+     * longer used.
+     */
+    public static FilteredMetricIndex attach(MetricRegistry registry, MetricFilter filter)
+    {
+        FilteredMetricIndex index = new FilteredMetricIndex(filter);
+        index.registry = registry;
+        registry.addListener(index);
+        return index;
+    }
+
+    /**
+     * Stops tracking the registry the index was attached to.  The index keeps
+     * the metrics it holds.
+     */
+    public void detach()
+    {
+        MetricRegistry attached = registry;
+        if (attached != null)
+        {
+            attached.removeListener(this);
+            registry = null;
+        }
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge)
+    {
+        if (filter.matches(name, gauge))
+        {
+            gauges.put(name, gauge);
+        }
+    }
+
+    @Override
+    public void onGaugeRemoved(String name)
+    {
+        gauges.remove(name);
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter)
+    {
+        if (filter.matches(name, counter))
+        {
+            counters.put(name, counter);
+        }
+    }
+
+    @Override
+    public void onCounterRemoved(String name)
+    {
+        counters.remove(name);
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram)
+    {
+        if (filter.matches(name, histogram))
+        {
+            histograms.put(name, histogram);
+        }
+    }
+
+    @Override
+    public void onHistogramRemoved(String name)
+    {
+        histograms.remove(name);
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter)
+    {
+        if (filter.matches(name, meter))
+        {
+            meters.put(name, meter);
+        }
+    }
+
+    @Override
+    public void onMeterRemoved(String name)
+    {
+        meters.remove(name);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer)
+    {
+        if (filter.matches(name, timer))
+        {
+            timers.put(name, timer);
+        }
+    }
+
+    @Override
+    public void onTimerRemoved(String name)
+    {
+        timers.remove(name);
+    }
+
+    @Override
+    public SortedMap<String, Gauge> getGauges()
+    {
+        return gaugesView;
+    }
+
+    @Override
+    public SortedMap<String, Counter> getCounters()
+    {
+        return countersView;
+    }
+
+    @Override
+    public SortedMap<String, Histogram> getHistograms()
+    {
+        return histogramsView;
+    }
+
+    @Override
+    public SortedMap<String, Meter> getMeters()
+    {
+        return metersView;
+    }
+
+    @Override
+    public SortedMap<String, Timer> getTimers()
+    {
+        return timersView;
+    }
+}
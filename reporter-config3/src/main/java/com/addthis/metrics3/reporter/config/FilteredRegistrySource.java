@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.SortedMap;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Reads a registry through a filter on every call, as
+ * {@link com.codahale.metrics.ScheduledReporter#report()} does.
+ */
+class FilteredRegistrySource implements MetricSource
+{
+    private final MetricRegistry registry;
+    private final MetricFilter filter;
+
+    FilteredRegistrySource(MetricRegistry registry, MetricFilter filter)
+    {
+        this.registry = registry;
+        this.filter = filter;
+    }
+
+    @Override
+    public SortedMap<String, Gauge> getGauges()
+    {
+        return registry.getGauges(filter);
+    }
+
+    @Override
+    public SortedMap<String, Counter> getCounters()
+    {
+        return registry.getCounters(filter);
+    }
+
+    @Override
+    public SortedMap<String, Histogram> getHistograms()
+    {
+        return registry.getHistograms(filter);
+    }
+
+    @Override
+    public SortedMap<String, Meter> getMeters()
+    {
+        return registry.getMeters(filter);
+    }
+
+    @Override
+    public SortedMap<String, Timer> getTimers()
+    {
+        return registry.getTimers(filter);
+    }
+}
@@ -21,6 +21,7 @@ import java.util.List;
 import com.addthis.metrics.reporter.config.AbstractGangliaReporterConfig;
 import com.addthis.metrics.reporter.config.HostPort;
 
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ganglia.GangliaReporter;
 
@@ -32,22 +33,22 @@ import info.ganglia.gmetric4j.gmetric.GMetric;
 public class GangliaReporterConfig extends AbstractGangliaReporterConfig implements MetricsReporterConfigThree {
     private static final Logger log = LoggerFactory.getLogger(GangliaReporterConfig.class);
 
-    private GangliaReporter reporter;
+    private final ConfiguredReporters reporters = new ConfiguredReporters(this);
 
-    private void enableMetrics3(HostPort hostPort, MetricRegistry registry) throws IOException {
+    private void enableMetrics3(HostPort hostPort, MetricRegistry registry, MetricFilter filter) throws IOException {
         /**
          * browsing through https://github.com/ganglia/gmetric4j it appears that the
          * "ttl" parameter is ignored for GMetric.UDPAddressingMode.UNICAST
          */
-        reporter = GangliaReporter.forRegistry(registry)
+        GangliaReporter reporter = GangliaReporter.forRegistry(registry)
                                   .convertRatesTo(getRealRateunit())
                                   .convertDurationsTo(getRealDurationunit())
                                   .prefixedWith(groupPrefix)
-                                  .filter(MetricFilterTransformer.generateFilter(getPredicate()))
+                                  .filter(filter)
                                   .build(new GMetric(hostPort.getHost(), hostPort.getPort(),
                                                      GMetric.UDPAddressingMode.UNICAST, 1, true, null, getSpoofName()));
 
-        reporter.start(getPeriod(), getRealTimeunit());
+        reporters.start(reporter, "ganglia-reporter", registry, filter);
     }
 
     @Override
@@ -57,10 +58,11 @@ public class GangliaReporterConfig extends AbstractGangliaReporterConfig impleme
             return false;
         }
         List<HostPort> hosts = getFullHostList();
+        MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate(), registry);
         for (HostPort hostPort : hosts) {
             log.info("Enabling GangliaReporter to {}:{}", new Object[]{hostPort.getHost(), hostPort.getPort()});
             try {
-                enableMetrics3(hostPort, registry);
+                enableMetrics3(hostPort, registry, filter);
             } catch (Exception e) {
                 log.error("Faliure while enabling GangliaReporter", e);
                 return false;
@@ -69,10 +71,12 @@ public class GangliaReporterConfig extends AbstractGangliaReporterConfig impleme
         return true;
     }
 
+    void setContext(ReporterContext context) {
+        reporters.setContext(context);
+    }
+
     @Override public void report() {
-        if (reporter != null) {
-            reporter.report();
-        }
+        reporters.report();
     }
 
 
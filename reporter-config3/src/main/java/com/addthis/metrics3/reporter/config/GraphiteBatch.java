@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The encoded measurements of one tick, either plaintext lines or pickled
+ * tuples, kept back to back in one buffer with the end of each entry
+ * recorded so endpoints can split or frame them.  Reused from tick to tick:
+ * the buffer is direct so channels write it without copying, and the
+ * buffers handed out by {@link #frame} are the same ones every time, so
+ * they are only valid until the next call.
+ */
+final class GraphiteBatch
+{
+    private static final byte[] PICKLE_OPEN = {'(', 'l'};
+    private static final byte[] PICKLE_STOP = {'.'};
+
+    private final boolean pickled;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+    private ByteBuffer entries = buffer.duplicate();
+    private int[] ends = new int[256];
+    private int count;
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(4);
+    private final ByteBuffer open = ByteBuffer.wrap(PICKLE_OPEN);
+    private final ByteBuffer stop = ByteBuffer.wrap(PICKLE_STOP);
+    private final ByteBuffer[] message;
+
+    GraphiteBatch(boolean pickled)
+    {
+        this.pickled = pickled;
+        this.message = pickled ? new ByteBuffer[] {header, open, entries, stop} : new ByteBuffer[] {entries};
+    }
+
+    boolean isPickled()
+    {
+        return pickled;
+    }
+
+    void clear()
+    {
+        buffer.clear();
+        count = 0;
+    }
+
+    int size()
+    {
+        return count;
+    }
+
+    /**
+     * @return a buffer with room for at least the given number of bytes
+     */
+    ByteBuffer reserve(int bytes)
+    {
+        if (buffer.remaining() < bytes)
+        {
+            int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+            entries = buffer.duplicate();
+            message[pickled ? 2 : 0] = entries;
+        }
+        return buffer;
+    }
+
+    void endEntry()
+    {
+        if (count == ends.length)
+        {
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        ends[count++] = buffer.position();
+    }
+
+    int start(int entry)
+    {
+        return entry == 0 ? 0 : ends[entry - 1];
+    }
+
+    int end(int entry)
+    {
+        return ends[entry];
+    }
+
+    /**
+     * @return a view of the bytes of entries from (inclusive) to to
+     *         (exclusive), valid until the next call to this or
+     *         {@link #frame}
+     */
+    ByteBuffer slice(int from, int to)
+    {
+        entries.limit(end(to - 1));
+        entries.position(start(from));
+        return entries;
+    }
+
+    /**
+     * @return the number of bytes {@link #frame} returns for the entries from
+     *         (inclusive) to to (exclusive)
+     */
+    int framedSize(int from, int to)
+    {
+        int size = end(to - 1) - start(from);
+        return pickled ? 4 + PICKLE_OPEN.length + size + PICKLE_STOP.length : size;
+    }
+
+    /**
+     * @return the entries from (inclusive) to to (exclusive) as one message
+     *         for a carbon pickle receiver: a length header followed by a
+     *         pickled list of the tuples.  Plaintext needs no framing.
+     */
+    ByteBuffer[] frame(int from, int to)
+    {
+        slice(from, to);
+        if (pickled)
+        {
+            header.clear();
+            header.putInt(PICKLE_OPEN.length + entries.remaining() + PICKLE_STOP.length);
+            header.flip();
+            open.rewind();
+            stop.rewind();
+        }
+        return message;
+    }
+}
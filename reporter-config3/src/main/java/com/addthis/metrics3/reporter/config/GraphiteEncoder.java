@@ -0,0 +1,429 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Encodes a tick's metrics into a {@link GraphiteBatch} with the same names,
+ * measurements and number formatting as
+ * {@link com.codahale.metrics.graphite.GraphiteReporter}.
+ * <p>
+ * The encoded path of every measurement is kept from tick to tick along
+ * with the host the ring assigns it to, so a tick only writes the cached
+ * bytes, the value and the timestamp; numbers are formatted straight into
+ * the batch.  Registered as a listener on the registry so the paths of
+ * removed metrics are dropped.
+ */
+class GraphiteEncoder extends MetricRegistryListener.Base
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
+
+    private static final String[] GAUGE = {null};
+    private static final String[] COUNTER = {"count"};
+    private static final String[] HISTOGRAM = {
+            "count", "max", "mean", "min", "stddev", "p50", "p75", "p95", "p98", "p99", "p999"};
+    private static final String[] METER = {"count", "m1_rate", "m5_rate", "m15_rate", "mean_rate"};
+    private static final String[] TIMER = {
+            "max", "mean", "min", "stddev", "p50", "p75", "p95", "p98", "p99", "p999",
+            "count", "m1_rate", "m5_rate", "m15_rate", "mean_rate"};
+
+    // (S'name'\n(L1234L\nS'value'\ntta, as PickledGraphite writes each tuple
+    private static final byte[] PICKLE_NAME = {'(', 'S', '\''};
+    private static final byte[] PICKLE_TIMESTAMP = {'\'', '\n', '(', 'L'};
+    private static final byte[] PICKLE_VALUE = {'L', '\n', 'S', '\''};
+    private static final byte[] PICKLE_END = {'\'', '\n', 't', 't', 'a'};
+
+    /**
+     * Values at least this large go through {@link String#format}, as do
+     * values too close to a rounding tie to round from their scaled double.
+     */
+    private static final double FAST_FORMAT_LIMIT = 1e7;
+    private static final double TIE_MARGIN = 1e-5;
+
+    private final String prefix;
+    private final boolean pickled;
+    private final double rateFactor;
+    private final double durationFactor;
+    private final CarbonHashRing ring;
+    private final ConcurrentMap<String, Paths> paths = new ConcurrentHashMap<String, Paths>();
+
+    /**
+     * The timestamp of the current tick with its separators, written after
+     * the value in plaintext and before it in a pickle.
+     */
+    private final byte[] timestamp = new byte[32];
+    private int timestampLength;
+    private byte[] digits = new byte[32];
+
+    /**
+     * @param ring splits the metrics across one batch per host, or null to
+     *             put them all in one batch
+     */
+    GraphiteEncoder(String prefix, boolean pickled, TimeUnit rateUnit, TimeUnit durationUnit, CarbonHashRing ring)
+    {
+        this.prefix = prefix;
+        this.pickled = pickled;
+        this.ring = ring;
+        this.rateFactor = rateUnit.toSeconds(1);
+        this.durationFactor = 1.0 / durationUnit.toNanos(1);
+    }
+
+    void encode(GraphiteBatch[] batches, SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+                SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+                SortedMap<String, Timer> timers, long timestamp)
+    {
+        for (GraphiteBatch batch : batches)
+        {
+            batch.clear();
+        }
+        setTimestamp(timestamp);
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+        {
+            Object value = entry.getValue().getValue();
+            if (value instanceof Float || value instanceof Double)
+            {
+                add(batches, paths(entry.getKey(), GAUGE), 0, ((Number) value).doubleValue());
+            }
+            else if (value instanceof Byte || value instanceof Short || value instanceof Integer
+                     || value instanceof Long)
+            {
+                add(batches, paths(entry.getKey(), GAUGE), 0, ((Number) value).longValue());
+            }
+        }
+        for (Map.Entry<String, Counter> entry : counters.entrySet())
+        {
+            add(batches, paths(entry.getKey(), COUNTER), 0, entry.getValue().getCount());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+        {
+            Paths paths = paths(entry.getKey(), HISTOGRAM);
+            Histogram histogram = entry.getValue();
+            Snapshot snapshot = histogram.getSnapshot();
+            add(batches, paths, 0, histogram.getCount());
+            add(batches, paths, 1, snapshot.getMax());
+            add(batches, paths, 2, snapshot.getMean());
+            add(batches, paths, 3, snapshot.getMin());
+            add(batches, paths, 4, snapshot.getStdDev());
+            add(batches, paths, 5, snapshot.getMedian());
+            add(batches, paths, 6, snapshot.get75thPercentile());
+            add(batches, paths, 7, snapshot.get95thPercentile());
+            add(batches, paths, 8, snapshot.get98thPercentile());
+            add(batches, paths, 9, snapshot.get99thPercentile());
+            add(batches, paths, 10, snapshot.get999thPercentile());
+        }
+        for (Map.Entry<String, Meter> entry : meters.entrySet())
+        {
+            addMetered(batches, paths(entry.getKey(), METER), 0, entry.getValue());
+        }
+        for (Map.Entry<String, Timer> entry : timers.entrySet())
+        {
+            Paths paths = paths(entry.getKey(), TIMER);
+            Timer timer = entry.getValue();
+            Snapshot snapshot = timer.getSnapshot();
+            add(batches, paths, 0, duration(snapshot.getMax()));
+            add(batches, paths, 1, duration(snapshot.getMean()));
+            add(batches, paths, 2, duration(snapshot.getMin()));
+            add(batches, paths, 3, duration(snapshot.getStdDev()));
+            add(batches, paths, 4, duration(snapshot.getMedian()));
+            add(batches, paths, 5, duration(snapshot.get75thPercentile()));
+            add(batches, paths, 6, duration(snapshot.get95thPercentile()));
+            add(batches, paths, 7, duration(snapshot.get98thPercentile()));
+            add(batches, paths, 8, duration(snapshot.get99thPercentile()));
+            add(batches, paths, 9, duration(snapshot.get999thPercentile()));
+            addMetered(batches, paths, 10, timer);
+        }
+    }
+
+    private void addMetered(GraphiteBatch[] batches, Paths paths, int first, Metered meter)
+    {
+        add(batches, paths, first, meter.getCount());
+        add(batches, paths, first + 1, rate(meter.getOneMinuteRate()));
+        add(batches, paths, first + 2, rate(meter.getFiveMinuteRate()));
+        add(batches, paths, first + 3, rate(meter.getFifteenMinuteRate()));
+        add(batches, paths, first + 4, rate(meter.getMeanRate()));
+    }
+
+    private void add(GraphiteBatch[] batches, Paths paths, int measurement, long value)
+    {
+        add(batches, paths, measurement, formatLong(value));
+    }
+
+    private void add(GraphiteBatch[] batches, Paths paths, int measurement, double value)
+    {
+        add(batches, paths, measurement, formatDouble(value));
+    }
+
+    /**
+     * Writes one entry whose value has been formatted into the first
+     * {@code valueLength} bytes of {@link #digits}.
+     */
+    private void add(GraphiteBatch[] batches, Paths paths, int measurement, int valueLength)
+    {
+        GraphiteBatch batch = batches[paths.nodes == null ? 0 : paths.nodes[measurement]];
+        byte[] head = paths.heads[measurement];
+        ByteBuffer buffer = batch.reserve(head.length + valueLength + timestampLength + PICKLE_END.length);
+        buffer.put(head);
+        if (pickled)
+        {
+            buffer.put(timestamp, 0, timestampLength);
+            buffer.put(digits, 0, valueLength);
+            buffer.put(PICKLE_END);
+        }
+        else
+        {
+            buffer.put(digits, 0, valueLength);
+            buffer.put(timestamp, 0, timestampLength);
+        }
+        batch.endEntry();
+    }
+
+    private void setTimestamp(long seconds)
+    {
+        int length = formatLong(seconds);
+        timestampLength = 0;
+        if (pickled)
+        {
+            System.arraycopy(digits, 0, timestamp, 0, length);
+            System.arraycopy(PICKLE_VALUE, 0, timestamp, length, PICKLE_VALUE.length);
+            timestampLength = length + PICKLE_VALUE.length;
+        }
+        else
+        {
+            timestamp[0] = ' ';
+            System.arraycopy(digits, 0, timestamp, 1, length);
+            timestamp[length + 1] = '\n';
+            timestampLength = length + 2;
+        }
+    }
+
+    /**
+     * @return the cached paths of a metric, encoding them the first time it
+     *         is seen or if it is now a different kind of metric
+     */
+    private Paths paths(String name, String[] measurements)
+    {
+        Paths cached = paths.get(name);
+        if (cached == null || cached.measurements != measurements)
+        {
+            cached = new Paths(name, measurements);
+            paths.put(name, cached);
+        }
+        return cached;
+    }
+
+    int cachedPaths()
+    {
+        return paths.size();
+    }
+
+    byte[] getDigits()
+    {
+        return digits;
+    }
+
+    /**
+     * Formats a long as {@link Long#toString(long)} does into the start of
+     * {@link #digits}.
+     *
+     * @return the number of bytes written
+     */
+    int formatLong(long value)
+    {
+        if (value == Long.MIN_VALUE)
+        {
+            return fallback(Long.toString(value));
+        }
+        int end = digits.length;
+        int i = end;
+        long rest = Math.abs(value);
+        do
+        {
+            digits[--i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        while (rest != 0);
+        if (value < 0)
+        {
+            digits[--i] = '-';
+        }
+        return moveToStart(i, end);
+    }
+
+    /**
+     * Formats a double as {@code String.format(Locale.US, "%2.2f", value)}
+     * does into the start of {@link #digits}.  The formatter rounds the
+     * shortest decimal representation half up, so away from a tie rounding
+     * the value scaled by 100 gives the same cents; ties, huge values, NaN
+     * and the infinities are left to the formatter.
+     *
+     * @return the number of bytes written
+     */
+    int formatDouble(double value)
+    {
+        if (!(Math.abs(value) < FAST_FORMAT_LIMIT))
+        {
+            return fallback(String.format(Locale.US, "%2.2f", value));
+        }
+        double scaled = Math.abs(value) * 100;
+        long cents = (long) scaled;
+        double fraction = scaled - cents;
+        if (Math.abs(fraction - 0.5) < TIE_MARGIN)
+        {
+            return fallback(String.format(Locale.US, "%2.2f", value));
+        }
+        if (fraction > 0.5)
+        {
+            cents++;
+        }
+        int end = digits.length;
+        int i = end;
+        digits[--i] = (byte) ('0' + cents % 10);
+        cents /= 10;
+        digits[--i] = (byte) ('0' + cents % 10);
+        cents /= 10;
+        digits[--i] = '.';
+        do
+        {
+            digits[--i] = (byte) ('0' + cents % 10);
+            cents /= 10;
+        }
+        while (cents != 0);
+        // the formatter keeps the sign of negative values that round to zero
+        if (value < 0 || (value == 0 && 1 / value < 0))
+        {
+            digits[--i] = '-';
+        }
+        return moveToStart(i, end);
+    }
+
+    private int moveToStart(int from, int to)
+    {
+        System.arraycopy(digits, from, digits, 0, to - from);
+        return to - from;
+    }
+
+    private int fallback(String formatted)
+    {
+        byte[] bytes = formatted.getBytes(UTF_8);
+        if (bytes.length > digits.length)
+        {
+            digits = new byte[bytes.length];
+        }
+        System.arraycopy(bytes, 0, digits, 0, bytes.length);
+        return bytes.length;
+    }
+
+    private double rate(double rate)
+    {
+        return rate * rateFactor;
+    }
+
+    private double duration(double duration)
+    {
+        return duration * durationFactor;
+    }
+
+    @Override
+    public void onGaugeRemoved(String name)
+    {
+        paths.remove(name);
+    }
+
+    @Override
+    public void onCounterRemoved(String name)
+    {
+        paths.remove(name);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name)
+    {
+        paths.remove(name);
+    }
+
+    @Override
+    public void onMeterRemoved(String name)
+    {
+        paths.remove(name);
+    }
+
+    @Override
+    public void onTimerRemoved(String name)
+    {
+        paths.remove(name);
+    }
+
+    /**
+     * The encoded start of the entry of each measurement of one metric, up
+     * to the value in plaintext and up to the timestamp in a pickle, and the
+     * host the ring sends it to.
+     */
+    private final class Paths
+    {
+        final String[] measurements;
+        final byte[][] heads;
+        final int[] nodes;
+
+        Paths(String name, String[] measurements)
+        {
+            this.measurements = measurements;
+            this.heads = new byte[measurements.length][];
+            this.nodes = ring == null ? null : new int[measurements.length];
+            for (int i = 0; i < measurements.length; i++)
+            {
+                String path = WHITESPACE.matcher(MetricRegistry.name(prefix, name, measurements[i])).replaceAll("-");
+                byte[] bytes = path.getBytes(UTF_8);
+                if (pickled)
+                {
+                    ByteBuffer head = ByteBuffer.allocate(
+                            PICKLE_NAME.length + bytes.length + PICKLE_TIMESTAMP.length);
+                    head.put(PICKLE_NAME).put(bytes).put(PICKLE_TIMESTAMP);
+                    heads[i] = head.array();
+                }
+                else
+                {
+                    heads[i] = new byte[bytes.length + 1];
+                    System.arraycopy(bytes, 0, heads[i], 0, bytes.length);
+                    heads[i][bytes.length] = ' ';
+                }
+                if (nodes != null)
+                {
+                    nodes[i] = ring.node(path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import com.codahale.metrics.MetricRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One carbon destination of a {@link GraphiteFanOutReporter}.  Each endpoint
+ * keeps its own connection and failure count, so an unreachable relay only
+ * loses its own share of a tick.  The endpoints of a tick are written one
+ * after the other, so a send must give up within a bounded time rather than
+ * hold up the endpoints after it.
+ */
+abstract class GraphiteEndpoint
+{
+    private static final Logger log = LoggerFactory.getLogger(GraphiteEndpoint.class);
+
+    protected final InetSocketAddress address;
+    private int failures;
+
+    GraphiteEndpoint(InetSocketAddress address)
+    {
+        this.address = address;
+    }
+
+    /**
+     * Writes every entry of the batch, reporting rather than throwing errors.
+     */
+    void report(GraphiteBatch batch)
+    {
+        if (!isReady())
+        {
+            log.debug("Skipping tick to Graphite {} until reconnecting", address);
+            return;
+        }
+        try
+        {
+            send(batch);
+            failures = 0;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            failures++;
+            log.warn("Unable to report to Graphite " + address + " (" + failures + " failures in a row)", e);
+            close();
+        }
+    }
+
+    /**
+     * Looks the host up again if it did not resolve when the config was
+     * read, so a relay whose name becomes known later is picked up.
+     *
+     * @throws UnknownHostException if the host still does not resolve
+     */
+    InetSocketAddress resolve() throws UnknownHostException
+    {
+        if (!address.isUnresolved())
+        {
+            return address;
+        }
+        InetSocketAddress resolved = new InetSocketAddress(address.getHostString(), address.getPort());
+        if (resolved.isUnresolved())
+        {
+            throw new UnknownHostException("Unable to resolve Graphite host " + address.getHostString());
+        }
+        return resolved;
+    }
+
+    /**
+     * @return false to drop ticks without counting them as failures, such as
+     *         while waiting to reconnect
+     */
+    boolean isReady()
+    {
+        return true;
+    }
+
+    abstract void send(GraphiteBatch batch) throws IOException;
+
+    /**
+     * Adds the counts this endpoint keeps, if any, to the registry.
+     */
+    void registerMetrics(MetricRegistry registry)
+    {
+    }
+
+    /**
+     * Removes what {@link #registerMetrics} added, once the endpoint is no
+     * longer used.
+     */
+    void unregisterMetrics()
+    {
+    }
+
+    abstract void close();
+
+    int getFailures()
+    {
+        return failures;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + address + "]";
+    }
+}
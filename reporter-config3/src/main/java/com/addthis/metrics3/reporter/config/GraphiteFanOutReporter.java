@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Timer;
+
+/**
+ * Reports to every host of a graphite config from one encoding of each
+ * tick.  Snapshots are taken and names and values formatted once no matter
+ * how many relays there are; each relay only costs the write.  With a
+ * {@link CarbonHashRing} each host is sent only the metrics the ring assigns
+ * to it instead of all of them.
+ * <p>
+ * Metric paths are encoded once and kept until the metric is removed from
+ * the registry, so in steady state a tick allocates next to nothing beyond
+ * what the registry and the snapshots themselves need.
+ */
+public class GraphiteFanOutReporter extends ScheduledReporter
+{
+    private final MetricRegistry registry;
+    private final List<GraphiteEndpoint> endpoints;
+    private final GraphiteEncoder encoder;
+    private final GraphiteBatch[] batches;
+    private final Clock clock;
+
+    GraphiteFanOutReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit,
+                           String prefix, boolean pickled, List<GraphiteEndpoint> endpoints, CarbonHashRing ring,
+                           Clock clock)
+    {
+        super(registry, "graphite-reporter", filter, rateUnit, durationUnit);
+        this.registry = registry;
+        this.endpoints = new ArrayList<GraphiteEndpoint>(endpoints);
+        this.encoder = new GraphiteEncoder(prefix, pickled, rateUnit, durationUnit, ring);
+        this.batches = new GraphiteBatch[ring == null ? 1 : endpoints.size()];
+        for (int i = 0; i < batches.length; i++)
+        {
+            batches[i] = new GraphiteBatch(pickled);
+        }
+        this.clock = clock;
+        registry.addListener(encoder);
+    }
+
+    @Override
+    public synchronized void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+                                    SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+                                    SortedMap<String, Timer> timers)
+    {
+        encoder.encode(batches, gauges, counters, histograms, meters, timers, clock.getTime() / 1000);
+        for (int i = 0; i < endpoints.size(); i++)
+        {
+            endpoints.get(i).report(batches[batches.length == 1 ? 0 : i]);
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        try
+        {
+            super.stop();
+        }
+        finally
+        {
+            registry.removeListener(encoder);
+            synchronized (this)
+            {
+                for (GraphiteEndpoint endpoint : endpoints)
+                {
+                    endpoint.close();
+                    endpoint.unregisterMetrics();
+                }
+            }
+        }
+    }
+
+    List<GraphiteEndpoint> getEndpoints()
+    {
+        return endpoints;
+    }
+
+    GraphiteEncoder getEncoder()
+    {
+        return encoder;
+    }
+}
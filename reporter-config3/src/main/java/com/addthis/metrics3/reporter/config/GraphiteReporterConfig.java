@@ -16,16 +16,13 @@ package com.addthis.metrics3.reporter.config;
 
 import java.net.InetSocketAddress;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import com.addthis.metrics.reporter.config.AbstractGraphiteReporterConfig;
 import com.addthis.metrics.reporter.config.HostPort;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.graphite.Graphite;
-import com.codahale.metrics.graphite.GraphiteReporter;
-import com.codahale.metrics.graphite.GraphiteSender;
-import com.codahale.metrics.graphite.GraphiteUDP;
-import com.codahale.metrics.graphite.PickledGraphite;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,67 +31,59 @@ public class GraphiteReporterConfig extends AbstractGraphiteReporterConfig imple
 {
     private static final Logger log = LoggerFactory.getLogger(GraphiteReporterConfig.class);
 
-    private GraphiteReporter reporter;
+    private final ConfiguredReporters reporters = new ConfiguredReporters(this);
 
-    private void enableMetrics3(HostPort hostPort, MetricRegistry registry)
+    private GraphiteEndpoint newEndpoint(HostPort hostPort)
     {
         InetSocketAddress addr = new InetSocketAddress(hostPort.getHost(), hostPort.getPort());
-        GraphiteSender sender;
-        if (isPickled())
+        if (isUdp())
         {
-            sender = isUdp() ? newPickledGraphiteUDP(addr) : new PickledGraphite(addr);
+            return new UdpGraphiteEndpoint(addr, getUdpPayloadSize());
         }
-        else
-        {
-            sender = isUdp() ? new GraphiteUDP(addr) : new Graphite(addr);
-        }
-
-        reporter = GraphiteReporter.forRegistry(registry)
-                .convertRatesTo(getRealRateunit())
-                .convertDurationsTo(getRealDurationunit())
-                .prefixedWith(getResolvedPrefix())
-                .filter(MetricFilterTransformer.generateFilter(getPredicate()))
-                .build(sender);
-        reporter.start(getPeriod(), getRealTimeunit());
+        return new TcpGraphiteEndpoint(addr, isKeepAlive(), getConnectTimeout(), getSocketTimeout(),
+                                       TcpGraphiteEndpoint.MIN_BACKOFF_MILLIS, TcpGraphiteEndpoint.MAX_BACKOFF_MILLIS);
     }
 
-    // using reflection until PickledGraphiteUDP is merged, released, and depended upon
-    private static GraphiteSender newPickledGraphiteUDP(InetSocketAddress addr)
+    private static void registerMetrics(MetricRegistry registry, GraphiteEndpoint endpoint)
     {
         try
         {
-            return (GraphiteSender) Class.forName("com.codahale.metrics.graphite.PickledGraphiteUDP")
-                    .getConstructor(InetSocketAddress.class)
-                    .newInstance(addr);
+            endpoint.registerMetrics(registry);
         }
-        catch (ReflectiveOperationException ex)
+        catch (IllegalArgumentException e)
         {
-            throw new IllegalStateException("PickledGraphiteUDP not found in metrics-graphite jar file");
+            // a metric of another type already has the name
+            log.warn("Not registering datagram counts of {}: {}", endpoint, e.getMessage());
         }
     }
 
+    void setContext(ReporterContext context)
+    {
+        reporters.setContext(context);
+    }
+
     @Override
     public void report() {
-        if (reporter != null) {
-            reporter.report();
-        }
+        reporters.report();
     }
 
     @Override
     public boolean enable(MetricRegistry registry)
     {
-        boolean success = setup("com.codahale.metrics.graphite.GraphiteReporter");
-        if (!success)
+        // reports are written by this module, so unlike setup() there is no optional metrics-graphite class to check
+        List<HostPort> hosts = getFullHostList();
+        if (hosts == null || hosts.isEmpty())
         {
+            log.error("No hosts specified, cannot enable GraphiteReporter");
             return false;
         }
-        List<HostPort> hosts = getFullHostList();
+        List<GraphiteEndpoint> endpoints = new ArrayList<GraphiteEndpoint>();
         for (HostPort hostPort : hosts)
         {
             log.info("Enabling GraphiteReporter to {}:{}", new Object[]{hostPort.getHost(), hostPort.getPort()});
             try
             {
-                enableMetrics3(hostPort, registry);
+                endpoints.add(newEndpoint(hostPort));
             }
             catch (Exception e)
             {
@@ -102,6 +91,24 @@ public class GraphiteReporterConfig extends AbstractGraphiteReporterConfig imple
                 return false;
             }
         }
+        try
+        {
+            // one reporter encodes each tick once for every host
+            MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate(), registry);
+            CarbonHashRing ring = isConsistentHash() ? new CarbonHashRing(hosts) : null;
+            for (GraphiteEndpoint endpoint : endpoints)
+            {
+                registerMetrics(registry, endpoint);
+            }
+            GraphiteFanOutReporter reporter = new GraphiteFanOutReporter(registry, filter, getRealRateunit(),
+                    getRealDurationunit(), getResolvedPrefix(), isPickled(), endpoints, ring, reporters.getClock());
+            reporters.start(reporter, "graphite-reporter", registry, filter);
+        }
+        catch (Exception e)
+        {
+            log.error("Failed to enable GraphiteReporter", e);
+            return false;
+        }
         return true;
     }
 
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 
 import com.addthis.metrics.reporter.config.AbstractInfluxDBReporterConfig;
 import com.addthis.metrics.reporter.config.HostPort;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.izettle.metrics.influxdb.InfluxDbHttpSender;
 import com.izettle.metrics.influxdb.InfluxDbReporter;
@@ -32,27 +33,31 @@ public class InfluxDBReporterConfig extends AbstractInfluxDBReporterConfig imple
 {
     private static final Logger log = LoggerFactory.getLogger(InfluxDBReporterConfig.class);
 
-    private InfluxDbReporter reporter;
+    private final ConfiguredReporters reporters = new ConfiguredReporters(this);
 
     private void enableMetrics3(HostPort hostPort, MetricRegistry registry) throws Exception
     {
         InfluxDbSender influxDbSender = new InfluxDbHttpSender(getProtocol(), hostPort.getHost(), hostPort.getPort(),
             getDbName(), getAuth(), getRealRateunit(), getConnectionTimeout(), getReadTimeout(), getResolvedPrefix());
 
-        reporter = InfluxDbReporter.forRegistry(registry).convertRatesTo(getRealRateunit())
+        MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate(), registry);
+        InfluxDbReporter reporter = InfluxDbReporter.forRegistry(registry).convertRatesTo(getRealRateunit())
             .convertDurationsTo(getRealDurationunit()).withTags(getResolvedTags())
             .measurementMappings(getMeasurementMappings())
-            .filter(MetricFilterTransformer.generateFilter(getPredicate())).build(influxDbSender);
+            .filter(filter).build(influxDbSender);
 
-        reporter.start(getPeriod(), getRealTimeunit());
+        reporters.start(reporter, "influxDb-reporter", registry, filter);
+    }
+
+    void setContext(ReporterContext context)
+    {
+        reporters.setContext(context);
     }
 
     @Override
     public void report()
     {
-        if (reporter != null) {
-            reporter.report();
-        }
+        reporters.report();
     }
 
     @Override
@@ -15,12 +15,19 @@
 package com.addthis.metrics3.reporter.config;
 
 import com.addthis.metrics.reporter.config.PredicateConfig;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
 import com.codahale.metrics.Timer;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,19 +37,119 @@ public class MetricFilterTransformer
 
     private static final Logger log = LoggerFactory.getLogger(MetricFilterTransformer.class);
 
-    private static class PredicateConfigFilter implements MetricFilter
+    // numbers the hit ratio gauges of the filters with a cache
+    private static final AtomicInteger cachedFilters = new AtomicInteger();
+
+    static class PredicateConfigFilter implements MetricFilter
     {
         final PredicateConfig predicate;
 
+        // name -> allowed, null unless the predicate sets a cacheSize
+        private final ConcurrentMap<String, Boolean> decisions;
+        private final int maxCacheSize;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        // set while an eviction listener and the hit ratio gauge are registered
+        private MetricRegistry registry;
+        private EvictionListener evictionListener;
+        private String hitRatioName;
+
         PredicateConfigFilter(PredicateConfig predicate)
         {
             this.predicate = predicate;
+            this.maxCacheSize = predicate.getCacheSize();
+            this.decisions = maxCacheSize > 0 ? new ConcurrentHashMap<String, Boolean>() : null;
         }
 
         @Override
         public boolean matches(String name, Metric metric)
         {
-            log.trace("Checking Metric name: {} {}", new Object[] {name, unqualifyMetricName(name)});
+            if (decisions == null)
+            {
+                return allowName(name);
+            }
+            Boolean cached = decisions.get(name);
+            if (cached != null)
+            {
+                hits.incrementAndGet();
+                return cached;
+            }
+            misses.incrementAndGet();
+            boolean allowed = allowName(name);
+            // once full, new names are decided every time until removals make room
+            if (decisions.size() < maxCacheSize)
+            {
+                decisions.put(name, allowed);
+            }
+            return allowed;
+        }
+
+        /**
+         * @return fraction of {@link #matches(String, Metric)} calls answered
+         *         from the decision cache, or 0 if it is disabled or unused
+         */
+        double getCacheHitRatio()
+        {
+            long h = hits.get();
+            long total = h + misses.get();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        int getCacheSize()
+        {
+            return decisions == null ? 0 : decisions.size();
+        }
+
+        void evict(String name)
+        {
+            if (decisions != null)
+            {
+                decisions.remove(name);
+            }
+        }
+
+        synchronized void attach(MetricRegistry registry)
+        {
+            this.registry = registry;
+            this.evictionListener = new EvictionListener(this);
+            registry.addListener(evictionListener);
+            String name = MetricRegistry.name(MetricFilterTransformer.class,
+                                              "predicate" + cachedFilters.incrementAndGet(), "cacheHitRatio");
+            registry.register(name, new Gauge<Double>()
+            {
+                @Override
+                public Double getValue()
+                {
+                    return getCacheHitRatio();
+                }
+            });
+            this.hitRatioName = name;
+        }
+
+        synchronized void detach()
+        {
+            if (registry != null)
+            {
+                registry.removeListener(evictionListener);
+                registry.remove(hitRatioName);
+                registry = null;
+                evictionListener = null;
+                hitRatioName = null;
+            }
+        }
+
+        synchronized String getHitRatioName()
+        {
+            return hitRatioName;
+        }
+
+        private boolean allowName(String name)
+        {
+            if (log.isTraceEnabled())
+            {
+                log.trace("Checking Metric name: {} {}", new Object[] {name, unqualifyMetricName(name)});
+            }
             if (predicate.getUseQualifiedName())
             {
                 return predicate.allowString(name);
@@ -115,6 +222,49 @@ public class MetricFilterTransformer
 
     }
 
+    /**
+     * Drops cached decisions for metrics as they are removed from the registry.
+     */
+    private static class EvictionListener extends MetricRegistryListener.Base
+    {
+        private final PredicateConfigFilter filter;
+
+        EvictionListener(PredicateConfigFilter filter)
+        {
+            this.filter = filter;
+        }
+
+        @Override
+        public void onGaugeRemoved(String name)
+        {
+            filter.evict(name);
+        }
+
+        @Override
+        public void onCounterRemoved(String name)
+        {
+            filter.evict(name);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name)
+        {
+            filter.evict(name);
+        }
+
+        @Override
+        public void onMeterRemoved(String name)
+        {
+            filter.evict(name);
+        }
+
+        @Override
+        public void onTimerRemoved(String name)
+        {
+            filter.evict(name);
+        }
+    }
+
     public static MetricFilter generateFilter(PredicateConfig predicate)
     {
         if (predicate == null)
@@ -127,4 +277,38 @@ public class MetricFilterTransformer
         }
     }
 
+    /**
+     * Like {@link #generateFilter(PredicateConfig)}, but when the predicate
+     * enables the decision cache its entries are also evicted as metrics are
+     * removed from the registry, and the fraction of decisions answered from
+     * the cache is registered as the gauge
+     * {@code com.addthis.metrics3.reporter.config.MetricFilterTransformer.predicate<n>.cacheHitRatio},
+     * with the filters numbered in the order they are created.  Pass the
+     * filter to {@link #detach} once it is no longer used to remove the
+     * listener and the gauge.
+     */
+    public static MetricFilter generateFilter(PredicateConfig predicate, MetricRegistry registry)
+    {
+        MetricFilter filter = generateFilter(predicate);
+        if (filter instanceof PredicateConfigFilter && predicate.getCacheSize() > 0)
+        {
+            ((PredicateConfigFilter) filter).attach(registry);
+        }
+        return filter;
+    }
+
+    /**
+     * Removes the listener and gauge
+     * {@link #generateFilter(PredicateConfig, MetricRegistry)} registered for
+     * the filter, if any.  Does nothing for other filters, or if called
+     * again.
+     */
+    public static void detach(MetricFilter filter)
+    {
+        if (filter instanceof PredicateConfigFilter)
+        {
+            ((PredicateConfigFilter) filter).detach();
+        }
+    }
+
 }
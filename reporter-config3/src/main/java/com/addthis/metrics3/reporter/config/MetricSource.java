@@ -0,0 +1,41 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.SortedMap;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+/**
+ * Supplies the maps handed to
+ * {@link com.codahale.metrics.ScheduledReporter#report(SortedMap, SortedMap, SortedMap, SortedMap, SortedMap)}
+ * on each tick, in place of the reporter querying the registry itself.
+ */
+public interface MetricSource
+{
+    public SortedMap<String, Gauge> getGauges();
+
+    public SortedMap<String, Counter> getCounters();
+
+    public SortedMap<String, Histogram> getHistograms();
+
+    public SortedMap<String, Meter> getMeters();
+
+    public SortedMap<String, Timer> getTimers();
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.addthis.metrics3.reporter.config.prometheus.TextExpositionWriter;
+import com.codahale.metrics.Clock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a {@link TextExpositionWriter} at {@code /metrics} from the JDK's
+ * http server, for the {@code http} type of {@link PrometheusReporterConfig}.
+ * Scrapes run on a fixed pool of threads behind a bounded queue; once both are
+ * full the accepting thread serves the scrape itself, which holds back new
+ * connections until the pool catches up.  Bodies are gzipped when the scraper
+ * accepts it and the connection is kept alive for the next scrape.  Without a
+ * cache, each body is streamed from the writer as a chunked response, so a
+ * scrape holds a fixed amount of memory whatever the size of the registry.
+ * With a cache time to live, a body is rendered in full and it and its gzipped
+ * form are reused by the scrapes that arrive within it.
+ */
+class PrometheusHttpServer implements HttpHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(PrometheusHttpServer.class);
+
+    static final String PATH = "/metrics";
+
+    private final TextExpositionWriter writer;
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+    private final PrometheusScrapeCache<Body> cache;
+
+    /**
+     * Binds the address; scrapes are served once {@link #start} is called.
+     *
+     * @param cacheTtl milliseconds a body is reused for, or 0 to render
+     *                 each scrape
+     */
+    PrometheusHttpServer(InetSocketAddress address, TextExpositionWriter writer, int threads, int queueSize,
+                         long cacheTtl) throws IOException {
+        this.writer = writer;
+        this.cache = cacheTtl <= 0 ? null : new PrometheusScrapeCache<Body>(cacheTtl, TimeUnit.MILLISECONDS,
+                                                                            Clock.defaultClock()) {
+            // size of the last body, to size the next one's buffer
+            private int sizeHint = 8192;
+
+            @Override
+            protected Body load() {
+                ByteArrayOutputStream body = new ByteArrayOutputStream(sizeHint);
+                try {
+                    writer.write(body);
+                    sizeHint = body.size();
+                    return new Body(body.toByteArray());
+                } catch (IOException e) {
+                    // not thrown writing to memory
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        this.server = HttpServer.create(address, 0);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<Runnable>(queueSize),
+                                               new ReporterScheduler.NamedThreadFactory("prometheus-http"),
+                                               new ThreadPoolExecutor.CallerRunsPolicy());
+        server.setExecutor(executor);
+        server.createContext(PATH, this);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    /**
+     * Closes the listening socket and open connections without waiting for
+     * scrapes in progress, and closes the writer.
+     */
+    void stop() {
+        try {
+            server.stop(0);
+            executor.shutdownNow();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return the bound address, with the port picked by the system when
+     *         the configured one was 0
+     */
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * The exchange is closed only once the response is complete.  If the
+     * writer fails part way through a streamed body the exception is left to
+     * the server, which drops the connection, so that the scraper sees a
+     * failed scrape rather than a truncated body that looks complete.
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+
+        boolean gzip = acceptsGzip(exchange.getRequestHeaders());
+        if (cache == null) {
+            setHeaders(exchange, gzip);
+            if (head) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, 0);
+                try {
+                    stream(exchange.getResponseBody(), gzip);
+                } catch (RuntimeException e) {
+                    log.error("Failed to render prometheus metrics", e);
+                    throw e;
+                }
+            }
+            exchange.close();
+            return;
+        }
+
+        byte[] body;
+        try {
+            body = cache.get().bytes(gzip);
+        } catch (RuntimeException e) {
+            log.error("Failed to render prometheus metrics", e);
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+        setHeaders(exchange, gzip);
+        if (head) {
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+        exchange.close();
+    }
+
+    private static void setHeaders(HttpExchange exchange, boolean gzip) {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", TextExpositionWriter.CONTENT_TYPE_004);
+        headers.set("Vary", "Accept-Encoding");
+        if (gzip) {
+            headers.set("Content-Encoding", "gzip");
+        }
+    }
+
+    private void stream(OutputStream out, boolean gzip) throws IOException {
+        if (gzip) {
+            GZIPOutputStream compressed = new GZIPOutputStream(out, 8192);
+            writer.write(compressed);
+            compressed.finish();
+        } else {
+            writer.write(out);
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(bytes.length / 4);
+        GZIPOutputStream out = new GZIPOutputStream(body, 8192);
+        out.write(bytes);
+        out.finish();
+        return body.toByteArray();
+    }
+
+    static boolean acceptsGzip(Headers headers) {
+        List<String> values = headers.get("Accept-Encoding");
+        if (values == null) {
+            return false;
+        }
+        for (String value : values) {
+            for (String encoding : value.split(",")) {
+                int parameters = encoding.indexOf(';');
+                if (parameters >= 0) {
+                    encoding = encoding.substring(0, parameters);
+                }
+                if (encoding.trim().equalsIgnoreCase("gzip")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A cached body, gzipped by the first scrape that asks for it that way.
+     */
+    private static final class Body {
+        private final byte[] plain;
+        private byte[] gzipped;
+
+        Body(byte[] plain) {
+            this.plain = plain;
+        }
+
+        synchronized byte[] bytes(boolean gzip) throws IOException {
+            if (!gzip) {
+                return plain;
+            }
+            if (gzipped == null) {
+                gzipped = gzip(plain);
+            }
+            return gzipped;
+        }
+    }
+}
@@ -46,6 +46,7 @@ public class PrometheusReporter extends ScheduledReporter {
     private final String address;
     private final String job;
     private final CollectorRegistry registry = new CollectorRegistry();
+    private final MetricRegistryDecorator decorator;
 
     public PrometheusReporter(String address,
                               String job,
@@ -61,7 +62,8 @@ public class PrometheusReporter extends ScheduledReporter {
         this.pushGateway = new PushGateway(address);
         this.address = address;
         this.job = job;
-        this.registry.register(new MetricRegistryDecorator(registry, job, labels));
+        this.decorator = new MetricRegistryDecorator(registry, job, labels, filter);
+        this.registry.register(decorator);
     }
 
     @Override
@@ -74,4 +76,13 @@ public class PrometheusReporter extends ScheduledReporter {
             logger.error("failed to report prometheus metrics to {}", address, ex);
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public void stop() {
+        try {
+            super.stop();
+        } finally {
+            decorator.close();
+        }
+    }
+}
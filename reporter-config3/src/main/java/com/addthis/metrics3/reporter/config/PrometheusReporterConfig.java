@@ -14,19 +14,24 @@
 
 package com.addthis.metrics3.reporter.config;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.addthis.metrics.reporter.config.AbstractPrometheusReporterConfig;
 import com.addthis.metrics.reporter.config.HostPort;
 import com.addthis.metrics3.reporter.config.prometheus.MetricRegistryDecorator;
+import com.addthis.metrics3.reporter.config.prometheus.TextExpositionWriter;
 
+import com.codahale.metrics.Clock;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.exporter.MetricsServlet;
 
@@ -35,10 +40,16 @@ public class PrometheusReporterConfig extends AbstractPrometheusReporterConfig i
     private static final Logger log = LoggerFactory.getLogger(PrometheusReporterConfig.class);
     private static final String SERVLET_CLASS = "io.prometheus.client.exporter.MetricsServlet";
     private static final String SENDER_CLASS = "io.prometheus.client.exporter.PushGateway";
+    private static final String HTTP_SERVER_CLASS = "com.sun.net.httpserver.HttpServer";
 
 
-    private final List<PrometheusReporter> reporters = new ArrayList<>();
+    private final ConfiguredReporters reporters = new ConfiguredReporters(this);
     private MetricRegistry registry;
+    private volatile PrometheusHttpServer httpServer;
+    private MetricFilter httpFilter;
+    private CollectorRegistry servletRegistry;
+    private MetricRegistryDecorator servletDecorator;
+    private MetricFilter servletFilter;
 
     public PrometheusReporterConfig() {
         // Hack to support servlet type w/o period failing validation.
@@ -46,7 +57,10 @@ public class PrometheusReporterConfig extends AbstractPrometheusReporterConfig i
     }
 
     @Override
-    public boolean enable(MetricRegistry registry) {
+    public synchronized boolean enable(MetricRegistry registry) {
+        // enabling again starts over rather than leaving the first endpoint
+        // or reporters running
+        stop();
         this.registry = registry;
 
 
@@ -59,6 +73,10 @@ public class PrometheusReporterConfig extends AbstractPrometheusReporterConfig i
             return true;
         }
 
+        if (getType().equals(Type.http)) {
+            return startHttpServer(registry);
+        }
+
         // If we reached here then the config is for a pushgateway setup.
         if (!isClassAvailable(SENDER_CLASS)) {
             log.error("Tried to enable Prometheus Reporter, but class {} was not found", SENDER_CLASS);
@@ -71,8 +89,8 @@ public class PrometheusReporterConfig extends AbstractPrometheusReporterConfig i
             return false;
         }
 
+        MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate(), registry);
         for (HostPort hostPort : hostPorts) {
-            MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate());
             PrometheusReporter reporter = new PrometheusReporter(
                     String.format("%s:%d", hostPort.getHost(), hostPort.getPort()),
                     getJob(),
@@ -84,18 +102,82 @@ public class PrometheusReporterConfig extends AbstractPrometheusReporterConfig i
                     getRealDurationunit()
             );
 
-            reporter.start(getPeriod(), getRealTimeunit());
-            reporters.add(reporter);
+            reporters.start(reporter, "prometheus-reporter", registry, filter);
         }
 
         return true;
     }
 
+    private boolean startHttpServer(MetricRegistry registry) {
+        if (!isClassAvailable(HTTP_SERVER_CLASS)) {
+            log.error("Tried to enable Prometheus http endpoint, but class {} was not found", HTTP_SERVER_CLASS);
+            return false;
+        }
+        if (getHttpPort() == null) {
+            log.error("Prometheus http endpoint expects an httpPort.");
+            return false;
+        }
+
+        InetSocketAddress address = getHttpHost() == null
+                                    ? new InetSocketAddress(getHttpPort())
+                                    : new InetSocketAddress(getHttpHost(), getHttpPort());
+        MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate(), registry);
+        TextExpositionWriter writer = new TextExpositionWriter(registry, getJob(), getResolvedLabels(), filter);
+        try {
+            httpServer = new PrometheusHttpServer(address, writer, getHttpThreads(), getHttpQueueSize(),
+                                                  getScrapeCacheTtl());
+            httpFilter = filter;
+        } catch (IOException e) {
+            writer.close();
+            MetricFilterTransformer.detach(filter);
+            log.error("Failed to bind the Prometheus http endpoint to {}", address, e);
+            return false;
+        }
+        httpServer.start();
+        log.info("Serving Prometheus metrics at http://{}:{}{}", getHttpHost() == null ? "*" : getHttpHost(),
+                 httpServer.getAddress().getPort(), PrometheusHttpServer.PATH);
+        return true;
+    }
+
+    /**
+     * Stops the http endpoint or the pushgateway reporters started by
+     * {@link #enable} and removes the registry listeners they added, as well
+     * as those of the servlet's collector.  Does nothing if nothing was
+     * started.  Servlets handed out before keep serving, but no longer see
+     * metrics being removed.
+     */
+    public synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop();
+            httpServer = null;
+            MetricFilterTransformer.detach(httpFilter);
+            httpFilter = null;
+        }
+        if (servletDecorator != null) {
+            servletDecorator.close();
+            MetricFilterTransformer.detach(servletFilter);
+            servletRegistry = null;
+            servletDecorator = null;
+            servletFilter = null;
+        }
+        reporters.stop();
+    }
+
+    /**
+     * @return the address the http endpoint is bound to, or null when it is
+     *         not running
+     */
+    public InetSocketAddress getHttpAddress() {
+        return httpServer == null ? null : httpServer.getAddress();
+    }
+
+    void setContext(ReporterContext context) {
+        reporters.setContext(context);
+    }
+
     @Override
     public void report() {
-        for (PrometheusReporter reporter : reporters) {
-            reporter.report();
-        }
+        reporters.report();
     }
 
     @Override
@@ -104,8 +186,48 @@ public class PrometheusReporterConfig extends AbstractPrometheusReporterConfig i
     }
 
     public MetricsServlet getMetricsServlet() {
-        CollectorRegistry collectorRegistry = new CollectorRegistry();
-        collectorRegistry.register(new MetricRegistryDecorator(registry, job, getResolvedLabels()));
-        return new MetricsServlet(collectorRegistry);
+        return new MetricsServlet(getServletRegistry());
+    }
+
+    /**
+     * @return the collectors the servlets serve, built on the first call
+     *         after {@link #enable} and shared by every servlet until
+     *         {@link #stop}
+     */
+    synchronized CollectorRegistry getServletRegistry() {
+        if (servletRegistry == null) {
+            servletFilter = MetricFilterTransformer.generateFilter(getPredicate(), registry);
+            servletDecorator = new MetricRegistryDecorator(registry, job, getResolvedLabels(), servletFilter);
+            Collector collector = servletDecorator;
+            if (getScrapeCacheTtl() > 0) {
+                collector = new CachingCollector(collector, getScrapeCacheTtl());
+            }
+            servletRegistry = new CollectorRegistry();
+            servletRegistry.register(collector);
+        }
+        return servletRegistry;
+    }
+
+    /**
+     * Reuses the samples of a collector for the scrape cache time to live.
+     * The servlet still formats them on every scrape.
+     */
+    static class CachingCollector extends Collector {
+        private final PrometheusScrapeCache<List<MetricFamilySamples>> cache;
+
+        CachingCollector(final Collector collector, long ttl) {
+            this.cache = new PrometheusScrapeCache<List<MetricFamilySamples>>(ttl, TimeUnit.MILLISECONDS,
+                                                                               Clock.defaultClock()) {
+                @Override
+                protected List<MetricFamilySamples> load() {
+                    return collector.collect();
+                }
+            };
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            return cache.get();
+        }
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+
+/**
+ * Keeps the result of a scrape for a time to live, so that scrapes arriving
+ * within it, such as those of several Prometheus servers scraping the same
+ * target, share one collection.  One collection runs at a time: scrapes that
+ * find the result expired while another is being loaded wait for that one
+ * instead of starting their own.  The age of a result counts from the start
+ * of its collection.
+ */
+abstract class PrometheusScrapeCache<T> {
+
+    private final long ttlNanos;
+    private final Clock clock;
+
+    private volatile Entry<T> current;
+
+    PrometheusScrapeCache(long ttl, TimeUnit unit, Clock clock) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.clock = clock;
+    }
+
+    /**
+     * @return the cached result, or a new one if it has expired
+     */
+    T get() {
+        Entry<T> entry = current;
+        if (entry == null || expired(entry)) {
+            synchronized (this) {
+                entry = current;
+                if (entry == null || expired(entry)) {
+                    long start = clock.getTick();
+                    entry = new Entry<>(load(), start);
+                    current = entry;
+                }
+            }
+        }
+        return entry.value;
+    }
+
+    private boolean expired(Entry<T> entry) {
+        return clock.getTick() - entry.loaded >= ttlNanos;
+    }
+
+    /**
+     * Collects a new result; never called concurrently.
+     */
+    protected abstract T load();
+
+    private static final class Entry<T> {
+        final T value;
+        final long loaded;
+
+        Entry(T value, long loaded) {
+            this.value = value;
+            this.loaded = loaded;
+        }
+    }
+}
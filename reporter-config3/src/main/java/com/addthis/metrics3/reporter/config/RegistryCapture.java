@@ -0,0 +1,568 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * A point in time copy of the metrics of one registry, shared by the
+ * reporters that run on the same period.
+ * <p>
+ * Metrics are copied lazily the first time a reporter reads them during a
+ * tick: gauges are evaluated, rates read and snapshots taken once, and every
+ * other reporter reading the same metric within half a period gets the same
+ * frozen values.  Taking a snapshot of the default exponentially decaying
+ * reservoir copies and sorts its samples, so this saves that work for all
+ * but the first reporter and keeps the numbers sent to every backend
+ * identical.
+ * <p>
+ * Sharing is by age rather than by scheduled tick, so reporters that
+ * {@code stagger} or {@code jitter} puts more than half a period apart each
+ * take their own copies.  Copies older than half a period are dropped the
+ * next time a copy is taken, so the capture holds on to at most about one
+ * tick of copies, of the metrics still being read.
+ */
+public class RegistryCapture extends MetricRegistryListener.Base
+{
+    private final long maxAgeNanos;
+    private final Clock clock;
+    private final ConcurrentMap<String, Captured> captured = new ConcurrentHashMap<String, Captured>();
+    private final AtomicLong lastSweep;
+
+    // set while attached
+    private volatile MetricRegistry registry;
+
+    public RegistryCapture(long period, TimeUnit unit)
+    {
+        this(period, unit, Clock.defaultClock());
+    }
+
+    public RegistryCapture(long period, TimeUnit unit, Clock clock)
+    {
+        this.maxAgeNanos = unit.toNanos(period) / 2;
+        this.clock = clock;
+        this.lastSweep = new AtomicLong(clock.getTick());
+    }
+
+    /**
+     * Creates a capture and registers it with the registry so captured copies
+     * of removed metrics are released.  Call {@link #detach} once the capture
+     * is no longer used.
+     */
+    public static RegistryCapture attach(MetricRegistry registry, long period, TimeUnit unit)
+    {
+        RegistryCapture capture = new RegistryCapture(period, unit);
+        capture.registry = registry;
+        registry.addListener(capture);
+        return capture;
+    }
+
+    /**
+     * Stops tracking the registry the capture was attached to and drops every
+     * copy.
+     */
+    public void detach()
+    {
+        MetricRegistry attached = registry;
+        if (attached != null)
+        {
+            attached.removeListener(this);
+            registry = null;
+        }
+        captured.clear();
+    }
+
+    /**
+     * @return a source with the same metrics as the given one whose values
+     *         are the shared captured copies
+     */
+    public MetricSource capture(final MetricSource source)
+    {
+        return new MetricSource()
+        {
+            @Override
+            public SortedMap<String, Gauge> getGauges()
+            {
+                return new CapturedMap<Gauge>(source.getGauges());
+            }
+
+            @Override
+            public SortedMap<String, Counter> getCounters()
+            {
+                return new CapturedMap<Counter>(source.getCounters());
+            }
+
+            @Override
+            public SortedMap<String, Histogram> getHistograms()
+            {
+                return new CapturedMap<Histogram>(source.getHistograms());
+            }
+
+            @Override
+            public SortedMap<String, Meter> getMeters()
+            {
+                return new CapturedMap<Meter>(source.getMeters());
+            }
+
+            @Override
+            public SortedMap<String, Timer> getTimers()
+            {
+                return new CapturedMap<Timer>(source.getTimers());
+            }
+        };
+    }
+
+    /**
+     * @return the frozen copy of the metric, taking it if there is no copy
+     *         recent enough
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Metric> T get(String name, T metric)
+    {
+        long now = clock.getTick();
+        Captured entry = captured.get(name);
+        if (entry != null && entry.source == metric && now - entry.tick < maxAgeNanos)
+        {
+            return (T) entry.frozen;
+        }
+        sweep(now);
+        // two reporters racing here both take a copy; either one is fine to keep
+        Metric frozen = freeze(metric);
+        captured.put(name, new Captured(metric, frozen, now));
+        return (T) frozen;
+    }
+
+    /**
+     * Drops the copies too old to be handed out again, at most once every
+     * half period.
+     */
+    private void sweep(long now)
+    {
+        long last = lastSweep.get();
+        if (now - last < maxAgeNanos || !lastSweep.compareAndSet(last, now))
+        {
+            return;
+        }
+        for (Iterator<Captured> it = captured.values().iterator(); it.hasNext(); )
+        {
+            if (now - it.next().tick >= maxAgeNanos)
+            {
+                it.remove();
+            }
+        }
+    }
+
+    int size()
+    {
+        return captured.size();
+    }
+
+    private static Metric freeze(Metric metric)
+    {
+        if (metric instanceof Gauge)
+        {
+            return new FrozenGauge(((Gauge) metric).getValue());
+        }
+        else if (metric instanceof Counter)
+        {
+            return new FrozenCounter(((Counter) metric).getCount());
+        }
+        else if (metric instanceof Histogram)
+        {
+            Histogram histogram = (Histogram) metric;
+            return new FrozenHistogram(histogram.getCount(), histogram.getSnapshot());
+        }
+        else if (metric instanceof Timer)
+        {
+            return new FrozenTimer((Timer) metric);
+        }
+        else if (metric instanceof Meter)
+        {
+            return new FrozenMeter((Meter) metric);
+        }
+        return metric;
+    }
+
+    @Override
+    public void onGaugeRemoved(String name)
+    {
+        captured.remove(name);
+    }
+
+    @Override
+    public void onCounterRemoved(String name)
+    {
+        captured.remove(name);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name)
+    {
+        captured.remove(name);
+    }
+
+    @Override
+    public void onMeterRemoved(String name)
+    {
+        captured.remove(name);
+    }
+
+    @Override
+    public void onTimerRemoved(String name)
+    {
+        captured.remove(name);
+    }
+
+    private static final class Captured
+    {
+        final Metric source;
+        final Metric frozen;
+        final long tick;
+
+        Captured(Metric source, Metric frozen, long tick)
+        {
+            this.source = source;
+            this.frozen = frozen;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Read-only view of a sorted metric map that hands out captured copies.
+     */
+    private final class CapturedMap<T extends Metric> extends AbstractMap<String, T> implements SortedMap<String, T>
+    {
+        private final SortedMap<String, T> source;
+
+        CapturedMap(SortedMap<String, T> source)
+        {
+            this.source = source;
+        }
+
+        @Override
+        public int size()
+        {
+            return source.size();
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return source.isEmpty();
+        }
+
+        @Override
+        public boolean containsKey(Object key)
+        {
+            return source.containsKey(key);
+        }
+
+        @Override
+        public T get(Object key)
+        {
+            T metric = source.get(key);
+            return metric == null ? null : RegistryCapture.this.get((String) key, metric);
+        }
+
+        @Override
+        public Set<Entry<String, T>> entrySet()
+        {
+            return new AbstractSet<Entry<String, T>>()
+            {
+                @Override
+                public Iterator<Entry<String, T>> iterator()
+                {
+                    final Iterator<Entry<String, T>> it = source.entrySet().iterator();
+                    return new Iterator<Entry<String, T>>()
+                    {
+                        @Override
+                        public boolean hasNext()
+                        {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, T> next()
+                        {
+                            Entry<String, T> entry = it.next();
+                            return new SimpleImmutableEntry<String, T>(entry.getKey(),
+                                    RegistryCapture.this.get(entry.getKey(), entry.getValue()));
+                        }
+
+                        @Override
+                        public void remove()
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size()
+                {
+                    return source.size();
+                }
+            };
+        }
+
+        @Override
+        public Set<String> keySet()
+        {
+            return source.keySet();
+        }
+
+        @Override
+        public Comparator<? super String> comparator()
+        {
+            return source.comparator();
+        }
+
+        @Override
+        public SortedMap<String, T> subMap(String fromKey, String toKey)
+        {
+            return new CapturedMap<T>(source.subMap(fromKey, toKey));
+        }
+
+        @Override
+        public SortedMap<String, T> headMap(String toKey)
+        {
+            return new CapturedMap<T>(source.headMap(toKey));
+        }
+
+        @Override
+        public SortedMap<String, T> tailMap(String fromKey)
+        {
+            return new CapturedMap<T>(source.tailMap(fromKey));
+        }
+
+        @Override
+        public String firstKey()
+        {
+            return source.firstKey();
+        }
+
+        @Override
+        public String lastKey()
+        {
+            return source.lastKey();
+        }
+    }
+
+    private static final class FrozenGauge implements Gauge<Object>
+    {
+        private final Object value;
+
+        FrozenGauge(Object value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        public Object getValue()
+        {
+            return value;
+        }
+    }
+
+    private static final class FrozenCounter extends Counter
+    {
+        private final long count;
+
+        FrozenCounter(long count)
+        {
+            this.count = count;
+        }
+
+        @Override
+        public long getCount()
+        {
+            return count;
+        }
+    }
+
+    /**
+     * Never updated, only here because Histogram and Timer need one.
+     */
+    private static final Reservoir NO_RESERVOIR = new Reservoir()
+    {
+        @Override
+        public int size()
+        {
+            return 0;
+        }
+
+        @Override
+        public void update(long value)
+        {
+        }
+
+        @Override
+        public Snapshot getSnapshot()
+        {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static final class FrozenHistogram extends Histogram
+    {
+        private final long count;
+        private final Snapshot snapshot;
+
+        FrozenHistogram(long count, Snapshot snapshot)
+        {
+            super(NO_RESERVOIR);
+            this.count = count;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public long getCount()
+        {
+            return count;
+        }
+
+        @Override
+        public Snapshot getSnapshot()
+        {
+            return snapshot;
+        }
+    }
+
+    private static final class FrozenMeter extends Meter
+    {
+        private final long count;
+        private final double meanRate;
+        private final double oneMinuteRate;
+        private final double fiveMinuteRate;
+        private final double fifteenMinuteRate;
+
+        FrozenMeter(Meter meter)
+        {
+            this.count = meter.getCount();
+            this.meanRate = meter.getMeanRate();
+            this.oneMinuteRate = meter.getOneMinuteRate();
+            this.fiveMinuteRate = meter.getFiveMinuteRate();
+            this.fifteenMinuteRate = meter.getFifteenMinuteRate();
+        }
+
+        @Override
+        public long getCount()
+        {
+            return count;
+        }
+
+        @Override
+        public double getMeanRate()
+        {
+            return meanRate;
+        }
+
+        @Override
+        public double getOneMinuteRate()
+        {
+            return oneMinuteRate;
+        }
+
+        @Override
+        public double getFiveMinuteRate()
+        {
+            return fiveMinuteRate;
+        }
+
+        @Override
+        public double getFifteenMinuteRate()
+        {
+            return fifteenMinuteRate;
+        }
+    }
+
+    private static final class FrozenTimer extends Timer
+    {
+        private final long count;
+        private final double meanRate;
+        private final double oneMinuteRate;
+        private final double fiveMinuteRate;
+        private final double fifteenMinuteRate;
+        private final Snapshot snapshot;
+
+        FrozenTimer(Timer timer)
+        {
+            super(NO_RESERVOIR);
+            this.count = timer.getCount();
+            this.meanRate = timer.getMeanRate();
+            this.oneMinuteRate = timer.getOneMinuteRate();
+            this.fiveMinuteRate = timer.getFiveMinuteRate();
+            this.fifteenMinuteRate = timer.getFifteenMinuteRate();
+            this.snapshot = timer.getSnapshot();
+        }
+
+        @Override
+        public long getCount()
+        {
+            return count;
+        }
+
+        @Override
+        public double getMeanRate()
+        {
+            return meanRate;
+        }
+
+        @Override
+        public double getOneMinuteRate()
+        {
+            return oneMinuteRate;
+        }
+
+        @Override
+        public double getFiveMinuteRate()
+        {
+            return fiveMinuteRate;
+        }
+
+        @Override
+        public double getFifteenMinuteRate()
+        {
+            return fifteenMinuteRate;
+        }
+
+        @Override
+        public Snapshot getSnapshot()
+        {
+            return snapshot;
+        }
+    }
+}
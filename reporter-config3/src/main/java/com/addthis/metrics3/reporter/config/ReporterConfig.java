@@ -15,11 +15,14 @@
 package com.addthis.metrics3.reporter.config;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
 
 import java.io.IOException;
 
 import java.lang.management.ManagementFactory;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import com.addthis.metrics.reporter.config.AbstractReporterConfig;
 
@@ -38,6 +41,10 @@ import org.slf4j.LoggerFactory;
 public class ReporterConfig extends AbstractReporterConfig {
     private static final Logger log = LoggerFactory.getLogger(ReporterConfig.class);
 
+    public enum ExecutorType {
+        platform, virtual;
+    }
+
     @Valid
     private List<ConsoleReporterConfig> console;
     @Valid
@@ -59,6 +66,22 @@ public class ReporterConfig extends AbstractReporterConfig {
 
     private boolean jvmMetricsEnabled = false;
 
+    // reporters on the same period read each metric once per tick
+    private boolean sharedSnapshots = false;
+
+    // 0 leaves each reporter on its own thread
+    @Min(0)
+    private int schedulerThreads = 0;
+
+    @NotNull
+    private String schedulerThreadName = "metrics-reporter";
+
+    // virtual runs each send on its own virtual thread where the JVM has them
+    @NotNull
+    private ExecutorType executor = ExecutorType.platform;
+
+    private ReporterContext context;
+
     public List<ConsoleReporterConfig> getConsole() {
         return console;
     }
@@ -139,6 +162,59 @@ public class ReporterConfig extends AbstractReporterConfig {
         this.jvmMetricsEnabled = jvmMetricsEnabled;
     }
 
+    public boolean isSharedSnapshots() {
+        return sharedSnapshots;
+    }
+
+    public void setSharedSnapshots(boolean sharedSnapshots) {
+        this.sharedSnapshots = sharedSnapshots;
+    }
+
+    public int getSchedulerThreads() {
+        return schedulerThreads;
+    }
+
+    public void setSchedulerThreads(int schedulerThreads) {
+        this.schedulerThreads = schedulerThreads;
+    }
+
+    public String getSchedulerThreadName() {
+        return schedulerThreadName;
+    }
+
+    public void setSchedulerThreadName(String schedulerThreadName) {
+        this.schedulerThreadName = schedulerThreadName;
+    }
+
+    public ExecutorType getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(ExecutorType executor) {
+        this.executor = executor;
+    }
+
+    private synchronized ReporterContext getContext() {
+        if (context == null) {
+            ExecutorService sends = null;
+            if (executor == ExecutorType.virtual) {
+                sends = ReporterScheduler.newVirtualThreadExecutor(schedulerThreadName + "-send-");
+                if (sends == null) {
+                    log.warn("Virtual threads are not supported by this JVM, reporting on platform threads");
+                }
+            }
+            ReporterScheduler scheduler = null;
+            if (sends != null) {
+                // the pool only keeps time, so one thread is enough unless more were asked for
+                scheduler = new ReporterScheduler(Math.max(1, schedulerThreads), schedulerThreadName, sends);
+            } else if (schedulerThreads > 0) {
+                scheduler = new ReporterScheduler(schedulerThreads, schedulerThreadName);
+            }
+            context = new ReporterContext(sharedSnapshots, scheduler);
+        }
+        return context;
+    }
+
     public boolean enableConsole(MetricRegistry registry) {
         boolean failures = false;
         if (console == null) {
@@ -146,6 +222,7 @@ public class ReporterConfig extends AbstractReporterConfig {
             return false;
         }
         for (ConsoleReporterConfig consoleConfig : console) {
+            consoleConfig.setContext(getContext());
             if (!consoleConfig.enable(registry)) {
                 failures = true;
             }
@@ -160,6 +237,7 @@ public class ReporterConfig extends AbstractReporterConfig {
             return false;
         }
         for (CsvReporterConfig csvConfig : csv) {
+            csvConfig.setContext(getContext());
             if (!csvConfig.enable(registry)) {
                 failures = true;
             }
@@ -174,6 +252,7 @@ public class ReporterConfig extends AbstractReporterConfig {
             return false;
         }
         for (GangliaReporterConfig gangliaConfig : ganglia) {
+            gangliaConfig.setContext(getContext());
             if (!gangliaConfig.enable(registry)) {
                 failures = true;
             }
@@ -188,6 +267,7 @@ public class ReporterConfig extends AbstractReporterConfig {
             return false;
         }
         for (GraphiteReporterConfig graphiteConfig : graphite) {
+            graphiteConfig.setContext(getContext());
             if (!graphiteConfig.enable(registry)) {
                 failures = true;
             }
@@ -204,6 +284,7 @@ public class ReporterConfig extends AbstractReporterConfig {
         }
 
         for (PrometheusReporterConfig prometheusConfig : prometheus) {
+            prometheusConfig.setContext(getContext());
             if (!prometheusConfig.enable(registry)) {
                 failures = true;
             }
@@ -219,6 +300,7 @@ public class ReporterConfig extends AbstractReporterConfig {
             return false;
         }
         for (InfluxDBReporterConfig influxConfig : influxdb) {
+            influxConfig.setContext(getContext());
             if (!influxConfig.enable(registry)) {
                 failures = true;
             }
@@ -233,6 +315,7 @@ public class ReporterConfig extends AbstractReporterConfig {
             return false;
         }
         for (RiemannReporterConfig riemannConfig : riemann) {
+            riemannConfig.setContext(getContext());
             if (!riemannConfig.enable(registry)) {
                 failures = true;
             }
@@ -247,6 +330,7 @@ public class ReporterConfig extends AbstractReporterConfig {
             return false;
         }
         for (StatsDReporterConfig statsdConfig : statsd) {
+            statsdConfig.setContext(getContext());
             if (!statsdConfig.enable(registry)) {
                 failures = true;
             }
@@ -261,6 +345,7 @@ public class ReporterConfig extends AbstractReporterConfig {
             return false;
         }
         for (ZabbixReporterConfig zabbixConfig : zabbix) {
+            zabbixConfig.setContext(getContext());
             if (!zabbixConfig.enable(registry)) {
                 failures = true;
             }
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * State shared by all the reporters enabled from one {@link ReporterConfig}.
+ */
+class ReporterContext
+{
+    private final boolean sharedSnapshots;
+    private final ReporterScheduler scheduler;
+    private final Map<MetricRegistry, Map<Long, RegistryCapture>> captures =
+            new IdentityHashMap<MetricRegistry, Map<Long, RegistryCapture>>();
+    private final Map<RegistryCapture, Integer> users = new IdentityHashMap<RegistryCapture, Integer>();
+
+    ReporterContext(boolean sharedSnapshots, ReporterScheduler scheduler)
+    {
+        this.sharedSnapshots = sharedSnapshots;
+        this.scheduler = scheduler;
+    }
+
+    boolean isSharedSnapshots()
+    {
+        return sharedSnapshots;
+    }
+
+    /**
+     * @return the pool every reporter runs on, or null if each reporter
+     *         starts its own thread
+     */
+    ReporterScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     * @return the capture shared by every reporter of the registry running on
+     *         this period, to be given back to {@link #releaseCapture} when
+     *         the reporter stops
+     */
+    synchronized RegistryCapture getCapture(MetricRegistry registry, long period, TimeUnit unit)
+    {
+        Map<Long, RegistryCapture> byPeriod = captures.get(registry);
+        if (byPeriod == null)
+        {
+            byPeriod = new HashMap<Long, RegistryCapture>();
+            captures.put(registry, byPeriod);
+        }
+        Long key = unit.toNanos(period);
+        RegistryCapture capture = byPeriod.get(key);
+        if (capture == null)
+        {
+            capture = RegistryCapture.attach(registry, period, unit);
+            byPeriod.put(key, capture);
+            users.put(capture, 0);
+        }
+        users.put(capture, users.get(capture) + 1);
+        return capture;
+    }
+
+    /**
+     * Detaches the capture once the last reporter using it has given it back.
+     */
+    synchronized void releaseCapture(RegistryCapture capture)
+    {
+        Integer count = users.get(capture);
+        if (count == null)
+        {
+            return;
+        }
+        if (count > 1)
+        {
+            users.put(capture, count - 1);
+            return;
+        }
+        users.remove(capture);
+        capture.detach();
+        for (Iterator<Map<Long, RegistryCapture>> it = captures.values().iterator(); it.hasNext(); )
+        {
+            Map<Long, RegistryCapture> byPeriod = it.next();
+            if (byPeriod.values().remove(capture) && byPeriod.isEmpty())
+            {
+                it.remove();
+            }
+        }
+    }
+}
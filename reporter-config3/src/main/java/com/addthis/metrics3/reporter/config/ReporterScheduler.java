@@ -0,0 +1,348 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.ScheduledReporter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One bounded pool that runs the reports of every reporter enabled from a
+ * {@link ReporterConfig}, in place of the single thread executor each
+ * {@link ScheduledReporter} would otherwise start.
+ * <p>
+ * Each reporter schedules its next report once the current one is done, so
+ * it never runs on more than one thread at a time, and ticks it misses
+ * while a slow send is in progress are dropped rather than run back to back
+ * once it returns.  A stuck destination holds at most one thread and the
+ * others keep reporting on time.
+ * <p>
+ * Given a send executor, the pool only keeps time and each report runs on
+ * that executor instead, typically one virtual thread per send.
+ */
+class ReporterScheduler
+{
+    private static final Logger log = LoggerFactory.getLogger(ReporterScheduler.class);
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ExecutorService sends;
+
+    ReporterScheduler(int threads, String threadName)
+    {
+        this(threads, threadName, null);
+    }
+
+    ReporterScheduler(int threads, String threadName, ExecutorService sends)
+    {
+        this.executor = new ScheduledThreadPoolExecutor(threads, new NamedThreadFactory(threadName));
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.sends = sends;
+    }
+
+    /**
+     * @return an executor starting a named virtual thread per task, or null
+     *         if this JVM has no virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor(String threadName)
+    {
+        try
+        {
+            // Thread.ofVirtual().name(threadName, 1).factory(), without requiring a newer JDK to build
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadName, 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            log.debug("Virtual threads are not available", e);
+            return null;
+        }
+    }
+
+    ReportTask schedule(ScheduledReporter reporter, long period, TimeUnit unit)
+    {
+        return schedule(reporter, period, period, 0, unit);
+    }
+
+    /**
+     * Reports every period, starting after the initial delay.  Each report
+     * is delayed by a further random amount below the jitter.
+     */
+    ReportTask schedule(ScheduledReporter reporter, long initialDelay, long period, long jitter, TimeUnit unit)
+    {
+        ReportTask task = new ReportTask(reporter, System.nanoTime() + unit.toNanos(initialDelay),
+                                         unit.toNanos(period), unit.toNanos(jitter), false, 0);
+        task.schedule();
+        return task;
+    }
+
+    /**
+     * Reports at each multiple of the period since the epoch, by the wall
+     * clock, plus the offset and a random amount below the jitter.  Each
+     * report reads the boundary it was scheduled for from an
+     * {@link AlignedClock}.
+     *
+     * @throws IllegalArgumentException if the offset and jitter add up to
+     *                                  more than the period, which would
+     *                                  push reports past the next boundary
+     */
+    ReportTask scheduleAligned(ScheduledReporter reporter, long offset, long period, long jitter, TimeUnit unit)
+    {
+        if (offset < 0 || jitter < 0 || offset + jitter > period)
+        {
+            throw new IllegalArgumentException("offset " + offset + " and jitter " + jitter
+                                               + " must add up to at most the period " + period);
+        }
+        ReportTask task = new ReportTask(reporter, 0, unit.toNanos(period), unit.toNanos(jitter), true,
+                                         unit.toNanos(offset));
+        task.schedule();
+        return task;
+    }
+
+    /**
+     * Runs a background task of a reporter, such as a health check, on the
+     * pool every delay after the previous run is done.
+     */
+    ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, TimeUnit unit)
+    {
+        return executor.scheduleWithFixedDelay(task, delay, delay, unit);
+    }
+
+    void shutdown()
+    {
+        executor.shutdown();
+        if (sends != null)
+        {
+            sends.shutdown();
+        }
+    }
+
+    final class ReportTask implements Runnable
+    {
+        private final ScheduledReporter reporter;
+        private final long periodNanos;
+        private final long jitterNanos;
+        private final boolean aligned;
+        private final long offsetNanos;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private long next;
+        private long lastBoundary;
+        private ScheduledFuture<?> future;
+        private boolean cancelled;
+
+        ReportTask(ScheduledReporter reporter, long first, long periodNanos, long jitterNanos, boolean aligned,
+                   long offsetNanos)
+        {
+            this.reporter = reporter;
+            this.next = first;
+            this.periodNanos = periodNanos;
+            this.jitterNanos = jitterNanos;
+            this.aligned = aligned;
+            this.offsetNanos = offsetNanos;
+        }
+
+        @Override
+        public void run()
+        {
+            if (isCancelled())
+            {
+                return;
+            }
+            // before scheduling the next tick moves it on
+            long boundary = getLastBoundary();
+            if (sends == null)
+            {
+                report(boundary);
+            }
+            else if (!sending.compareAndSet(false, true))
+            {
+                log.debug("Skipping a tick of {}, the previous report is still sending", reporter);
+            }
+            else
+            {
+                send(boundary);
+            }
+            if (aligned)
+            {
+                schedule();
+                return;
+            }
+            // ticks that passed during a slow report are dropped rather than run back to back
+            long now = System.nanoTime();
+            int missed = -1;
+            do
+            {
+                next += periodNanos;
+                missed++;
+            }
+            while (next - now <= 0);
+            if (missed > 0)
+            {
+                log.debug("Skipped {} ticks of {}, the previous report overran its period", missed, reporter);
+            }
+            schedule();
+        }
+
+        synchronized void cancel()
+        {
+            cancelled = true;
+            if (future != null)
+            {
+                future.cancel(false);
+            }
+        }
+
+        private synchronized boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        private synchronized long getLastBoundary()
+        {
+            return lastBoundary;
+        }
+
+        private synchronized void schedule()
+        {
+            if (cancelled)
+            {
+                return;
+            }
+            long delay = aligned ? untilNextBoundary() : next - System.nanoTime();
+            if (jitterNanos > 0)
+            {
+                delay += ThreadLocalRandom.current().nextLong(jitterNanos);
+            }
+            try
+            {
+                future = executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+            }
+            catch (RejectedExecutionException e)
+            {
+                log.debug("Not scheduling {}, the scheduler is shut down", reporter);
+            }
+        }
+
+        /**
+         * Picks the first boundary whose report, offset past it, is still
+         * ahead, so a report the offset pushed past the next boundary does
+         * not skip it.  Boundaries that passed during a slow report are
+         * dropped, and one reached slightly early is never reported twice.
+         */
+        private long untilNextBoundary()
+        {
+            long periodMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(periodNanos));
+            long now = System.currentTimeMillis();
+            long offsetFrom = now - TimeUnit.NANOSECONDS.toMillis(offsetNanos);
+            long boundary = offsetFrom - offsetFrom % periodMillis + periodMillis;
+            if (boundary <= lastBoundary)
+            {
+                boundary = lastBoundary + periodMillis;
+            }
+            lastBoundary = boundary;
+            return TimeUnit.MILLISECONDS.toNanos(boundary - now) + offsetNanos;
+        }
+
+        private void send(final long boundary)
+        {
+            try
+            {
+                sends.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            report(boundary);
+                        }
+                        finally
+                        {
+                            sending.set(false);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                sending.set(false);
+                log.debug("Not reporting with {}, the scheduler is shut down", reporter);
+            }
+        }
+
+        /**
+         * @param boundary wall clock millis of the boundary the report was
+         *                 scheduled for, when aligned
+         */
+        private void report(long boundary)
+        {
+            if (aligned)
+            {
+                AlignedClock.setScheduled(boundary);
+            }
+            try
+            {
+                reporter.report();
+            }
+            catch (RuntimeException e)
+            {
+                // an exception must not stop the next report from being scheduled
+                log.error("Failure while reporting metrics with " + reporter, e);
+            }
+            finally
+            {
+                if (aligned)
+                {
+                    AlignedClock.clearScheduled();
+                }
+            }
+        }
+    }
+
+    static final class NamedThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
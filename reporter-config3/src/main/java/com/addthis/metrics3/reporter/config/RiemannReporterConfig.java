@@ -14,7 +14,6 @@
 
 package com.addthis.metrics3.reporter.config;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -22,6 +21,7 @@ import org.slf4j.LoggerFactory;
 
 import com.addthis.metrics.reporter.config.AbstractRiemannReporterConfig;
 import com.addthis.metrics.reporter.config.HostPort;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.riemann.Riemann;
 import com.codahale.metrics.riemann.RiemannReporter;
@@ -29,8 +29,7 @@ import com.codahale.metrics.riemann.RiemannReporter;
 public class RiemannReporterConfig extends AbstractRiemannReporterConfig implements MetricsReporterConfigThree
 {
     private static final Logger log = LoggerFactory.getLogger(RiemannReporterConfig.class);
-    private List<RiemannReporter> reporters = new ArrayList<RiemannReporter>();
-    private MetricRegistry registry;
+    private final ConfiguredReporters reporters = new ConfiguredReporters(this);
 
     @Override
     public boolean enable(MetricRegistry registry)
@@ -42,8 +41,6 @@ public class RiemannReporterConfig extends AbstractRiemannReporterConfig impleme
             return false;
         }
 
-        this.registry = registry;
-
         List<HostPort> hosts = getFullHostList();
         if (hosts == null || hosts.isEmpty())
         {
@@ -58,7 +55,8 @@ public class RiemannReporterConfig extends AbstractRiemannReporterConfig impleme
                 RiemannReporter.Builder builder =
                 RiemannReporter.forRegistry(registry)
                                .convertDurationsTo(getRealDurationunit())
-                               .convertRatesTo(getRealRateunit());
+                               .convertRatesTo(getRealRateunit())
+                               .withClock(reporters.getClock());
                 if (prefix != null && !prefix.isEmpty())
                 {
                     builder.prefixedWith(prefix);
@@ -77,8 +75,7 @@ public class RiemannReporterConfig extends AbstractRiemannReporterConfig impleme
                 }
                 Riemann riemann = new Riemann(hostPort.getHost(), hostPort.getPort());
                 RiemannReporter reporter = builder.build(riemann);
-                reporter.start(getPeriod(), getRealTimeunit());
-                reporters.add(reporter);
+                reporters.start(reporter, "riemann-reporter", registry, MetricFilter.ALL);
             }
             catch (Exception e)
             {
@@ -89,11 +86,13 @@ public class RiemannReporterConfig extends AbstractRiemannReporterConfig impleme
         return true;
     }
 
+    void setContext(ReporterContext context)
+    {
+        reporters.setContext(context);
+    }
+
     @Override public void report() {
-        for (RiemannReporter reporter : reporters)
-        {
-            reporter.report(registry.getGauges(), registry.getCounters(), registry.getHistograms(), registry.getMeters(), registry.getTimers());
-        }
+        reporters.report();
     }
 
 }
@@ -14,12 +14,14 @@
 
 package com.addthis.metrics3.reporter.config;
 
-import java.util.ArrayList;
+import java.net.InetSocketAddress;
 import java.util.List;
 
 import com.addthis.metrics.reporter.config.AbstractStatsDReporterConfig;
 import com.addthis.metrics.reporter.config.HostPort;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
 import com.readytalk.metrics.StatsDReporter;
 
 import org.slf4j.Logger;
@@ -30,30 +32,52 @@ public class StatsDReporterConfig extends AbstractStatsDReporterConfig implement
     private static final String REPORTER_CLASS = "com.readytalk.metrics.StatsDReporter";
     private static final Logger log = LoggerFactory.getLogger(StatsDReporterConfig.class);
 
-    private List<StatsDReporter> reporters = new ArrayList<StatsDReporter>();
+    private final ConfiguredReporters reporters = new ConfiguredReporters(this);
 
     @Override
     public boolean enable(MetricRegistry registry)
     {
-        if (!setup(REPORTER_CLASS))
+        boolean batching = getMaxPacketSize() > 0 || isDelta();
+        if (batching)
+        {
+            // the batching reporter is part of this module and needs nothing from the optional statsd jar
+            List<HostPort> hosts = getFullHostList();
+            if (hosts == null || hosts.isEmpty())
+            {
+                log.error("No hosts specified, cannot enable StatsD Reporter");
+                return false;
+            }
+        }
+        else if (!setup(REPORTER_CLASS))
         {
             return false;
         }
         boolean failures = false;
+        MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate(), registry);
         for (HostPort hostPort : getFullHostList())
         {
             try
             {
                 log.info("Enabling StatsDReporter to {}:{}",
                     new Object[] {hostPort.getHost(), hostPort.getPort()});
-                StatsDReporter reporter = StatsDReporter.forRegistry(registry)
-                    .convertRatesTo(getRealRateunit())
-                    .convertDurationsTo(getRealDurationunit())
-                    .prefixedWith(getResolvedPrefix())
-                    .filter(MetricFilterTransformer.generateFilter(getPredicate()))
-                    .build(hostPort.getHost(), hostPort.getPort());
-                reporter.start(getPeriod(), getRealTimeunit());
-                reporters.add(reporter);
+                ScheduledReporter reporter;
+                if (batching)
+                {
+                    reporter = new BatchingStatsDReporter(registry, filter, getRealRateunit(),
+                        getRealDurationunit(), getResolvedPrefix(),
+                        new InetSocketAddress(hostPort.getHost(), hostPort.getPort()), getMaxPacketSize(),
+                        isDelta());
+                }
+                else
+                {
+                    reporter = StatsDReporter.forRegistry(registry)
+                        .convertRatesTo(getRealRateunit())
+                        .convertDurationsTo(getRealDurationunit())
+                        .prefixedWith(getResolvedPrefix())
+                        .filter(filter)
+                        .build(hostPort.getHost(), hostPort.getPort());
+                }
+                reporters.start(reporter, "statsd-reporter", registry, filter);
             }
             catch (Exception e)
             {
@@ -65,18 +89,17 @@ public class StatsDReporterConfig extends AbstractStatsDReporterConfig implement
         return !failures;
     }
 
+    void setContext(ReporterContext context)
+    {
+        reporters.setContext(context);
+    }
+
     @Override
     public void report() {
-        for (StatsDReporter reporter : reporters)
-        {
-            reporter.report();
-        }
+        reporters.report();
     }
 
     void stopForTests() {
-        for (StatsDReporter reporter : reporters)
-        {
-            reporter.stop();
-        }
+        reporters.stop();
     }
 }
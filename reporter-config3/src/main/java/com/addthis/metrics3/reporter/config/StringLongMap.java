@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.Arrays;
+
+/**
+ * A map from strings to primitive longs, open addressed with linear
+ * probing, so looking up and updating existing keys allocates nothing.  Not
+ * thread safe.
+ */
+final class StringLongMap
+{
+    private String[] keys;
+    private long[] values;
+    private int size;
+
+    StringLongMap()
+    {
+        this(64);
+    }
+
+    StringLongMap(int expected)
+    {
+        int capacity = Integer.highestOneBit(Math.max(expected * 2 - 1, 16)) << 1;
+        keys = new String[capacity];
+        values = new long[capacity];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return the value of the key, or missing if there is none
+     */
+    long get(String key, long missing)
+    {
+        int slot = find(key);
+        return keys[slot] == null ? missing : values[slot];
+    }
+
+    void put(String key, long value)
+    {
+        int slot = find(key);
+        if (keys[slot] == null)
+        {
+            if ((size + 1) * 2 > keys.length)
+            {
+                resize(keys.length * 2);
+                slot = find(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * @return true if the key was present
+     */
+    boolean remove(String key)
+    {
+        int slot = find(key);
+        if (keys[slot] == null)
+        {
+            return false;
+        }
+        int mask = keys.length - 1;
+        // shift back the following entries of the run that probed past the
+        // removed slot, so lookups never stop early at the hole
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != null; next = (next + 1) & mask)
+        {
+            int home = index(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask))
+            {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = null;
+        values[hole] = 0;
+        size--;
+        return true;
+    }
+
+    void clear()
+    {
+        Arrays.fill(keys, null);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it belongs
+     */
+    private int find(String key)
+    {
+        int mask = keys.length - 1;
+        int slot = index(key);
+        while (keys[slot] != null && !keys[slot].equals(key))
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int index(String key)
+    {
+        int hash = key.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (keys.length - 1);
+    }
+
+    private void resize(int capacity)
+    {
+        String[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new String[capacity];
+        values = new long[capacity];
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] != null)
+            {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
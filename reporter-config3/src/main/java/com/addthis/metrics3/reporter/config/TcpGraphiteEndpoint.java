@@ -0,0 +1,299 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a tick to carbon over TCP, connecting for the tick and closing
+ * afterwards like {@link com.codahale.metrics.graphite.Graphite}.  Pickled
+ * batches are framed in messages of at most {@code batchSize} tuples, as
+ * {@link com.codahale.metrics.graphite.PickledGraphite} sends them.
+ * <p>
+ * The channel is non-blocking and every connect and write waits on a
+ * selector for at most its timeout, so a relay that does not answer or
+ * stops reading fails its own share of the tick instead of holding up the
+ * hosts after it.  After a failed connect or write, reconnecting waits for a
+ * delay that doubles with every failure in a row, up to a maximum, and the
+ * ticks in between are dropped.
+ * <p>
+ * With keep alive the connection is instead kept from tick to tick.  Before
+ * each write the socket is polled for the end of stream a relay that closed
+ * its side leaves behind, so a restarted relay costs a reconnect rather than
+ * the tick.
+ */
+class TcpGraphiteEndpoint extends GraphiteEndpoint
+{
+    private static final Logger log = LoggerFactory.getLogger(TcpGraphiteEndpoint.class);
+
+    static final int PICKLE_BATCH_SIZE = 100;
+    static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+    static final long MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final boolean keepAlive;
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final long minBackoffNanos;
+    private final long maxBackoffNanos;
+    private final ByteBuffer probe = ByteBuffer.allocate(256);
+    private Selector selector;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private long reconnectAt = System.nanoTime();
+
+    TcpGraphiteEndpoint(InetSocketAddress address)
+    {
+        this(address, false);
+    }
+
+    TcpGraphiteEndpoint(InetSocketAddress address, boolean keepAlive)
+    {
+        this(address, keepAlive, MIN_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+    }
+
+    TcpGraphiteEndpoint(InetSocketAddress address, boolean keepAlive, long minBackoffMillis, long maxBackoffMillis)
+    {
+        this(address, keepAlive, DEFAULT_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS, minBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for a connection, or 0 to
+     *                       wait forever
+     * @param socketTimeout  milliseconds to wait for the relay to take more
+     *                       of a tick, or 0 to wait forever
+     */
+    TcpGraphiteEndpoint(InetSocketAddress address, boolean keepAlive, int connectTimeout, int socketTimeout,
+                        long minBackoffMillis, long maxBackoffMillis)
+    {
+        super(address);
+        this.keepAlive = keepAlive;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+        this.minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(minBackoffMillis);
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+    }
+
+    @Override
+    boolean isReady()
+    {
+        return channel != null || System.nanoTime() - reconnectAt >= 0;
+    }
+
+    @Override
+    void send(GraphiteBatch batch) throws IOException
+    {
+        if (batch.size() == 0)
+        {
+            return;
+        }
+        if (channel != null && isClosedByPeer(channel))
+        {
+            log.info("Graphite {} closed the connection, reconnecting", address);
+            closeChannel();
+        }
+        if (channel == null)
+        {
+            connect();
+        }
+        try
+        {
+            write(batch);
+        }
+        finally
+        {
+            if (!keepAlive)
+            {
+                closeChannel();
+            }
+        }
+    }
+
+    private void connect() throws IOException
+    {
+        InetSocketAddress target = resolve();
+        if (selector == null)
+        {
+            selector = Selector.open();
+        }
+        channel = SocketChannel.open();
+        try
+        {
+            channel.configureBlocking(false);
+            if (keepAlive)
+            {
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            }
+            key = channel.register(selector, 0);
+            if (!channel.connect(target))
+            {
+                while (!channel.finishConnect())
+                {
+                    await(SelectionKey.OP_CONNECT, connectTimeout, "connecting to");
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            closeChannel();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            // such as an UnresolvedAddressException
+            closeChannel();
+            throw new IOException("Unable to connect to Graphite " + address, e);
+        }
+    }
+
+    /**
+     * Carbon never writes back, so anything but an empty read means the
+     * other side is gone.
+     */
+    private boolean isClosedByPeer(SocketChannel channel)
+    {
+        try
+        {
+            int read;
+            do
+            {
+                probe.clear();
+                read = channel.read(probe);
+            }
+            while (read > 0);
+            return read < 0;
+        }
+        catch (IOException e)
+        {
+            log.debug("Connection to {} is broken", address, e);
+            return true;
+        }
+    }
+
+    private void write(GraphiteBatch batch) throws IOException
+    {
+        int step = batch.isPickled() ? PICKLE_BATCH_SIZE : batch.size();
+        for (int from = 0; from < batch.size(); from += step)
+        {
+            ByteBuffer[] message = batch.frame(from, Math.min(batch.size(), from + step));
+            ByteBuffer last = message[message.length - 1];
+            while (last.hasRemaining())
+            {
+                if (channel.write(message) == 0)
+                {
+                    await(SelectionKey.OP_WRITE, socketTimeout, "writing to");
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the channel is ready for the operation, since a
+     * non-blocking channel ignores the socket timeout.
+     *
+     * @throws SocketTimeoutException if it is not within the timeout
+     */
+    private void await(int operation, int timeout, String doing) throws IOException
+    {
+        key.interestOps(operation);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true)
+        {
+            long wait = 0;
+            if (timeout > 0)
+            {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                {
+                    throw new SocketTimeoutException("Timed out " + doing + " Graphite " + address);
+                }
+                wait = Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+            }
+            int ready = selector.select(wait);
+            selector.selectedKeys().clear();
+            if (ready > 0)
+            {
+                key.interestOps(0);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the connection and, after failures, holds off reconnecting.
+     */
+    @Override
+    void close()
+    {
+        closeChannel();
+        if (selector != null)
+        {
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                log.debug("Error closing selector for {}", address, e);
+            }
+            selector = null;
+        }
+        int failures = getFailures();
+        if (failures > 0)
+        {
+            long backoff = Math.min(maxBackoffNanos, minBackoffNanos << Math.min(failures - 1, 30));
+            reconnectAt = System.nanoTime() + backoff;
+            log.info("Reconnecting to Graphite {} in {} ms", address, TimeUnit.NANOSECONDS.toMillis(backoff));
+        }
+    }
+
+    private void closeChannel()
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                log.debug("Error closing connection to {}", address, e);
+            }
+            channel = null;
+            key = null;
+            try
+            {
+                // releases the cancelled key, and with it the socket, before the next connect
+                selector.selectNow();
+            }
+            catch (IOException e)
+            {
+                log.debug("Error releasing connection to {}", address, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends each entry of a tick to carbon as its own datagram, as
+ * {@link com.codahale.metrics.graphite.GraphiteUDP} does, or with a payload
+ * size packs as many consecutive entries as fit into each datagram.  Each
+ * datagram is one gathering write, so one system call.
+ * <p>
+ * The datagram and byte counts, once registered, are removed again when the
+ * reporter stops.
+ */
+class UdpGraphiteEndpoint extends GraphiteEndpoint
+{
+    private static final Logger log = LoggerFactory.getLogger(UdpGraphiteEndpoint.class);
+
+    private final int payloadSize;
+    private Counter datagrams = new Counter();
+    private Counter bytes = new Counter();
+    private MetricRegistry registry;
+    private String name;
+    private DatagramChannel channel;
+
+    /**
+     * @param payloadSize the largest datagram to fill with entries, or 0 for
+     *                    one datagram per entry.  An entry larger than this is
+     *                    still sent, alone.
+     */
+    UdpGraphiteEndpoint(InetSocketAddress address, int payloadSize)
+    {
+        super(address);
+        this.payloadSize = payloadSize;
+    }
+
+    /**
+     * Counts the datagrams and payload bytes of this endpoint in the
+     * registry, in the counters of any other endpoint to the same host that
+     * are already there.
+     */
+    @Override
+    void registerMetrics(MetricRegistry registry)
+    {
+        String name = MetricRegistry.name(GraphiteReporterConfig.class, "udp",
+                                          address.getHostString() + ":" + address.getPort());
+        datagrams = registry.counter(MetricRegistry.name(name, "datagrams"));
+        bytes = registry.counter(MetricRegistry.name(name, "bytes"));
+        this.registry = registry;
+        this.name = name;
+    }
+
+    @Override
+    void unregisterMetrics()
+    {
+        if (registry != null)
+        {
+            remove(MetricRegistry.name(name, "datagrams"), datagrams);
+            remove(MetricRegistry.name(name, "bytes"), bytes);
+            registry = null;
+        }
+    }
+
+    private void remove(String name, Counter counter)
+    {
+        if (registry.getMetrics().get(name) == counter)
+        {
+            registry.remove(name);
+        }
+    }
+
+    @Override
+    void send(GraphiteBatch batch) throws IOException
+    {
+        if (channel == null)
+        {
+            InetSocketAddress target = resolve();
+            channel = DatagramChannel.open();
+            channel.connect(target);
+        }
+        int from = 0;
+        while (from < batch.size())
+        {
+            int to = from + 1;
+            while (payloadSize > 0 && to < batch.size() && batch.framedSize(from, to + 1) <= payloadSize)
+            {
+                to++;
+            }
+            // a gathering write on a datagram channel sends a single datagram
+            bytes.inc(channel.write(batch.frame(from, to)));
+            datagrams.inc();
+            from = to;
+        }
+    }
+
+    long getDatagrams()
+    {
+        return datagrams.getCount();
+    }
+
+    long getBytes()
+    {
+        return bytes.getCount();
+    }
+
+    @Override
+    void close()
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                log.debug("Error closing datagram channel to {}", address, e);
+            }
+            channel = null;
+        }
+    }
+}
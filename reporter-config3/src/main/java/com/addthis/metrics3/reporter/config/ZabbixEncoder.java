@@ -0,0 +1,382 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Encodes a tick's metrics as Zabbix sender data items with the same keys
+ * and values as {@link ZabbixReporter}.
+ * <p>
+ * The escaped start of every item, host and key included, is kept from
+ * tick to tick, so a tick only writes values and timestamps.  Registered as
+ * a listener on the registry so the items of removed metrics are dropped.
+ * Numbers are formatted as {@code "" + value} would, but into a reused
+ * builder, so a tick of counters, histograms, meters and timers allocates
+ * no strings.
+ * <p>
+ * The low-level discovery item, {@code {prefix}discovery}, lists the name
+ * and type of every metric as {@code {#NAME}} and {@code {#TYPE}}.  It is
+ * only written when the registry has added or removed a metric since it was
+ * last written, or its refresh interval has passed.
+ */
+class ZabbixEncoder extends MetricRegistryListener.Base
+{
+    private static final String[] GAUGE = {""};
+    private static final String[] COUNTER = {""};
+    private static final String[] SNAPSHOT = {
+            ".min", ".max", ".mean", ".stddev", ".median", ".75th", ".95th", ".98th", ".99th", ".99.9th"};
+    private static final String[] METER = {".count", ".meanRate", ".1-minuteRate", ".5-minuteRate", ".15-minuteRate"};
+    private static final String[] TIMER = {
+            ".count", ".meanRate", ".1-minuteRate", ".5-minuteRate", ".15-minuteRate",
+            ".min", ".max", ".mean", ".stddev", ".median", ".75th", ".95th", ".98th", ".99th", ".99.9th"};
+
+    private final String hostName;
+    private final String prefix;
+    private final double rateFactor;
+    private final double durationFactor;
+    private final ConcurrentMap<String, Items> items = new ConcurrentHashMap<String, Items>();
+    private final StringBuilder value = new StringBuilder(32);
+    private final byte[] discoveryHead;
+    private final long discoveryRefreshInterval;
+    private final StringBuilder discovery = new StringBuilder();
+    private volatile boolean metricsChanged = true;
+    private long discoveredAt;
+
+    ZabbixEncoder(String hostName, String prefix, TimeUnit rateUnit, TimeUnit durationUnit)
+    {
+        this(hostName, prefix, rateUnit, durationUnit, 0);
+    }
+
+    /**
+     * @param discoveryRefreshInterval seconds after which the discovery item
+     *                                 is written again even though no metric
+     *                                 was added or removed, or 0 for never
+     */
+    ZabbixEncoder(String hostName, String prefix, TimeUnit rateUnit, TimeUnit durationUnit,
+                  long discoveryRefreshInterval)
+    {
+        this.hostName = hostName;
+        this.prefix = prefix;
+        this.rateFactor = rateUnit.toSeconds(1);
+        this.durationFactor = 1.0 / durationUnit.toNanos(1);
+        this.discoveryHead = ZabbixPayload.itemHead(hostName, prefix + "discovery");
+        this.discoveryRefreshInterval = discoveryRefreshInterval;
+    }
+
+    /**
+     * Writes the discovery item of the metrics if it is due.
+     *
+     * @param time the tick's time, in seconds
+     * @return whether the item was written
+     */
+    boolean encodeDiscovery(ZabbixPayload payload, SortedMap<String, Gauge> gauges,
+                            SortedMap<String, Counter> counters, SortedMap<String, Histogram> histograms,
+                            SortedMap<String, Meter> meters, SortedMap<String, Timer> timers, long time)
+    {
+        boolean refresh = discoveryRefreshInterval > 0 && time - discoveredAt >= discoveryRefreshInterval;
+        if (!metricsChanged && !refresh)
+        {
+            return false;
+        }
+        metricsChanged = false;
+        discoveredAt = time;
+        discovery.setLength(0);
+        discovery.append("{\"data\":[");
+        appendDiscovery(gauges.keySet(), "gauge");
+        appendDiscovery(counters.keySet(), "counter");
+        appendDiscovery(histograms.keySet(), "histogram");
+        appendDiscovery(meters.keySet(), "meter");
+        appendDiscovery(timers.keySet(), "timer");
+        discovery.append("]}");
+        payload.startItem(discoveryHead);
+        payload.putEscaped(discovery);
+        payload.endItem();
+        return true;
+    }
+
+    /**
+     * Has the discovery item written again on the next tick, as the one
+     * written on this tick did not reach the server.
+     */
+    void discoveryFailed()
+    {
+        metricsChanged = true;
+    }
+
+    private void appendDiscovery(Iterable<String> names, String type)
+    {
+        for (String name : names)
+        {
+            if (discovery.charAt(discovery.length() - 1) != '[')
+            {
+                discovery.append(',');
+            }
+            discovery.append("{\"{#NAME}\":\"");
+            for (int i = 0; i < name.length(); i++)
+            {
+                char c = name.charAt(i);
+                if (c == '"' || c == '\\')
+                {
+                    discovery.append('\\').append(c);
+                }
+                else if (c < 0x20)
+                {
+                    discovery.append(String.format("\\u%04x", (int) c));
+                }
+                else
+                {
+                    discovery.append(c);
+                }
+            }
+            discovery.append("\",\"{#TYPE}\":\"").append(type).append("\"}");
+        }
+    }
+
+    void encode(ZabbixPayload payload, SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+                SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+                SortedMap<String, Timer> timers)
+    {
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+        {
+            Object value = entry.getValue().getValue();
+            if (value != null)
+            {
+                addGauge(payload, items(entry.getKey(), GAUGE), value);
+            }
+        }
+        for (Map.Entry<String, Counter> entry : counters.entrySet())
+        {
+            add(payload, items(entry.getKey(), COUNTER), 0, entry.getValue().getCount());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+        {
+            Snapshot snapshot = entry.getValue().getSnapshot();
+            Items items = items(entry.getKey(), SNAPSHOT);
+            add(payload, items, 0, snapshot.getMin());
+            add(payload, items, 1, snapshot.getMax());
+            add(payload, items, 2, snapshot.getMean());
+            add(payload, items, 3, snapshot.getStdDev());
+            add(payload, items, 4, snapshot.getMedian());
+            add(payload, items, 5, snapshot.get75thPercentile());
+            add(payload, items, 6, snapshot.get95thPercentile());
+            add(payload, items, 7, snapshot.get98thPercentile());
+            add(payload, items, 8, snapshot.get99thPercentile());
+            add(payload, items, 9, snapshot.get999thPercentile());
+        }
+        for (Map.Entry<String, Meter> entry : meters.entrySet())
+        {
+            addMetered(payload, items(entry.getKey(), METER), entry.getValue());
+        }
+        for (Map.Entry<String, Timer> entry : timers.entrySet())
+        {
+            Timer timer = entry.getValue();
+            Items items = items(entry.getKey(), TIMER);
+            addMetered(payload, items, timer);
+            Snapshot snapshot = timer.getSnapshot();
+            add(payload, items, 5, duration(snapshot.getMin()));
+            add(payload, items, 6, duration(snapshot.getMax()));
+            add(payload, items, 7, duration(snapshot.getMean()));
+            add(payload, items, 8, duration(snapshot.getStdDev()));
+            add(payload, items, 9, duration(snapshot.getMedian()));
+            add(payload, items, 10, duration(snapshot.get75thPercentile()));
+            add(payload, items, 11, duration(snapshot.get95thPercentile()));
+            add(payload, items, 12, duration(snapshot.get98thPercentile()));
+            add(payload, items, 13, duration(snapshot.get99thPercentile()));
+            add(payload, items, 14, duration(snapshot.get999thPercentile()));
+        }
+    }
+
+    private void addMetered(ZabbixPayload payload, Items items, Metered meter)
+    {
+        add(payload, items, 0, meter.getCount());
+        add(payload, items, 1, rate(meter.getMeanRate()));
+        add(payload, items, 2, rate(meter.getOneMinuteRate()));
+        add(payload, items, 3, rate(meter.getFiveMinuteRate()));
+        add(payload, items, 4, rate(meter.getFifteenMinuteRate()));
+    }
+
+    private void addGauge(ZabbixPayload payload, Items items, Object value)
+    {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+        {
+            add(payload, items, 0, ((Number) value).longValue());
+        }
+        else if (value instanceof Double)
+        {
+            add(payload, items, 0, ((Double) value).doubleValue());
+        }
+        else if (value instanceof Float)
+        {
+            this.value.setLength(0);
+            this.value.append(((Float) value).floatValue());
+            payload.startItem(items.heads[0]);
+            payload.putPlain(this.value);
+            payload.endItem();
+        }
+        else
+        {
+            payload.startItem(items.heads[0]);
+            payload.putEscaped(value.toString());
+            payload.endItem();
+        }
+    }
+
+    private void add(ZabbixPayload payload, Items items, int measurement, long value)
+    {
+        this.value.setLength(0);
+        this.value.append(value);
+        payload.startItem(items.heads[measurement]);
+        payload.putPlain(this.value);
+        payload.endItem();
+    }
+
+    private void add(ZabbixPayload payload, Items items, int measurement, double value)
+    {
+        this.value.setLength(0);
+        this.value.append(value);
+        payload.startItem(items.heads[measurement]);
+        payload.putPlain(this.value);
+        payload.endItem();
+    }
+
+    /**
+     * @return the cached items of a metric, encoding them the first time it
+     *         is seen or if it is now a different kind of metric
+     */
+    private Items items(String name, String[] suffixes)
+    {
+        Items cached = items.get(name);
+        if (cached == null || cached.suffixes != suffixes)
+        {
+            cached = new Items(name, suffixes);
+            items.put(name, cached);
+        }
+        return cached;
+    }
+
+    int cachedItems()
+    {
+        return items.size();
+    }
+
+    private double rate(double rate)
+    {
+        return rate * rateFactor;
+    }
+
+    private double duration(double duration)
+    {
+        return duration * durationFactor;
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge)
+    {
+        metricsChanged = true;
+    }
+
+    @Override
+    public void onGaugeRemoved(String name)
+    {
+        items.remove(name);
+        metricsChanged = true;
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter)
+    {
+        metricsChanged = true;
+    }
+
+    @Override
+    public void onCounterRemoved(String name)
+    {
+        items.remove(name);
+        metricsChanged = true;
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram)
+    {
+        metricsChanged = true;
+    }
+
+    @Override
+    public void onHistogramRemoved(String name)
+    {
+        items.remove(name);
+        metricsChanged = true;
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter)
+    {
+        metricsChanged = true;
+    }
+
+    @Override
+    public void onMeterRemoved(String name)
+    {
+        items.remove(name);
+        metricsChanged = true;
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer)
+    {
+        metricsChanged = true;
+    }
+
+    @Override
+    public void onTimerRemoved(String name)
+    {
+        items.remove(name);
+        metricsChanged = true;
+    }
+
+    /**
+     * The encoded start of the item of each measurement of one metric.
+     */
+    private final class Items
+    {
+        final String[] suffixes;
+        final byte[][] heads;
+
+        Items(String name, String[] suffixes)
+        {
+            this.suffixes = suffixes;
+            this.heads = new byte[suffixes.length][];
+            for (int i = 0; i < suffixes.length; i++)
+            {
+                heads[i] = ZabbixPayload.itemHead(hostName, prefix + name + suffixes[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the same items as {@link ZabbixReporter} without going through
+ * zabbix-sender: the sender data request is written straight into a reused
+ * buffer from cached item keys and sent over NIO, instead of building a
+ * {@code DataObject} per measurement and a JSON string of all of them.
+ * Each sender splits the items into requests of its batch size.
+ * <p>
+ * The tick is sent to every sender, or with failover to the first healthy
+ * one and with round-robin to each healthy one in turn, moving on to the
+ * next with the requests that got no response if a send fails, so that the
+ * batches a server did answer are not stored twice.  A sender that fails is
+ * marked unhealthy and is probed in the background until it accepts
+ * connections again, on the shared {@link ReporterScheduler} when there is
+ * one.
+ * <p>
+ * With discovery, a low-level discovery item listing the metrics leads the
+ * tick whenever they have changed, see {@link ZabbixEncoder}.
+ */
+public class ZabbixNioReporter extends ScheduledReporter
+{
+    private static final Logger log = LoggerFactory.getLogger(ZabbixNioReporter.class);
+
+    private final MetricRegistry registry;
+    private final List<ZabbixNioSender> senders;
+    private final ZabbixEncoder encoder;
+    private final ZabbixPayload payload = new ZabbixPayload();
+    private final ZabbixPayload.Ranges everything = new ZabbixPayload.Ranges();
+    private ZabbixPayload.Ranges pending = new ZabbixPayload.Ranges();
+    private ZabbixPayload.Ranges unanswered = new ZabbixPayload.Ranges();
+    private final Clock clock;
+    private final Routing routing;
+    private final ScheduledExecutorService ownHealthChecks;
+    private final ScheduledFuture<?> healthCheck;
+    private final boolean discovery;
+    private int next;
+
+    ZabbixNioReporter(MetricRegistry registry, String name, MetricFilter filter, TimeUnit rateUnit,
+                      TimeUnit durationUnit, String hostName, String prefix, List<ZabbixNioSender> senders,
+                      Clock clock)
+    {
+        this(registry, name, filter, rateUnit, durationUnit, hostName, prefix, senders, clock, Routing.REPLICATE, 0,
+             false, 0);
+    }
+
+    ZabbixNioReporter(MetricRegistry registry, String name, MetricFilter filter, TimeUnit rateUnit,
+                      TimeUnit durationUnit, String hostName, String prefix, List<ZabbixNioSender> senders,
+                      Clock clock, Routing routing, int healthCheckInterval, boolean discovery,
+                      int discoveryRefreshInterval)
+    {
+        this(registry, name, filter, rateUnit, durationUnit, hostName, prefix, senders, clock, routing,
+             healthCheckInterval, discovery, discoveryRefreshInterval, null);
+    }
+
+    /**
+     * @param healthCheckInterval      seconds between probes of unhealthy
+     *                                 senders when not replicating
+     * @param discovery                whether to send the discovery item
+     * @param discoveryRefreshInterval seconds after which the discovery item
+     *                                 is sent again even though the metrics
+     *                                 have not changed, or 0 for never
+     * @param scheduler                the shared pool to probe on, or null
+     *                                 to start a thread for the probes
+     */
+    ZabbixNioReporter(MetricRegistry registry, String name, MetricFilter filter, TimeUnit rateUnit,
+                      TimeUnit durationUnit, String hostName, String prefix, List<ZabbixNioSender> senders,
+                      Clock clock, Routing routing, int healthCheckInterval, boolean discovery,
+                      int discoveryRefreshInterval, ReporterScheduler scheduler)
+    {
+        super(registry, name, filter, rateUnit, durationUnit);
+        this.registry = registry;
+        this.senders = new ArrayList<ZabbixNioSender>(senders);
+        this.encoder = new ZabbixEncoder(hostName, prefix, rateUnit, durationUnit, discoveryRefreshInterval);
+        this.clock = clock;
+        this.routing = routing;
+        this.discovery = discovery;
+        if (routing != Routing.REPLICATE && senders.size() > 1)
+        {
+            Runnable probe = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    probeUnhealthy();
+                }
+            };
+            if (scheduler != null)
+            {
+                ownHealthChecks = null;
+                healthCheck = scheduler.scheduleWithFixedDelay(probe, healthCheckInterval, TimeUnit.SECONDS);
+            }
+            else
+            {
+                ownHealthChecks = Executors.newSingleThreadScheduledExecutor(
+                        new ReporterScheduler.NamedThreadFactory(name + "-health-check"));
+                healthCheck = ownHealthChecks.scheduleWithFixedDelay(probe, healthCheckInterval,
+                                                                     healthCheckInterval, TimeUnit.SECONDS);
+            }
+        }
+        else
+        {
+            ownHealthChecks = null;
+            healthCheck = null;
+        }
+        registry.addListener(encoder);
+    }
+
+    @Override
+    public synchronized void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+                                    SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+                                    SortedMap<String, Timer> timers)
+    {
+        long time = clock.getTime() / 1000;
+        payload.clear(time);
+        boolean discovered = discovery && encoder.encodeDiscovery(payload, gauges, counters, histograms, meters,
+                                                                   timers, time);
+        encoder.encode(payload, gauges, counters, histograms, meters, timers);
+        if (payload.items() == 0)
+        {
+            return;
+        }
+        if (!route() && discovered)
+        {
+            encoder.discoveryFailed();
+        }
+    }
+
+    /**
+     * @return whether the tick reached every sender it was meant for
+     */
+    private boolean route()
+    {
+        everything.clear();
+        everything.add(0, payload.items());
+        if (routing == Routing.REPLICATE)
+        {
+            boolean sent = true;
+            for (ZabbixNioSender sender : senders)
+            {
+                sent &= send(sender, everything);
+            }
+            return sent;
+        }
+        int first = 0;
+        if (routing == Routing.ROUND_ROBIN)
+        {
+            first = next;
+            next = (next + 1) % senders.size();
+        }
+        pending.clear();
+        pending.add(0, payload.items());
+        boolean tried = false;
+        for (int i = 0; i < senders.size(); i++)
+        {
+            ZabbixNioSender sender = senders.get((first + i) % senders.size());
+            if (sender.isHealthy())
+            {
+                tried = true;
+                if (sendPending(sender))
+                {
+                    return true;
+                }
+            }
+        }
+        if (!tried)
+        {
+            // rather than drop the tick until a probe succeeds
+            for (int i = 0; i < senders.size(); i++)
+            {
+                if (sendPending(senders.get((first + i) % senders.size())))
+                {
+                    return true;
+                }
+            }
+        }
+        log.error("failed to report {} of {} items to any of {}",
+                  new Object[]{pending.items(), payload.items(), senders});
+        return false;
+    }
+
+    /**
+     * Sends the pending items and leaves those that got no response pending
+     * for the next sender.
+     */
+    private boolean sendPending(ZabbixNioSender sender)
+    {
+        if (send(sender, pending))
+        {
+            return true;
+        }
+        ZabbixPayload.Ranges spare = pending;
+        pending = unanswered;
+        unanswered = spare;
+        return false;
+    }
+
+    /**
+     * @return whether every item reached the sender's server, if not
+     *         necessarily processed; if not, the items that may not have
+     *         are left in {@link #unanswered}
+     */
+    private boolean send(ZabbixNioSender sender, ZabbixPayload.Ranges items)
+    {
+        try
+        {
+            sender.send(payload, items, unanswered);
+            sender.setHealthy(true);
+            return true;
+        }
+        catch (IOException e)
+        {
+            log.error("failed to report " + unanswered.items() + " of " + items.items() + " items to "
+                      + sender.getAddress(), e);
+            sender.setHealthy(false);
+            return false;
+        }
+        catch (RuntimeException e)
+        {
+            // no telling which requests were answered, so leave all of them to the next sender
+            unanswered.clear();
+            for (int i = 0; i < items.size(); i++)
+            {
+                unanswered.add(items.from(i), items.to(i));
+            }
+            log.error("failed to report " + items.items() + " items to " + sender.getAddress(), e);
+            sender.setHealthy(false);
+            sender.close();
+            return false;
+        }
+    }
+
+    private void probeUnhealthy()
+    {
+        for (ZabbixNioSender sender : senders)
+        {
+            if (!sender.isHealthy() && sender.probe())
+            {
+                log.info("zabbix {} is reachable again", sender.getAddress());
+            }
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        try
+        {
+            super.stop();
+        }
+        finally
+        {
+            registry.removeListener(encoder);
+            if (healthCheck != null)
+            {
+                healthCheck.cancel(true);
+            }
+            if (ownHealthChecks != null)
+            {
+                ownHealthChecks.shutdownNow();
+            }
+            synchronized (this)
+            {
+                for (ZabbixNioSender sender : senders)
+                {
+                    sender.close();
+                    sender.unregisterMetrics();
+                }
+            }
+        }
+    }
+
+    /**
+     * Which senders a tick goes to.
+     */
+    enum Routing
+    {
+        REPLICATE, FAILOVER, ROUND_ROBIN;
+
+        /**
+         * @param routing replicate, failover or round-robin
+         */
+        static Routing parse(String routing)
+        {
+            return valueOf(routing.toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+}
@@ -0,0 +1,645 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the items of a {@link ZabbixPayload} to one Zabbix server or proxy
+ * and reads back its responses.  The items are split into requests of up to
+ * a batch size, and up to a number of requests are kept in flight at once.
+ * The trapper answers one request per connection and then closes it, so
+ * each request gets a connection of its own and requests in flight are
+ * multiplexed on one selector; the selector, frames and response buffers
+ * are reused.  Timeouts are enforced with the selector since channels
+ * ignore the socket timeout.  Not thread safe, apart from
+ * {@link #probe} and the health flag.
+ */
+class ZabbixNioSender
+{
+    private static final Logger log = LoggerFactory.getLogger(ZabbixNioSender.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern SUCCESS = Pattern.compile("\"response\"\\s*:\\s*\"success\"");
+    private static final Pattern INFO = Pattern.compile("\"info\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern COUNTS = Pattern.compile(
+            "processed:?\\s*(\\d+).*?failed:?\\s*(\\d+).*?total:?\\s*(\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final int MAX_RESPONSE_LENGTH = 1024 * 1024;
+
+    private final InetSocketAddress address;
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final int batchSize;
+    private final Exchange[] exchanges;
+    private Counter processed = new Counter();
+    private Counter failed = new Counter();
+    private Counter errors = new Counter();
+    private MetricRegistry registry;
+    private String name;
+    private Selector selector;
+    private volatile boolean healthy = true;
+
+    ZabbixNioSender(InetSocketAddress address, int connectTimeout, int socketTimeout)
+    {
+        this(address, connectTimeout, socketTimeout, 0, 1);
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for a connection, or 0 to
+     *                       wait forever
+     * @param socketTimeout  milliseconds to wait for each read or write, or 0
+     *                       to wait forever
+     * @param batchSize      the most items to send in one request, or 0 to
+     *                       send all of them in one
+     * @param maxInFlight    the most requests to wait for at once
+     */
+    ZabbixNioSender(InetSocketAddress address, int connectTimeout, int socketTimeout, int batchSize,
+                    int maxInFlight)
+    {
+        this.address = address;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+        this.batchSize = batchSize;
+        this.exchanges = new Exchange[maxInFlight];
+        for (int i = 0; i < maxInFlight; i++)
+        {
+            exchanges[i] = new Exchange();
+        }
+    }
+
+    InetSocketAddress getAddress()
+    {
+        return address;
+    }
+
+    /**
+     * @return false once a send has failed, until a {@link #probe}
+     *         succeeds
+     */
+    boolean isHealthy()
+    {
+        return healthy;
+    }
+
+    void setHealthy(boolean healthy)
+    {
+        this.healthy = healthy;
+    }
+
+    /**
+     * Checks that the server accepts connections, on a blocking socket of
+     * its own, and marks this sender healthy if it does.
+     *
+     * @return whether the server accepted the connection
+     */
+    boolean probe()
+    {
+        try (Socket socket = new Socket())
+        {
+            socket.connect(address, connectTimeout);
+            healthy = true;
+            return true;
+        }
+        catch (IOException e)
+        {
+            log.debug("Zabbix {} is still unreachable: {}", address, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of items the server has processed
+     */
+    long getProcessed()
+    {
+        return processed.getCount();
+    }
+
+    /**
+     * @return the number of items the server has failed to process
+     */
+    long getFailed()
+    {
+        return failed.getCount();
+    }
+
+    /**
+     * @return the number of requests that got no response
+     */
+    long getErrors()
+    {
+        return errors.getCount();
+    }
+
+    /**
+     * Keeps the processed, failed and error counts of this sender in the
+     * registry, in the counters of any other sender to the same host that
+     * are already there.  They are removed by {@link #unregisterMetrics}.
+     */
+    void registerMetrics(MetricRegistry registry)
+    {
+        String name = MetricRegistry.name(ZabbixReporterConfig.class,
+                                          address.getHostString() + ":" + address.getPort());
+        processed = registry.counter(MetricRegistry.name(name, "processed"));
+        failed = registry.counter(MetricRegistry.name(name, "failed"));
+        errors = registry.counter(MetricRegistry.name(name, "errors"));
+        this.registry = registry;
+        this.name = name;
+    }
+
+    void unregisterMetrics()
+    {
+        if (registry != null)
+        {
+            remove(MetricRegistry.name(name, "processed"), processed);
+            remove(MetricRegistry.name(name, "failed"), failed);
+            remove(MetricRegistry.name(name, "errors"), errors);
+            registry = null;
+        }
+    }
+
+    private void remove(String name, Counter counter)
+    {
+        if (registry.getMetrics().get(name) == counter)
+        {
+            registry.remove(name);
+        }
+    }
+
+    /**
+     * Sends all the items of the payload and waits for every response.  A
+     * request that fails does not stop the others.
+     *
+     * @throws IOException the failure of the first request that got no
+     *                     response, with those of later ones suppressed
+     */
+    void send(ZabbixPayload payload) throws IOException
+    {
+        ZabbixPayload.Ranges all = new ZabbixPayload.Ranges();
+        all.add(0, payload.items());
+        send(payload, all, new ZabbixPayload.Ranges());
+    }
+
+    /**
+     * Sends the ranges of items of the payload and waits for every
+     * response.  A request that fails does not stop the others, and the
+     * items of those that got no response are added to the unanswered
+     * ranges, so that only they need to be sent elsewhere.
+     *
+     * @param unanswered cleared, then given the items that got no response
+     * @throws IOException the failure of the first request that got no
+     *                     response, with those of later ones suppressed
+     */
+    void send(ZabbixPayload payload, ZabbixPayload.Ranges items, ZabbixPayload.Ranges unanswered)
+            throws IOException
+    {
+        unanswered.clear();
+        if (items.size() == 0)
+        {
+            return;
+        }
+        IOException failure = null;
+        int range = 0;
+        int next = items.from(0);
+        int inFlight = 0;
+        try
+        {
+            if (selector == null)
+            {
+                selector = Selector.open();
+            }
+            while (range < items.size() || inFlight > 0)
+            {
+                for (Exchange exchange : exchanges)
+                {
+                    if (exchange.channel == null && range < items.size())
+                    {
+                        int end = items.to(range);
+                        int to = batchSize > 0 && end - next > batchSize ? next + batchSize : end;
+                        try
+                        {
+                            exchange.start(payload, next, to);
+                            inFlight++;
+                        }
+                        catch (IOException e)
+                        {
+                            failure = failed(exchange, e, failure, unanswered);
+                        }
+                        next = to;
+                        if (next == end && ++range < items.size())
+                        {
+                            next = items.from(range);
+                        }
+                    }
+                }
+                if (inFlight == 0)
+                {
+                    // every request of this pass failed to start: give up on the ones not started either
+                    notStarted(items, range, next, unanswered);
+                    break;
+                }
+                selector.select(timeout());
+                Set<SelectionKey> selected = selector.selectedKeys();
+                for (Exchange exchange : exchanges)
+                {
+                    if (exchange.channel != null && selected.remove(exchange.key))
+                    {
+                        try
+                        {
+                            if (exchange.advance())
+                            {
+                                received(exchange);
+                                inFlight--;
+                            }
+                        }
+                        catch (IOException e)
+                        {
+                            failure = failed(exchange, e, failure, unanswered);
+                            inFlight--;
+                        }
+                    }
+                }
+                long now = System.nanoTime();
+                for (Exchange exchange : exchanges)
+                {
+                    if (exchange.channel != null && exchange.expired(now))
+                    {
+                        failure = failed(exchange, new SocketTimeoutException("Timed out " + exchange.doing + " "
+                                                                              + address), failure, unanswered);
+                        inFlight--;
+                    }
+                }
+            }
+            // releases the cancelled keys before the next channels register
+            selector.selectNow();
+        }
+        catch (IOException e)
+        {
+            // the selector failed: nothing still in flight or not yet sent will be answered
+            for (Exchange exchange : exchanges)
+            {
+                if (exchange.channel != null)
+                {
+                    failure = failed(exchange, e, failure, unanswered);
+                }
+            }
+            notStarted(items, range, next, unanswered);
+            if (failure == null)
+            {
+                failure = e;
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Adds the items from {@code next} in the given range on, and those of
+     * every later range, to the unanswered ranges.
+     */
+    private static void notStarted(ZabbixPayload.Ranges items, int range, int next, ZabbixPayload.Ranges unanswered)
+    {
+        while (range < items.size())
+        {
+            unanswered.add(next, items.to(range));
+            if (++range < items.size())
+            {
+                next = items.from(range);
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds until the first request in flight times out, or 0
+     *         if none can
+     */
+    private long timeout()
+    {
+        long now = System.nanoTime();
+        long wait = 0;
+        for (Exchange exchange : exchanges)
+        {
+            if (exchange.channel != null && exchange.timeout > 0)
+            {
+                long left = Math.max(1, TimeUnit.NANOSECONDS.toMillis(exchange.deadline - now) + 1);
+                wait = wait == 0 ? left : Math.min(wait, left);
+            }
+        }
+        return wait;
+    }
+
+    private void received(Exchange exchange) throws IOException
+    {
+        Response response = exchange.response();
+        exchange.close();
+        processed.inc(response.processed);
+        failed.inc(response.failed);
+        if (!response.success)
+        {
+            log.warn("metrics reporting to zabbix {} unsuccessful: {}", address, response);
+        }
+        else if (log.isDebugEnabled())
+        {
+            log.debug("metrics reported to zabbix {}: {}", address, response);
+        }
+    }
+
+    private IOException failed(Exchange exchange, IOException e, IOException failure,
+                               ZabbixPayload.Ranges unanswered)
+    {
+        exchange.close();
+        errors.inc();
+        unanswered.add(exchange.from, exchange.to);
+        if (failure == null)
+        {
+            return e;
+        }
+        failure.addSuppressed(e);
+        return failure;
+    }
+
+    /**
+     * Looks the host up again if it did not resolve when the config was
+     * read, so a server whose name becomes known later is picked up.
+     *
+     * @throws UnknownHostException if the host still does not resolve
+     */
+    private InetSocketAddress resolve() throws UnknownHostException
+    {
+        if (!address.isUnresolved())
+        {
+            return address;
+        }
+        InetSocketAddress resolved = new InetSocketAddress(address.getHostString(), address.getPort());
+        if (resolved.isUnresolved())
+        {
+            throw new UnknownHostException("Unable to resolve Zabbix host " + address.getHostString());
+        }
+        return resolved;
+    }
+
+    void close()
+    {
+        for (Exchange exchange : exchanges)
+        {
+            exchange.close();
+        }
+        if (selector != null)
+        {
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                log.debug("Error closing selector for {}", address, e);
+            }
+            selector = null;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ZabbixNioSender[" + address + "]";
+    }
+
+    /**
+     * One request in flight and the connection it is sent on.
+     */
+    private final class Exchange
+    {
+        private final ZabbixPayload.Frame frame = new ZabbixPayload.Frame();
+        private ByteBuffer response = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        private SocketChannel channel;
+        private SelectionKey key;
+        private String doing;
+        private int timeout;
+        private long deadline;
+        private int from;
+        private int to;
+
+        void start(ZabbixPayload payload, int from, int to) throws IOException
+        {
+            this.from = from;
+            this.to = to;
+            payload.frame(frame, from, to);
+            response.clear();
+            response.limit(ZabbixPayload.HEADER_LENGTH);
+            InetSocketAddress target = resolve();
+            channel = SocketChannel.open();
+            try
+            {
+                channel.configureBlocking(false);
+                key = channel.register(selector, 0);
+                if (channel.connect(target))
+                {
+                    await(SelectionKey.OP_WRITE, socketTimeout, "sending to");
+                }
+                else
+                {
+                    await(SelectionKey.OP_CONNECT, connectTimeout, "connecting to");
+                }
+            }
+            catch (IOException e)
+            {
+                close();
+                throw e;
+            }
+            catch (RuntimeException e)
+            {
+                // such as an UnresolvedAddressException; left open, the exchange would look in flight for good
+                close();
+                throw new IOException("Unable to connect to " + address, e);
+            }
+        }
+
+        /**
+         * Goes as far as the channel allows.
+         *
+         * @return whether the whole response has been read
+         */
+        boolean advance() throws IOException
+        {
+            if (key.interestOps() == SelectionKey.OP_CONNECT)
+            {
+                if (!channel.finishConnect())
+                {
+                    return false;
+                }
+                await(SelectionKey.OP_WRITE, socketTimeout, "sending to");
+            }
+            if (frame.hasRemaining())
+            {
+                channel.write(frame.message());
+                if (frame.hasRemaining())
+                {
+                    await(SelectionKey.OP_WRITE, socketTimeout, "sending to");
+                    return false;
+                }
+                await(SelectionKey.OP_READ, socketTimeout, "waiting for a response from");
+            }
+            while (true)
+            {
+                int read = channel.read(response);
+                if (read < 0)
+                {
+                    throw new IOException("Connection to " + address + " closed before the whole response was read");
+                }
+                if (response.hasRemaining())
+                {
+                    if (read == 0)
+                    {
+                        await(SelectionKey.OP_READ, socketTimeout, "waiting for a response from");
+                        return false;
+                    }
+                }
+                else if (response.limit() == ZabbixPayload.HEADER_LENGTH)
+                {
+                    expectBody();
+                }
+                else
+                {
+                    return true;
+                }
+            }
+        }
+
+        private void expectBody() throws IOException
+        {
+            if (response.get(0) != 'Z' || response.get(1) != 'B' || response.get(2) != 'X' || response.get(3) != 'D')
+            {
+                throw new IOException("Invalid response header from " + address);
+            }
+            long length = response.getLong(5);
+            if (length <= 0 || length > MAX_RESPONSE_LENGTH)
+            {
+                throw new IOException("Invalid response length " + length + " from " + address);
+            }
+            int end = ZabbixPayload.HEADER_LENGTH + (int) length;
+            if (response.capacity() < end)
+            {
+                ByteBuffer grown = ByteBuffer.allocate(end).order(ByteOrder.LITTLE_ENDIAN);
+                response.flip();
+                grown.put(response);
+                response = grown;
+            }
+            response.limit(end);
+        }
+
+        Response response()
+        {
+            return Response.parse(new String(response.array(), ZabbixPayload.HEADER_LENGTH,
+                                             response.limit() - ZabbixPayload.HEADER_LENGTH, UTF_8));
+        }
+
+        private void await(int operation, int timeout, String doing)
+        {
+            key.interestOps(operation);
+            this.doing = doing;
+            this.timeout = timeout;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+
+        boolean expired(long now)
+        {
+            return timeout > 0 && now - deadline >= 0;
+        }
+
+        void close()
+        {
+            if (channel != null)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException e)
+                {
+                    log.debug("Error closing connection to {}", address, e);
+                }
+                channel = null;
+                key = null;
+            }
+        }
+    }
+
+    /**
+     * What the trapper made of a request.
+     */
+    static final class Response
+    {
+        final boolean success;
+        final int processed;
+        final int failed;
+        final int total;
+        final String info;
+
+        Response(boolean success, int processed, int failed, int total, String info)
+        {
+            this.success = success;
+            this.processed = processed;
+            this.failed = failed;
+            this.total = total;
+            this.info = info;
+        }
+
+        static Response parse(String body)
+        {
+            boolean success = SUCCESS.matcher(body).find();
+            Matcher info = INFO.matcher(body);
+            if (!info.find())
+            {
+                return new Response(success, 0, 0, 0, body);
+            }
+            Matcher counts = COUNTS.matcher(info.group(1));
+            if (!counts.find())
+            {
+                return new Response(success, 0, 0, 0, info.group(1));
+            }
+            return new Response(success, Integer.parseInt(counts.group(1)), Integer.parseInt(counts.group(2)),
+                                Integer.parseInt(counts.group(3)), info.group(1));
+        }
+
+        @Override
+        public String toString()
+        {
+            return (success ? "success" : "failure") + " (" + info + ")";
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The items of a tick written straight into a reused buffer, to be sent as
+ * one or more Zabbix sender data requests: the {@code ZBXD\1} header and
+ * length followed by {@code {"request":"sender data","data":[...],"clock":...}}.
+ * Items are appended from their pre-encoded start, up to the value, so a tick
+ * only writes values and timestamps.  A {@link Frame} wraps a range of the
+ * items as a request without copying them, and {@link Ranges} tracks which
+ * ranges a server has yet to answer.
+ */
+final class ZabbixPayload
+{
+    static final int HEADER_LENGTH = 13;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] HEADER = {'Z', 'B', 'X', 'D', 1};
+    private static final byte[] OPEN = "{\"request\":\"sender data\",\"data\":[".getBytes(UTF_8);
+    private static final byte[] CLOSE = "],\"clock\":".getBytes(UTF_8);
+    private static final byte[] ITEM_CLOCK = "\",\"clock\":".getBytes(UTF_8);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF_8);
+
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private int[] starts = new int[1024];
+    private int items;
+    private long clock;
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Starts a new tick whose items are all stamped with the clock, in
+     * seconds.
+     */
+    void clear(long clock)
+    {
+        buffer.clear();
+        items = 0;
+        this.clock = clock;
+    }
+
+    int items()
+    {
+        return items;
+    }
+
+    /**
+     * Starts an item with its encoded start, as made by {@link #itemHead};
+     * the value follows and {@link #endItem} closes it.
+     */
+    void startItem(byte[] head)
+    {
+        reserve(head.length + 1);
+        if (items > 0)
+        {
+            buffer.put((byte) ',');
+        }
+        if (items == starts.length)
+        {
+            starts = Arrays.copyOf(starts, items * 2);
+        }
+        starts[items] = buffer.position();
+        buffer.put(head);
+    }
+
+    /**
+     * Writes a value made of characters that need no escaping, such as a
+     * formatted number.
+     */
+    void putPlain(CharSequence value)
+    {
+        reserve(value.length());
+        for (int i = 0; i < value.length(); i++)
+        {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    void putEscaped(CharSequence value)
+    {
+        reserve(value.length() * 6);
+        escape(value, buffer);
+    }
+
+    void endItem()
+    {
+        reserve(ITEM_CLOCK.length + digits.length + 1);
+        buffer.put(ITEM_CLOCK);
+        putLong(buffer, clock);
+        buffer.put((byte) '}');
+        items++;
+    }
+
+    /**
+     * Points the frame at the items from {@code from}, inclusive, to
+     * {@code to}, exclusive.  It is valid until the next call to
+     * {@link #clear} or until more items are added.
+     */
+    void frame(Frame frame, int from, int to)
+    {
+        if (frame.source != buffer)
+        {
+            frame.source = buffer;
+            frame.message[2] = buffer.duplicate();
+        }
+        ByteBuffer data = frame.message[2];
+        int end = to < items ? starts[to] - 1 : buffer.position();
+        data.limit(end).position(starts[from]);
+        frame.open.rewind();
+        frame.close.clear();
+        frame.close.put(CLOSE);
+        putLong(frame.close, clock);
+        frame.close.put((byte) '}');
+        frame.close.flip();
+        frame.header.clear();
+        frame.header.put(HEADER).putLong(OPEN.length + data.remaining() + frame.close.remaining());
+        frame.header.flip();
+        frame.items = to - from;
+    }
+
+    private void putLong(ByteBuffer out, long value)
+    {
+        if (value == Long.MIN_VALUE)
+        {
+            out.put(Long.toString(value).getBytes(UTF_8));
+            return;
+        }
+        int i = digits.length;
+        long rest = Math.abs(value);
+        do
+        {
+            digits[--i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        while (rest != 0);
+        if (value < 0)
+        {
+            out.put((byte) '-');
+        }
+        out.put(digits, i, digits.length - i);
+    }
+
+    private void reserve(int bytes)
+    {
+        if (buffer.remaining() < bytes)
+        {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * @return the encoded start of an item, up to and including the quote
+     *         opening its value
+     */
+    static byte[] itemHead(String host, String key)
+    {
+        ByteBuffer head = ByteBuffer.allocate(32 + (host.length() + key.length()) * 6);
+        head.put("{\"host\":\"".getBytes(UTF_8));
+        escape(host, head);
+        head.put("\",\"key\":\"".getBytes(UTF_8));
+        escape(key, head);
+        head.put("\",\"value\":\"".getBytes(UTF_8));
+        head.flip();
+        byte[] bytes = new byte[head.remaining()];
+        head.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the characters as the UTF-8 bytes of the inside of a JSON
+     * string; the buffer needs room for six bytes per character.
+     */
+    static void escape(CharSequence value, ByteBuffer out)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                out.put((byte) '\\').put((byte) c);
+            }
+            else if (c < 0x20)
+            {
+                out.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                   .put(HEX[c >> 4]).put(HEX[c & 0xf]);
+            }
+            else if (c < 0x80)
+            {
+                out.put((byte) c);
+            }
+            else if (c < 0x800)
+            {
+                out.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                     && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                int code = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xf0 | code >> 18)).put((byte) (0x80 | code >> 12 & 0x3f))
+                   .put((byte) (0x80 | code >> 6 & 0x3f)).put((byte) (0x80 | code & 0x3f));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                out.put((byte) '?');
+            }
+            else
+            {
+                out.put((byte) (0xe0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3f)).put((byte) (0x80 | c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * One sender data request over a range of the items, as the buffers of
+     * a gathering write.  Reused from request to request.
+     */
+    static final class Frame
+    {
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer open = ByteBuffer.wrap(OPEN).asReadOnlyBuffer();
+        private final ByteBuffer close = ByteBuffer.allocate(CLOSE.length + 21);
+        private final ByteBuffer[] message = {header, open, null, close};
+        private ByteBuffer source;
+        private int items;
+
+        ByteBuffer[] message()
+        {
+            return message;
+        }
+
+        int items()
+        {
+            return items;
+        }
+
+        boolean hasRemaining()
+        {
+            return close.hasRemaining();
+        }
+    }
+
+    /**
+     * Ranges of the items of a payload, each from an item inclusive to
+     * another exclusive, reused from tick to tick.
+     */
+    static final class Ranges
+    {
+        private int[] bounds = new int[8];
+        private int size;
+
+        void clear()
+        {
+            size = 0;
+        }
+
+        /**
+         * Adds the items from inclusive to exclusive, unless there are none.
+         */
+        void add(int from, int to)
+        {
+            if (from >= to)
+            {
+                return;
+            }
+            if (2 * size == bounds.length)
+            {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[2 * size] = from;
+            bounds[2 * size + 1] = to;
+            size++;
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        int from(int range)
+        {
+            return bounds[2 * range];
+        }
+
+        int to(int range)
+        {
+            return bounds[2 * range + 1];
+        }
+
+        /**
+         * @return the number of items in all the ranges
+         */
+        int items()
+        {
+            int items = 0;
+            for (int i = 0; i < size; i++)
+            {
+                items += to(i) - from(i);
+            }
+            return items;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
@@ -44,18 +45,28 @@ public class ZabbixReporter extends ScheduledReporter
     private final ZabbixSender sender;
     private final String hostName;
     private final String prefix;
+    private final Clock clock;
 
     public ZabbixReporter(ZabbixSender sender, String hostName, String prefix,
                           MetricRegistry registry, String name, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit)
+    {
+        this(sender, hostName, prefix, registry, name, filter, rateUnit, durationUnit, Clock.defaultClock());
+    }
+
+    public ZabbixReporter(ZabbixSender sender, String hostName, String prefix,
+                          MetricRegistry registry, String name, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit,
+                          Clock clock)
     {
         super(registry, name, filter, rateUnit, durationUnit);
         this.sender = sender;
         this.hostName = hostName;
         this.prefix = prefix;
+        this.clock = clock;
     }
 
     private DataObject toDataObject(String key, String suffix, Object value) {
-        return DataObject.builder().host(hostName).key(prefix + key + suffix).value("" + value).build();
+        return DataObject.builder().host(hostName).key(prefix + key + suffix).value("" + value)
+                         .clock(clock.getTime() / 1000).build();
     }
 
     private void addSnapshotDataObject(String key, Snapshot snapshot, List<DataObject> dataObjectList) {
@@ -98,13 +109,15 @@ public class ZabbixReporter extends ScheduledReporter
         List<DataObject> dataObjectList = new ArrayList<DataObject>();
         for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
             DataObject dataObject = DataObject.builder().host(hostName).key(prefix + entry.getKey())
-                                              .value(entry.getValue().getValue().toString()).build();
+                                              .value(entry.getValue().getValue().toString())
+                                              .clock(clock.getTime() / 1000).build();
             dataObjectList.add(dataObject);
         }
 
         for (Map.Entry<String, Counter> entry : counters.entrySet()) {
             DataObject dataObject = DataObject.builder().host(hostName).key(prefix + entry.getKey())
-                                              .value("" + entry.getValue().getCount()).build();
+                                              .value("" + entry.getValue().getCount())
+                                              .clock(clock.getTime() / 1000).build();
             dataObjectList.add(dataObject);
         }
 
@@ -14,7 +14,9 @@
 
 package com.addthis.metrics3.reporter.config;
 
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -24,25 +26,17 @@ import com.addthis.metrics.reporter.config.AbstractZabbixReporterConfig;
 import com.addthis.metrics.reporter.config.HostPort;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
-import io.github.hengyunabc.zabbix.sender.ZabbixSender;
 
 public class ZabbixReporterConfig extends AbstractZabbixReporterConfig implements MetricsReporterConfigThree
 {
     private static final Logger log = LoggerFactory.getLogger(ZabbixReporterConfig.class);
-    private static final String SENDER_CLASS = "io.github.hengyunabc.zabbix.sender.ZabbixSender";
 
-    private final List<ZabbixReporter> reporters = new ArrayList<ZabbixReporter>();
+    private final ConfiguredReporters reporters = new ConfiguredReporters(this);
     private MetricRegistry registry;
 
     @Override
     public boolean enable(MetricRegistry registry)
     {
-        if (!isClassAvailable(SENDER_CLASS))
-        {
-            log.error("Tried to enable Zabbix Reporter, but class {} was not found", SENDER_CLASS);
-            return false;
-        }
-
         this.registry = registry;
 
         if (hostName == null)
@@ -54,24 +48,68 @@ public class ZabbixReporterConfig extends AbstractZabbixReporterConfig implement
         // note: don't go via InetAddress.getLocalHost() as that may return unexpected results or
         // take a long time (DNS roundtrips/timeouts) or even an exception being throws,
 
+        MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate(), registry);
+        ZabbixNioReporter.Routing routing = ZabbixNioReporter.Routing.parse(getRouting());
+        List<ZabbixNioSender> senders = new ArrayList<ZabbixNioSender>();
         for (HostPort hostPort : getFullHostList())
         {
-            ZabbixSender sender = new ZabbixSender(hostPort.getHost(), hostPort.getPort(), connectTimeout, socketTimeout);
-            MetricFilter filter = MetricFilterTransformer.generateFilter(getPredicate());
-            ZabbixReporter reporter = new ZabbixReporter(sender, hostName, prefix, registry, name, filter, getRealRateunit(), getRealDurationunit());
-            reporters.add(reporter);
+            log.info("Enabling ZabbixReporter to {}:{}", new Object[]{hostPort.getHost(), hostPort.getPort()});
+            ZabbixNioSender sender = new ZabbixNioSender(new InetSocketAddress(hostPort.getHost(), hostPort.getPort()),
+                                                         connectTimeout, socketTimeout, batchSize, maxInFlight);
+            registerMetrics(registry, sender);
+            if (routing == ZabbixNioReporter.Routing.REPLICATE)
+            {
+                // a reporter per host, so a slow host does not hold up the others
+                start(Collections.singletonList(sender), routing, filter);
+            }
+            else
+            {
+                senders.add(sender);
+            }
+        }
+        if (!senders.isEmpty())
+        {
+            start(senders, routing, filter);
         }
 
         return true;
     }
 
+    private void start(List<ZabbixNioSender> senders, ZabbixNioReporter.Routing routing, MetricFilter filter)
+    {
+        ZabbixNioReporter reporter = new ZabbixNioReporter(registry, name, filter, getRealRateunit(),
+                                                           getRealDurationunit(), hostName, prefix, senders,
+                                                           reporters.getClock(), routing, healthCheckInterval,
+                                                           discovery, discoveryRefreshInterval,
+                                                           reporters.getScheduler());
+        reporters.start(reporter, name, registry, filter);
+    }
+
+    private static void registerMetrics(MetricRegistry registry, ZabbixNioSender sender)
+    {
+        try
+        {
+            sender.registerMetrics(registry);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // a metric of another type already has the name
+            log.warn("Not registering item counts of {}: {}", sender, e.getMessage());
+        }
+    }
+
     public List<HostPort> getFullHostList()
     {
         return getHostListAndStringList();
     }
 
+    void setContext(ReporterContext context)
+    {
+        reporters.setContext(context);
+    }
+
     public void report()
     {
-        // noop
+        reporters.report();
     }
 }
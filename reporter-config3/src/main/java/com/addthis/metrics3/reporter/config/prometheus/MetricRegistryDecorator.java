@@ -16,9 +16,12 @@ package com.addthis.metrics3.reporter.config.prometheus;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import com.codahale.metrics.Counter;
@@ -26,7 +29,9 @@ import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 
@@ -38,17 +43,75 @@ import org.slf4j.LoggerFactory;
 import io.prometheus.client.Collector;
 import io.prometheus.client.Collector.MetricFamilySamples.Sample;
 
+/**
+ * Exposes a Dropwizard registry as Prometheus metric families.  The
+ * sanitized name and help text of each metric are kept from scrape to scrape,
+ * dropped by a registry listener when the metric is removed, and the label
+ * lists, quantile labels included, are built once, so a scrape only reads the
+ * current values.  Whether the filter accepts a metric is kept with its names,
+ * so the filter runs once per metric rather than on every scrape.  Call
+ * {@link #close} once the decorator is no longer used to remove its listener.
+ */
 public class MetricRegistryDecorator extends Collector {
 
     private static final Logger logger = LoggerFactory.getLogger(MetricRegistryDecorator.class);
 
+    private static final String[] QUANTILES = {"0.5", "0.75", "0.95", "0.98", "0.99", "0.999"};
+
     private final MetricRegistry registry;
-    private final List<String> labelNames = new ArrayList<>();
-    private final List<String> labelValues = new ArrayList<>();
+    private final MetricFilter filter;
+    private final List<String> labelNames;
+    private final List<String> labelValues;
+    private final List<String> gaugeValueLabelNames;
+    private final List<String> quantileLabelNames;
+    private final List<List<String>> quantileLabelValues;
+    private final ConcurrentMap<String, Names> names = new ConcurrentHashMap<>();
+    private final MetricRegistryListener listener = new MetricRegistryListener.Base() {
+        @Override
+        public void onGaugeRemoved(String name) {
+            names.remove(name);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            names.remove(name);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            names.remove(name);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            names.remove(name);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            names.remove(name);
+        }
+    };
+
+    // answers from the cached decision of each metric
+    private final MetricFilter allowed = new MetricFilter() {
+        @Override
+        public boolean matches(String name, Metric metric) {
+            return names(name, metric).allowed;
+        }
+    };
 
     public MetricRegistryDecorator(MetricRegistry registry, String job, Map<String, String> labels) {
+        this(registry, job, labels, MetricFilter.ALL);
+    }
+
+    public MetricRegistryDecorator(MetricRegistry registry, String job, Map<String, String> labels,
+                                   MetricFilter filter) {
         this.registry = registry;
+        this.filter = filter;
 
+        List<String> labelNames = new ArrayList<>();
+        List<String> labelValues = new ArrayList<>();
         if (StringUtils.isNotBlank(job)) {
             labelNames.add("job");
             labelValues.add(job);
@@ -58,117 +121,190 @@ public class MetricRegistryDecorator extends Collector {
             labelNames.add(entry.getKey());
             labelValues.add(entry.getValue());
         }
+        this.labelNames = Collections.unmodifiableList(labelNames);
+        this.labelValues = Collections.unmodifiableList(labelValues);
+        this.gaugeValueLabelNames = addToEnd(labelNames, "gauge_value");
+        this.quantileLabelNames = addToEnd(labelNames, "quantile");
+        List<List<String>> quantileLabelValues = new ArrayList<>();
+        for (String quantile : QUANTILES) {
+            quantileLabelValues.add(addToEnd(labelValues, quantile));
+        }
+        this.quantileLabelValues = Collections.unmodifiableList(quantileLabelValues);
+
+        registry.addListener(listener);
     }
 
-    private static String getHelpMessage(String metricName, Metric metric) {
+    /**
+     * Stops tracking removals from the registry.
+     */
+    public void close() {
+        registry.removeListener(listener);
+    }
+
+    static String getHelpMessage(String metricName, Metric metric) {
         return String.format("Generated from dropwizard metric import (metric=%s, type=%s)", metricName, metric.getClass().getName());
     }
 
     public MetricFamilySamples fromCounter(String name, Counter counter) {
-        Sample sample = new Sample(name, labelNames, labelValues, new Long(counter.getCount()).doubleValue());
-        return new MetricFamilySamples(name, Type.GAUGE, getHelpMessage(name, counter), Arrays.asList(sample));
+        return fromCounter(new Names(name, counter, true), counter);
+    }
+
+    private MetricFamilySamples fromCounter(Names names, Counter counter) {
+        Sample sample = new Sample(names.name, labelNames, labelValues, (double) counter.getCount());
+        return new MetricFamilySamples(names.name, Type.GAUGE, names.help, Collections.singletonList(sample));
     }
 
     public MetricFamilySamples fromGauge(String name, Gauge gauge) {
-        Object obj = gauge.getValue();
+        return fromGauge(new Names(name, gauge, true), gauge);
+    }
 
-        List<String> labelNames = new ArrayList<>(this.labelNames);
-        List<String> labelValues = new ArrayList<>(this.labelValues);
+    private MetricFamilySamples fromGauge(Names names, Gauge gauge) {
+        Object obj = gauge.getValue();
 
-        double value;
+        Sample sample;
         if (obj instanceof Number) {
-            value = ((Number) obj).doubleValue();
+            sample = new Sample(names.name, labelNames, labelValues, ((Number) obj).doubleValue());
         } else if (obj instanceof Boolean) {
-            value = ((Boolean) obj) ? 1 : 0;
+            sample = new Sample(names.name, labelNames, labelValues, ((Boolean) obj) ? 1 : 0);
         } else if (obj instanceof String) {
             // Support string gauge constants by setting gauge_value label to the value
             // with a number value of 1.
-            labelNames.add("gauge_value");
-            labelValues.add((String) obj);
-            value = 1;
+            sample = new Sample(names.name, gaugeValueLabelNames, addToEnd(labelValues, (String) obj), 1);
         } else {
             return null;
         }
 
-        Sample sample = new Sample(name, labelNames, labelValues, value);
-        return new MetricFamilySamples(name, Type.GAUGE, getHelpMessage(name, gauge), Arrays.asList(sample));
+        return new MetricFamilySamples(names.name, Type.GAUGE, names.help, Collections.singletonList(sample));
     }
 
     public MetricFamilySamples fromHistogram(String name, Histogram histogram) {
-        return fromSnapshotAndCount(name, histogram.getSnapshot(), histogram.getCount(), 1.0, getHelpMessage(name, histogram));
+        return fromHistogram(new Names(name, histogram, true), histogram);
+    }
+
+    private MetricFamilySamples fromHistogram(Names names, Histogram histogram) {
+        return fromSnapshotAndCount(names.name, names.count, histogram.getSnapshot(), histogram.getCount(), 1.0, names.help);
     }
 
     public MetricFamilySamples fromTimer(String name, Timer timer) {
-        return fromSnapshotAndCount(name, timer.getSnapshot(), timer.getCount(), 1.0D / TimeUnit.SECONDS.toNanos(1L), getHelpMessage(name, timer));
+        return fromTimer(new Names(name, timer, true), timer);
+    }
+
+    private MetricFamilySamples fromTimer(Names names, Timer timer) {
+        return fromSnapshotAndCount(names.name, names.count, timer.getSnapshot(), timer.getCount(), 1.0D / TimeUnit.SECONDS.toNanos(1L), names.help);
     }
 
     public MetricFamilySamples fromMeter(String name, Meter meter) {
-        List<Sample> samples = Arrays.asList(new Sample(name + "_total", labelNames, labelValues, meter.getCount()));
-        return new MetricFamilySamples(name + "_total", Type.COUNTER, getHelpMessage(name, meter), samples);
+        return fromMeter(new Names(name, meter, true), meter);
+    }
+
+    private MetricFamilySamples fromMeter(Names names, Meter meter) {
+        List<Sample> samples = Collections.singletonList(new Sample(names.total, labelNames, labelValues, meter.getCount()));
+        return new MetricFamilySamples(names.total, Type.COUNTER, names.help, samples);
     }
 
     public MetricFamilySamples fromSnapshotAndCount(String name, Snapshot snapshot, long count, double factor, String helpMessage) {
-        List<String> labelNames = addToEnd(this.labelNames, "quantile");
+        return fromSnapshotAndCount(name, name + "_count", snapshot, count, factor, helpMessage);
+    }
 
+    private MetricFamilySamples fromSnapshotAndCount(String name, String countName, Snapshot snapshot, long count, double factor, String helpMessage) {
         List<Sample> samples = Arrays.asList(
-                new Sample(name, labelNames, addToEnd(labelValues, "0.5"), snapshot.getMedian() * factor),
-                new Sample(name, labelNames, addToEnd(labelValues, "0.75"), snapshot.get75thPercentile() * factor),
-                new Sample(name, labelNames, addToEnd(labelValues, "0.95"), snapshot.get95thPercentile() * factor),
-                new Sample(name, labelNames, addToEnd(labelValues, "0.98"), snapshot.get98thPercentile() * factor),
-                new Sample(name, labelNames, addToEnd(labelValues, "0.99"), snapshot.get99thPercentile() * factor),
-                new Sample(name, labelNames, addToEnd(labelValues, "0.999"), snapshot.get999thPercentile() * factor),
-                new Sample(name + "_count", new ArrayList<String>(), new ArrayList<String>(), count)
+                new Sample(name, quantileLabelNames, quantileLabelValues.get(0), snapshot.getMedian() * factor),
+                new Sample(name, quantileLabelNames, quantileLabelValues.get(1), snapshot.get75thPercentile() * factor),
+                new Sample(name, quantileLabelNames, quantileLabelValues.get(2), snapshot.get95thPercentile() * factor),
+                new Sample(name, quantileLabelNames, quantileLabelValues.get(3), snapshot.get98thPercentile() * factor),
+                new Sample(name, quantileLabelNames, quantileLabelValues.get(4), snapshot.get99thPercentile() * factor),
+                new Sample(name, quantileLabelNames, quantileLabelValues.get(5), snapshot.get999thPercentile() * factor),
+                new Sample(countName, Collections.<String>emptyList(), Collections.<String>emptyList(), count)
         );
 
         return new MetricFamilySamples(name, Type.SUMMARY, helpMessage, samples);
     }
 
     private static List<String> addToEnd(List<String> list, String value) {
-        List<String> copy = new ArrayList<>(list);
+        List<String> copy = new ArrayList<>(list.size() + 1);
+        copy.addAll(list);
         copy.add(value);
-        return copy;
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * @return the cached names and filter decision of a metric, made the
+     *         first time it is seen or if it is now a different kind of metric
+     */
+    private Names names(String name, Metric metric) {
+        Names cached = names.get(name);
+        if (cached == null || cached.type != metric.getClass()) {
+            cached = new Names(sanitizeMetricName(name), metric, filter.matches(name, metric));
+            names.put(name, cached);
+            // the metric may have been removed since the scrape read it, and
+            // the listener may already have run; the registry drops a metric
+            // before notifying, so either the listener or this check sees it
+            if (registry.getMetrics().get(name) != metric) {
+                names.remove(name, cached);
+            }
+        }
+        return cached;
     }
 
     @Override
     public List<MetricFamilySamples> collect() {
-        List<MetricFamilySamples> metricFamilySamples = new ArrayList<>();
-
-        for (SortedMap.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
-            MetricFamilySamples sample = fromGauge(sanitizeMetricName(entry.getKey()), entry.getValue());
+        SortedMap<String, Gauge> gauges = registry.getGauges(allowed);
+        SortedMap<String, Counter> counters = registry.getCounters(allowed);
+        SortedMap<String, Histogram> histograms = registry.getHistograms(allowed);
+        SortedMap<String, Timer> timers = registry.getTimers(allowed);
+        SortedMap<String, Meter> meters = registry.getMeters(allowed);
+        List<MetricFamilySamples> metricFamilySamples = new ArrayList<>(
+                gauges.size() + counters.size() + histograms.size() + timers.size() + meters.size());
+
+        for (SortedMap.Entry<String, Gauge> entry : gauges.entrySet()) {
+            MetricFamilySamples sample = fromGauge(names(entry.getKey(), entry.getValue()), entry.getValue());
             if (sample != null) {
                 metricFamilySamples.add(sample);
             }
         }
 
-        for (SortedMap.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
-            MetricFamilySamples sample = fromCounter(sanitizeMetricName(entry.getKey()), entry.getValue());
-            if (sample != null) {
-                metricFamilySamples.add(sample);
-            }
+        for (SortedMap.Entry<String, Counter> entry : counters.entrySet()) {
+            metricFamilySamples.add(fromCounter(names(entry.getKey(), entry.getValue()), entry.getValue()));
         }
 
-        for (SortedMap.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
-            MetricFamilySamples sample = fromHistogram(sanitizeMetricName(entry.getKey()), entry.getValue());
-            if (sample != null) {
-                metricFamilySamples.add(sample);
-            }
+        for (SortedMap.Entry<String, Histogram> entry : histograms.entrySet()) {
+            metricFamilySamples.add(fromHistogram(names(entry.getKey(), entry.getValue()), entry.getValue()));
         }
 
-        for (SortedMap.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
-            MetricFamilySamples sample = fromTimer(sanitizeMetricName(entry.getKey()), entry.getValue());
-            if (sample != null) {
-                metricFamilySamples.add(sample);
-            }
+        for (SortedMap.Entry<String, Timer> entry : timers.entrySet()) {
+            metricFamilySamples.add(fromTimer(names(entry.getKey(), entry.getValue()), entry.getValue()));
         }
 
-        for (SortedMap.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
-            MetricFamilySamples sample = fromMeter(sanitizeMetricName(entry.getKey()), entry.getValue());
-            if (sample != null) {
-                metricFamilySamples.add(sample);
-            }
+        for (SortedMap.Entry<String, Meter> entry : meters.entrySet()) {
+            metricFamilySamples.add(fromMeter(names(entry.getKey(), entry.getValue()), entry.getValue()));
         }
 
         return metricFamilySamples;
     }
 
+    int cachedNames() {
+        return names.size();
+    }
+
+    /**
+     * The sanitized names and help text of one metric, and whether the filter
+     * accepts it.
+     */
+    private static final class Names {
+        final Class<?> type;
+        final boolean allowed;
+        final String name;
+        final String count;
+        final String total;
+        final String help;
+
+        Names(String name, Metric metric, boolean allowed) {
+            this.type = metric.getClass();
+            this.allowed = allowed;
+            this.name = name;
+            this.count = name + "_count";
+            this.total = name + "_total";
+            this.help = getHelpMessage(name, metric);
+        }
+    }
 }
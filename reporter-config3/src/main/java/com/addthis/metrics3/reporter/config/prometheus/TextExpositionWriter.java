@@ -0,0 +1,346 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config.prometheus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import org.apache.commons.lang3.StringUtils;
+
+import io.prometheus.client.Collector;
+
+/**
+ * Writes a Dropwizard registry in the Prometheus text format 0.0.4 straight
+ * to a stream, with the same families, samples and labels as
+ * {@link MetricRegistryDecorator} but without building a
+ * {@code MetricFamilySamples} per metric.  The encoded help, type and sample
+ * names of each metric, labels included, are kept from scrape to scrape along
+ * with whether the filter accepts it, and dropped by a registry listener when
+ * the metric is removed.  The registry is
+ * walked through its live view rather than the sorted copies of its getters,
+ * so families come out in no particular order and a scrape holds a fixed
+ * amount of memory whatever the size of the registry.  Safe for concurrent
+ * scrapes.  Call {@link #close} once the writer is no longer used to remove
+ * its listener.
+ */
+public class TextExpositionWriter {
+
+    public static final String CONTENT_TYPE_004 = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] QUANTILES = {"0.5", "0.75", "0.95", "0.98", "0.99", "0.999"};
+    private static final double NANOS_TO_SECONDS = 1.0D / TimeUnit.SECONDS.toNanos(1L);
+    private static final byte[] ONE = " 1.0\n".getBytes(UTF_8);
+    private static final int BUFFER_SIZE = 8192;
+
+    private final MetricRegistry registry;
+    private final MetricFilter filter;
+    private final String labels;
+    private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+    private final MetricRegistryListener listener = new MetricRegistryListener.Base() {
+        @Override
+        public void onGaugeRemoved(String name) {
+            families.remove(name);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            families.remove(name);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            families.remove(name);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            families.remove(name);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            families.remove(name);
+        }
+    };
+
+    public TextExpositionWriter(MetricRegistry registry, String job, Map<String, String> labels) {
+        this(registry, job, labels, MetricFilter.ALL);
+    }
+
+    public TextExpositionWriter(MetricRegistry registry, String job, Map<String, String> labels,
+                                MetricFilter filter) {
+        this.registry = registry;
+        this.filter = filter;
+
+        StringBuilder encoded = new StringBuilder();
+        if (StringUtils.isNotBlank(job)) {
+            appendLabel(encoded, "job", job);
+        }
+        for (Map.Entry<String, String> entry : labels.entrySet()) {
+            appendLabel(encoded, entry.getKey(), entry.getValue());
+        }
+        this.labels = encoded.toString();
+
+        registry.addListener(listener);
+    }
+
+    /**
+     * Stops tracking removals from the registry.
+     */
+    public void close() {
+        registry.removeListener(listener);
+    }
+
+    /**
+     * Writes every metric of the registry the filter accepts.  The stream is
+     * flushed but not closed.
+     */
+    public void write(OutputStream out) throws IOException {
+        Output output = new Output(out);
+        for (Map.Entry<String, Metric> entry : registry.getMetrics().entrySet()) {
+            Metric metric = entry.getValue();
+            Family family = family(entry.getKey(), metric);
+            if (!family.allowed) {
+                continue;
+            }
+            if (metric instanceof Gauge) {
+                writeGauge(output, family, ((Gauge) metric).getValue());
+            } else if (metric instanceof Counter) {
+                output.write(family.head);
+                output.write(family.samples[0]);
+                output.value(((Counter) metric).getCount());
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                writeSummary(output, family, histogram.getSnapshot(), histogram.getCount(), 1.0);
+            } else if (metric instanceof Timer) {
+                Timer timer = (Timer) metric;
+                writeSummary(output, family, timer.getSnapshot(), timer.getCount(), NANOS_TO_SECONDS);
+            } else if (metric instanceof Meter) {
+                output.write(family.head);
+                output.write(family.samples[0]);
+                output.value(((Meter) metric).getCount());
+            }
+        }
+        output.flush();
+    }
+
+    private void writeGauge(Output output, Family family, Object value) throws IOException {
+        if (value instanceof Number) {
+            output.write(family.head);
+            output.write(family.samples[0]);
+            output.value(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            output.write(family.head);
+            output.write(family.samples[0]);
+            output.value(((Boolean) value) ? 1 : 0);
+        } else if (value instanceof String) {
+            // Support string gauge constants by setting gauge_value label to the value
+            // with a number value of 1.
+            output.write(family.head);
+            output.write(family.samples[1]);
+            output.write(escapeLabelValue((String) value).getBytes(UTF_8));
+            output.write(family.samples[2]);
+            output.write(ONE);
+        }
+    }
+
+    private void writeSummary(Output output, Family family, Snapshot snapshot, long count, double factor)
+            throws IOException {
+        output.write(family.head);
+        output.write(family.samples[0]);
+        output.value(snapshot.getMedian() * factor);
+        output.write(family.samples[1]);
+        output.value(snapshot.get75thPercentile() * factor);
+        output.write(family.samples[2]);
+        output.value(snapshot.get95thPercentile() * factor);
+        output.write(family.samples[3]);
+        output.value(snapshot.get98thPercentile() * factor);
+        output.write(family.samples[4]);
+        output.value(snapshot.get99thPercentile() * factor);
+        output.write(family.samples[5]);
+        output.value(snapshot.get999thPercentile() * factor);
+        output.write(family.samples[6]);
+        output.value(count);
+    }
+
+    /**
+     * @return the cached family and filter decision of a metric, encoded the
+     *         first time it is seen or if it is now a different kind of metric
+     */
+    private Family family(String name, Metric metric) {
+        Family cached = families.get(name);
+        if (cached == null || cached.type != metric.getClass()) {
+            cached = new Family(Collector.sanitizeMetricName(name), metric, filter.matches(name, metric));
+            families.put(name, cached);
+            // the metric may have been removed since the scrape read it, and
+            // the listener may already have run; the registry drops a metric
+            // before notifying, so either the listener or this check sees it
+            if (registry.getMetrics().get(name) != metric) {
+                families.remove(name, cached);
+            }
+        }
+        return cached;
+    }
+
+    int cachedFamilies() {
+        return families.size();
+    }
+
+    private static void appendLabel(StringBuilder encoded, String name, String value) {
+        encoded.append(name).append("=\"").append(escapeLabelValue(value)).append("\",");
+    }
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    /**
+     * The encoded lines of one metric up to each value: the help and type
+     * lines, then the start of each sample, up to and including the space
+     * before its value.  A gauge has its sample and, for string values, the
+     * sample split around the {@code gauge_value} label value.  Nothing is
+     * encoded for a metric the filter rejects.
+     */
+    private final class Family {
+        final Class<?> type;
+        final boolean allowed;
+        final byte[] head;
+        final byte[][] samples;
+
+        Family(String name, Metric metric, boolean allowed) {
+            this.type = metric.getClass();
+            this.allowed = allowed;
+            if (!allowed) {
+                head = null;
+                samples = null;
+                return;
+            }
+            String help = escapeHelp(MetricRegistryDecorator.getHelpMessage(name, metric));
+            if (metric instanceof Gauge || metric instanceof Counter) {
+                head = head(name, help, "gauge");
+                samples = new byte[][]{
+                        encode(sample(name, "") + " "),
+                        encode(name + "{" + labels + "gauge_value=\""),
+                        encode("\",}")};
+            } else if (metric instanceof Histogram || metric instanceof Timer) {
+                head = head(name, help, "summary");
+                samples = new byte[QUANTILES.length + 1][];
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    samples[i] = encode(sample(name, "quantile=\"" + QUANTILES[i] + "\",") + " ");
+                }
+                samples[QUANTILES.length] = encode(name + "_count ");
+            } else {
+                head = head(name + "_total", help, "counter");
+                samples = new byte[][]{encode(sample(name + "_total", "") + " ")};
+            }
+        }
+
+        private String sample(String name, String extraLabels) {
+            if (labels.isEmpty() && extraLabels.isEmpty()) {
+                return name;
+            }
+            return name + "{" + labels + extraLabels + "}";
+        }
+
+        private byte[] head(String name, String help, String type) {
+            return encode("# HELP " + name + " " + help + "\n# TYPE " + name + " " + type + "\n");
+        }
+
+        private byte[] encode(String text) {
+            return text.getBytes(UTF_8);
+        }
+    }
+
+    /**
+     * Buffers the bytes of one scrape in front of the stream.
+     */
+    private static final class Output {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final StringBuilder value = new StringBuilder(32);
+        private int count;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.length - count) {
+                drain();
+                if (bytes.length > buffer.length) {
+                    out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+
+        /**
+         * Writes the value as Go would, as {@link Collector#doubleToGoString}
+         * does, and ends the line.
+         */
+        void value(double d) throws IOException {
+            value.setLength(0);
+            if (d == Double.POSITIVE_INFINITY) {
+                value.append("+Inf");
+            } else if (d == Double.NEGATIVE_INFINITY) {
+                value.append("-Inf");
+            } else if (Double.isNaN(d)) {
+                value.append("NaN");
+            } else {
+                value.append(d);
+            }
+            value.append('\n');
+            if (value.length() > buffer.length - count) {
+                drain();
+            }
+            for (int i = 0; i < value.length(); i++) {
+                buffer[count++] = (byte) value.charAt(i);
+            }
+        }
+
+        private void drain() throws IOException {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+
+        void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchingStatsDReporterTest {
+
+    private DatagramSocket socket;
+    private MetricRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        socket.setSoTimeout(10000);
+        socket.setReceiveBufferSize(1 << 20);
+        registry = new MetricRegistry();
+        for (int i = 0; i < 100; i++) {
+            registry.counter("counter" + i).inc(i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        socket.close();
+    }
+
+    private BatchingStatsDReporter reporter(int maxPacketSize) {
+        return reporter(maxPacketSize, false);
+    }
+
+    private BatchingStatsDReporter reporter(int maxPacketSize, boolean delta) {
+        return new BatchingStatsDReporter(registry, MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS,
+                                          "app", new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                                       socket.getLocalPort()), maxPacketSize, delta);
+    }
+
+    private List<String> receive(long packets, int maxPacketSize) throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (long i = 0; i < packets; i++) {
+            DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+            socket.receive(packet);
+            assertTrue(packet.getLength() <= Math.max(maxPacketSize, 64));
+            for (String line : new String(packet.getData(), 0, packet.getLength(), "UTF-8").split("\n")) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void linesArePackedIntoPackets() throws Exception {
+        BatchingStatsDReporter reporter = reporter(512);
+        reporter.report();
+        reporter.stop();
+
+        // "app.counterNN:NN|g" is at most 21 bytes, so at least 23 to a packet
+        assertTrue(reporter.getPackets() <= 5);
+        List<String> lines = receive(reporter.getPackets(), 512);
+        assertEquals(100, lines.size());
+        assertTrue(lines.contains("app.counter0:0|g"));
+        assertTrue(lines.contains("app.counter99:99|g"));
+        assertEquals(0, reporter.getFailures());
+    }
+
+    @Test
+    public void zeroPacketSizeSendsEveryLineAlone() throws Exception {
+        BatchingStatsDReporter reporter = reporter(0);
+        reporter.report();
+        reporter.stop();
+
+        assertEquals(100, reporter.getPackets());
+        assertEquals(100, receive(reporter.getPackets(), 0).size());
+    }
+
+    @Test
+    public void metersAndTimersUseTheStatsDReporterNames() throws Exception {
+        registry = new MetricRegistry();
+        registry.meter("hits").mark(3);
+        registry.timer("latency").update(5, TimeUnit.MILLISECONDS);
+        BatchingStatsDReporter reporter = reporter(1432);
+        reporter.report();
+        reporter.stop();
+
+        assertEquals(1, reporter.getPackets());
+        List<String> lines = receive(1, 1432);
+        assertEquals(5 + 15, lines.size());
+        assertEquals("app.hits.samples:3|g", lines.get(0));
+        assertEquals("app.latency.max:5.00|ms", lines.get(5));
+        assertEquals("app.latency.samples:1|g", lines.get(15));
+    }
+
+    @Test
+    public void deltaModeSendsOnlyChangedCounts() throws Exception {
+        registry = new MetricRegistry();
+        registry.counter("idle").inc(7);
+        registry.counter("busy").inc(2);
+        registry.meter("hits").mark(3);
+        BatchingStatsDReporter reporter = reporter(1432, true);
+        try {
+            reporter.report();
+            List<String> first = receive(1, 1432);
+            assertEquals("app.busy:2|c", first.get(0));
+            assertEquals("app.idle:7|c", first.get(1));
+            assertEquals("app.hits.samples:3|c", first.get(2));
+
+            registry.counter("busy").inc(5);
+            registry.counter("busy").dec(1);
+            reporter.report();
+            List<String> second = receive(1, 1432);
+            assertEquals("app.busy:4|c", second.get(0));
+            // the idle counter and the meter's unchanged count are skipped,
+            // its rates are still sent
+            assertEquals(5, second.size());
+            assertTrue(second.get(1), second.get(1).startsWith("app.hits.m1_rate:"));
+
+            registry.remove("busy");
+            registry.counter("busy").inc(1);
+            reporter.report();
+            assertEquals("app.busy:1|c", receive(1, 1432).get(0));
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void deltaModeResendsTheChangesOfAFailedPacket() throws Exception {
+        registry = new MetricRegistry();
+        registry.counter("busy").inc(2);
+        // fills the packet past the largest datagram UDP can carry, so writing it fails
+        char[] name = new char[70000];
+        Arrays.fill(name, 'g');
+        registry.register(new String(name), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return 1;
+            }
+        });
+        BatchingStatsDReporter reporter = reporter(1 << 17, true);
+        try {
+            reporter.report();
+            assertEquals(1, reporter.getFailures());
+            assertEquals(0, reporter.getPackets());
+
+            registry.remove(new String(name));
+            registry.counter("busy").inc(3);
+            reporter.report();
+            assertEquals(0, reporter.getFailures());
+            assertEquals(Arrays.asList("app.busy:5|c"), receive(1, 1 << 17));
+        } finally {
+            reporter.stop();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.Arrays;
+
+import com.addthis.metrics.reporter.config.HostPort;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CarbonHashRingTest {
+
+    private static HostPort host(String host, int port, String instance) {
+        HostPort hostPort = new HostPort(host, port);
+        hostPort.setInstance(instance);
+        return hostPort;
+    }
+
+    @Test
+    public void nodeKeysMatchCarbon() {
+        assertEquals("('10.0.0.1', 'a')", CarbonHashRing.nodeKey(host("10.0.0.1", 2004, "a")));
+        assertEquals("('10.0.0.2', None)", CarbonHashRing.nodeKey(host("10.0.0.2", 2004, null)));
+    }
+
+    @Test
+    public void placesMetricsLikeCarbon() {
+        // expected nodes computed with carbon.hashing.ConsistentHashRing
+        CarbonHashRing ring = new CarbonHashRing(Arrays.asList(host("10.0.0.1", 2004, "a"),
+                                                               host("10.0.0.1", 2104, "b"),
+                                                               host("10.0.0.2", 2004, null)));
+        StringBuilder nodes = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            nodes.append(ring.node("app.metric" + i + ".p99"));
+        }
+        assertEquals("10121110101200010210", nodes.toString());
+    }
+}
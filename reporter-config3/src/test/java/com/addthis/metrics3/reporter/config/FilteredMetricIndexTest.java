@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.addthis.metrics.reporter.config.PredicateConfig;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Timer;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+public class FilteredMetricIndexTest {
+
+    private static MetricFilter blackJmxOnly() {
+        return MetricFilterTransformer.generateFilter(
+                new PredicateConfig("black", Arrays.asList(".*JMXONLY$"), true));
+    }
+
+    @Test
+    public void tracksAddsAndRemoves() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("existing");
+        registry.counter("existing_JMXONLY");
+        FilteredMetricIndex index = FilteredMetricIndex.attach(registry, blackJmxOnly());
+        assertEquals(1, index.getCounters().size());
+
+        registry.timer("b.timer");
+        registry.timer("a.timer");
+        registry.meter("hidden_JMXONLY");
+        assertEquals(Arrays.asList("a.timer", "b.timer"), Arrays.asList(index.getTimers().keySet().toArray()));
+        assertTrue(index.getMeters().isEmpty());
+
+        registry.remove("existing");
+        registry.remove("a.timer");
+        assertTrue(index.getCounters().isEmpty());
+        assertEquals(1, index.getTimers().size());
+    }
+
+    @Test
+    public void detachStopsTracking() {
+        MetricRegistry registry = new MetricRegistry();
+        FilteredMetricIndex index = FilteredMetricIndex.attach(registry, blackJmxOnly());
+        registry.counter("before");
+        index.detach();
+        registry.counter("after");
+        assertEquals(Arrays.asList("before"), Arrays.asList(index.getCounters().keySet().toArray()));
+    }
+
+    @Test
+    public void stopDetachesTheIndexAndForgetsTheReporters() {
+        MetricRegistry registry = spy(new MetricRegistry());
+        ConsoleReporterConfig config = new ConsoleReporterConfig();
+        config.setPeriod(1);
+        config.setTimeunit("HOURS");
+        config.setIndexed(true);
+        ConfiguredReporters reporters = new ConfiguredReporters(config);
+        ScheduledReporter delegate = mock(ScheduledReporter.class);
+        reporters.start(delegate, "test-reporter", registry, blackJmxOnly());
+        reporters.stop();
+
+        verify(registry).removeListener(Mockito.any(FilteredMetricIndex.class));
+        assertTrue(reporters.getReporters().isEmpty());
+        reporters.report();
+        verify(delegate).stop();
+        Mockito.verifyNoMoreInteractions(delegate);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void indexedConfigReportsFromIndex() {
+        MetricRegistry registry = new MetricRegistry();
+        Counter counter = registry.counter("foo");
+        registry.counter("foo_JMXONLY");
+        MetricFilter filter = blackJmxOnly();
+
+        ConsoleReporterConfig config = new ConsoleReporterConfig();
+        config.setPeriod(1);
+        config.setTimeunit("HOURS");
+        config.setIndexed(true);
+        ConfiguredReporters reporters = new ConfiguredReporters(config);
+        ScheduledReporter delegate = mock(ScheduledReporter.class);
+        reporters.start(delegate, "test-reporter", registry, filter);
+        reporters.report();
+        reporters.stop();
+
+        SortedMap<String, Counter> expected = new TreeMap<String, Counter>();
+        expected.put("foo", counter);
+        verify(delegate).report(Mockito.<SortedMap<String, Gauge>>anyObject(), Mockito.eq(expected),
+                                Mockito.<SortedMap<String, Histogram>>anyObject(),
+                                Mockito.<SortedMap<String, Meter>>anyObject(),
+                                Mockito.<SortedMap<String, Timer>>anyObject());
+    }
+}
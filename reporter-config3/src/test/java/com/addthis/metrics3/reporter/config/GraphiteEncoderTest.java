@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class GraphiteEncoderTest {
+
+    private final GraphiteEncoder encoder =
+            new GraphiteEncoder("app", false, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, null);
+
+    private String formatDouble(double value) throws Exception {
+        int length = encoder.formatDouble(value);
+        return new String(encoder.getDigits(), 0, length, "US-ASCII");
+    }
+
+    private String formatLong(long value) throws Exception {
+        int length = encoder.formatLong(value);
+        return new String(encoder.getDigits(), 0, length, "US-ASCII");
+    }
+
+    private static void assertFormatted(String expected, String actual, double value) {
+        assertEquals("formatting " + value, expected, actual);
+    }
+
+    @Test
+    public void doublesAreFormattedLikeTheGraphiteReporter() throws Exception {
+        double[] values = {0.0, -0.0, 0.001, -0.001, 0.005, 0.125, 1.005, 2.675, -2.675, 0.995, 9999999.995,
+                           1e7, 123456789.123, 1e300, -1e-300, Double.MIN_VALUE, Double.MAX_VALUE,
+                           Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (double value : values) {
+            assertFormatted(String.format(Locale.US, "%2.2f", value), formatDouble(value), value);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            double value;
+            switch (i % 4) {
+                case 0:
+                    value = random.nextDouble() * 1000;
+                    break;
+                case 1:
+                    // exactly on or next to a half cent
+                    value = (random.nextInt(2000000) - 1000000 + 0.5) / 100.0;
+                    break;
+                case 2:
+                    value = Double.longBitsToDouble(random.nextLong());
+                    break;
+                default:
+                    value = random.nextGaussian() * Math.pow(10, random.nextInt(12) - 4);
+                    break;
+            }
+            assertFormatted(String.format(Locale.US, "%2.2f", value), formatDouble(value), value);
+        }
+    }
+
+    @Test
+    public void longsAreFormattedLikeToString() throws Exception {
+        long[] values = {0, 1, -1, 9, 10, -10, 1500000000L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            assertEquals(Long.toString(value), formatLong(value));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextLong() >> random.nextInt(64);
+            assertEquals(Long.toString(value), formatLong(value));
+        }
+    }
+
+    @Test
+    public void removedMetricsAreDroppedFromTheCache() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.addListener(encoder);
+        registry.counter("requests").inc(3);
+        registry.meter("hits");
+        GraphiteBatch[] batches = {new GraphiteBatch(false)};
+
+        encoder.encode(batches, registry.getGauges(), registry.getCounters(), registry.getHistograms(),
+                       registry.getMeters(), registry.getTimers(), 1500000000L);
+        assertEquals(2, encoder.cachedPaths());
+        assertEquals(6, batches[0].size());
+
+        registry.remove("requests");
+        assertEquals(1, encoder.cachedPaths());
+
+        // a new metric of another kind under the same name gets its own paths
+        registry.histogram("requests");
+        encoder.encode(batches, registry.getGauges(), registry.getCounters(), registry.getHistograms(),
+                       registry.getMeters(), registry.getTimers(), 1500000001L);
+        assertEquals(16, batches[0].size());
+        ByteBuffer first = batches[0].slice(0, 1);
+        byte[] line = new byte[first.remaining()];
+        first.get(line);
+        assertEquals("app.requests.count 0 1500000001\n", new String(line, "UTF-8"));
+    }
+}
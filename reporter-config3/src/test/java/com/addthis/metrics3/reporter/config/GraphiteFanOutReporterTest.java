@@ -0,0 +1,374 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.metrics.reporter.config.HostPort;
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GraphiteFanOutReporterTest {
+
+    private static final Clock FIXED = new Clock() {
+        @Override
+        public long getTick() {
+            return 0;
+        }
+
+        @Override
+        public long getTime() {
+            return 1500000000000L;
+        }
+    };
+
+    private ExecutorService executor;
+    private MetricRegistry registry;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        registry = new MetricRegistry();
+        registry.counter("requests").inc(3);
+        registry.meter("hits");
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private Future<byte[]> accept(final ServerSocket server) {
+        return executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    for (int n; (n = in.read(buffer)) > 0; ) {
+                        out.write(buffer, 0, n);
+                    }
+                    return out.toByteArray();
+                }
+            }
+        });
+    }
+
+    private static ServerSocket listen() throws IOException {
+        return new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    private static GraphiteEndpoint tcp(int port) {
+        return new TcpGraphiteEndpoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    @Test
+    public void everyHostGetsTheSamePlaintext() throws Exception {
+        try (ServerSocket first = listen(); ServerSocket second = listen()) {
+            ServerSocket closed = listen();
+            int deadPort = closed.getLocalPort();
+            closed.close();
+            Future<byte[]> firstReceived = accept(first);
+            Future<byte[]> secondReceived = accept(second);
+            GraphiteFanOutReporter reporter = new GraphiteFanOutReporter(
+                    registry, MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "app", false,
+                    Arrays.asList(tcp(first.getLocalPort()), tcp(deadPort), tcp(second.getLocalPort())), null, FIXED);
+            reporter.report();
+            reporter.stop();
+
+            String expected = "app.requests.count 3 1500000000\n"
+                              + "app.hits.count 0 1500000000\n"
+                              + "app.hits.m1_rate 0.00 1500000000\n"
+                              + "app.hits.m5_rate 0.00 1500000000\n"
+                              + "app.hits.m15_rate 0.00 1500000000\n"
+                              + "app.hits.mean_rate 0.00 1500000000\n";
+            assertEquals(expected, new String(firstReceived.get(10, TimeUnit.SECONDS), "UTF-8"));
+            assertEquals(expected, new String(secondReceived.get(10, TimeUnit.SECONDS), "UTF-8"));
+            assertEquals(1, reporter.getEndpoints().get(1).getFailures());
+        }
+    }
+
+    @Test
+    public void anUnresolvableHostDoesNotStopTheOthers() throws Exception {
+        try (ServerSocket server = listen()) {
+            Future<byte[]> received = accept(server);
+            TcpGraphiteEndpoint unresolvable = new TcpGraphiteEndpoint(
+                    InetSocketAddress.createUnresolved("graphite.invalid", 2003));
+            GraphiteFanOutReporter reporter = new GraphiteFanOutReporter(
+                    registry, MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "app", false,
+                    Arrays.<GraphiteEndpoint>asList(unresolvable, tcp(server.getLocalPort())), null, FIXED);
+            reporter.report();
+            reporter.stop();
+
+            String lines = new String(received.get(10, TimeUnit.SECONDS), "UTF-8");
+            assertTrue(lines, lines.startsWith("app.requests.count 3 1500000000\n"));
+            assertEquals(1, unresolvable.getFailures());
+            assertEquals(0, reporter.getEndpoints().get(1).getFailures());
+        }
+    }
+
+    @Test
+    public void pickledMessagesAreFramed() throws Exception {
+        try (ServerSocket server = listen()) {
+            Future<byte[]> received = accept(server);
+            GraphiteFanOutReporter reporter = new GraphiteFanOutReporter(
+                    registry, MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "", true,
+                    Arrays.asList(tcp(server.getLocalPort())), null, FIXED);
+            reporter.report();
+            reporter.stop();
+
+            ByteBuffer message = ByteBuffer.wrap(received.get(10, TimeUnit.SECONDS));
+            int length = message.getInt();
+            assertEquals(message.remaining(), length);
+            String pickle = new String(message.array(), 4, length, "UTF-8");
+            assertTrue(pickle, pickle.startsWith("(l(S'requests.count'\n(L1500000000L\nS'3'\ntta"));
+            assertTrue(pickle, pickle.endsWith("S'0.00'\ntta."));
+        }
+    }
+
+    @Test
+    public void consistentHashSplitsMetricsAcrossHosts() throws Exception {
+        try (ServerSocket first = listen(); ServerSocket second = listen()) {
+            Future<byte[]> firstReceived = accept(first);
+            Future<byte[]> secondReceived = accept(second);
+            List<HostPort> hosts = Arrays.asList(new HostPort("127.0.0.1", first.getLocalPort()),
+                                                 new HostPort("127.0.0.1", second.getLocalPort()));
+            hosts.get(0).setInstance("a");
+            hosts.get(1).setInstance("b");
+            CarbonHashRing ring = new CarbonHashRing(hosts);
+            GraphiteFanOutReporter reporter = new GraphiteFanOutReporter(
+                    registry, MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "app", false,
+                    Arrays.asList(tcp(first.getLocalPort()), tcp(second.getLocalPort())), ring, FIXED);
+            reporter.report();
+            reporter.stop();
+
+            String[] received = {new String(firstReceived.get(10, TimeUnit.SECONDS), "UTF-8"),
+                                 new String(secondReceived.get(10, TimeUnit.SECONDS), "UTF-8")};
+            int lines = 0;
+            for (int host = 0; host < received.length; host++) {
+                for (String line : received[host].split("\n")) {
+                    if (!line.isEmpty()) {
+                        assertEquals(line, host, ring.node(line.substring(0, line.indexOf(' '))));
+                        lines++;
+                    }
+                }
+            }
+            assertEquals(6, lines);
+        }
+    }
+
+    @Test
+    public void udpEntriesArePackedIntoDatagrams() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            registry.counter("counter" + i).inc(i);
+        }
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            socket.setSoTimeout(10000);
+            UdpGraphiteEndpoint endpoint = new UdpGraphiteEndpoint(
+                    new InetSocketAddress("127.0.0.1", socket.getLocalPort()), 512);
+            endpoint.registerMetrics(registry);
+            GraphiteFanOutReporter reporter = new GraphiteFanOutReporter(
+                    registry, MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "app", false,
+                    Arrays.<GraphiteEndpoint>asList(endpoint), null, FIXED);
+            reporter.report();
+            String metric = MetricRegistry.name(GraphiteReporterConfig.class, "udp",
+                                                "127.0.0.1:" + socket.getLocalPort(), "datagrams");
+            assertEquals(endpoint.getDatagrams(), registry.getCounters().get(metric).getCount());
+            reporter.stop();
+            assertFalse(registry.getCounters().containsKey(metric));
+
+            int lines = 0;
+            long bytes = 0;
+            for (long i = 0; i < endpoint.getDatagrams(); i++) {
+                DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+                socket.receive(packet);
+                assertTrue(packet.getLength() <= 512);
+                String payload = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+                assertTrue(payload, payload.endsWith(" 1500000000\n"));
+                lines += payload.split("\n").length;
+                bytes += packet.getLength();
+            }
+            // the test's 56 plus the endpoint's own two counters
+            assertEquals(58, lines);
+            assertTrue(endpoint.getDatagrams() < 10);
+            assertEquals(bytes, endpoint.getBytes());
+        }
+    }
+
+    @Test
+    public void udpCountsAreSharedAndReleased() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 2003);
+        UdpGraphiteEndpoint first = new UdpGraphiteEndpoint(address, 512);
+        UdpGraphiteEndpoint second = new UdpGraphiteEndpoint(address, 512);
+        // as a repeated enable on the same registry does
+        first.registerMetrics(registry);
+        second.registerMetrics(registry);
+        String metric = MetricRegistry.name(GraphiteReporterConfig.class, "udp", "127.0.0.1:2003", "bytes");
+        registry.getCounters().get(metric).inc(7);
+        assertEquals(7, first.getBytes());
+        assertEquals(7, second.getBytes());
+
+        first.unregisterMetrics();
+        assertFalse(registry.getCounters().containsKey(metric));
+        second.unregisterMetrics();
+        assertEquals(2, registry.getMetrics().size());
+    }
+
+    private static void assertTick(BufferedReader in) throws IOException {
+        assertEquals("app.requests.count 3 1500000000", in.readLine());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(in.readLine().startsWith("app.hits."));
+        }
+    }
+
+    @Test
+    public void keepAliveReusesTheConnectionAndReconnects() throws Exception {
+        try (ServerSocket server = listen()) {
+            server.setSoTimeout(10000);
+            TcpGraphiteEndpoint endpoint = new TcpGraphiteEndpoint(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), true, 10, 100);
+            GraphiteFanOutReporter reporter = new GraphiteFanOutReporter(
+                    registry, MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "app", false,
+                    Arrays.<GraphiteEndpoint>asList(endpoint), null, FIXED);
+            try {
+                reporter.report();
+                reporter.report();
+                try (Socket first = server.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(first.getInputStream(), "UTF-8"));
+                    assertTick(in);
+                    assertTick(in);
+                }
+                // let the close reach the reporter's side
+                Thread.sleep(100);
+                reporter.report();
+                try (Socket second = server.accept()) {
+                    assertTick(new BufferedReader(new InputStreamReader(second.getInputStream(), "UTF-8")));
+                }
+                assertEquals(0, endpoint.getFailures());
+            } finally {
+                reporter.stop();
+            }
+        }
+    }
+
+    @Test
+    public void keepAliveBacksOffAfterAFailure() throws Exception {
+        ServerSocket closed = listen();
+        int deadPort = closed.getLocalPort();
+        closed.close();
+        TcpGraphiteEndpoint endpoint = new TcpGraphiteEndpoint(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), deadPort), true,
+                TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+        GraphiteBatch batch = new GraphiteBatch(false);
+        batch.reserve(16).put("app.x 1 1\n".getBytes("UTF-8"));
+        batch.endEntry();
+
+        endpoint.report(batch);
+        assertEquals(1, endpoint.getFailures());
+        assertFalse(endpoint.isReady());
+        // dropped without another connect while backing off
+        endpoint.report(batch);
+        assertEquals(1, endpoint.getFailures());
+    }
+
+    private static GraphiteBatch largeBatch(int entries) throws IOException {
+        byte[] line = "app.a.metric.with.a.long.enough.name.to.fill.the.socket.buffers 1234567890 1500000000\n"
+                .getBytes("UTF-8");
+        GraphiteBatch batch = new GraphiteBatch(false);
+        for (int i = 0; i < entries; i++) {
+            batch.reserve(line.length).put(line);
+            batch.endEntry();
+        }
+        return batch;
+    }
+
+    @Test
+    public void aRelayThatStopsReadingTimesOut() throws Exception {
+        try (ServerSocket server = new ServerSocket()) {
+            server.setReceiveBufferSize(4096);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+            // accepted by the backlog, never read
+            TcpGraphiteEndpoint endpoint = new TcpGraphiteEndpoint(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), false, 2000, 200,
+                    TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+            GraphiteBatch batch = largeBatch(256 * 1024);
+
+            long start = System.nanoTime();
+            endpoint.report(batch);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(1, endpoint.getFailures());
+            assertFalse(endpoint.isReady());
+        }
+    }
+
+    @Test
+    public void anAddressThatNeverAnswersTimesOut() throws Exception {
+        List<Socket> queued = new ArrayList<>();
+        try (ServerSocket server = listen()) {
+            // once the accept queue is full, further connections are neither accepted nor refused
+            while (true) {
+                Socket socket = new Socket();
+                queued.add(socket);
+                try {
+                    socket.connect(server.getLocalSocketAddress(), 200);
+                } catch (SocketTimeoutException full) {
+                    break;
+                }
+            }
+            TcpGraphiteEndpoint endpoint = new TcpGraphiteEndpoint(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), false, 200, 200,
+                    TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+
+            long start = System.nanoTime();
+            endpoint.report(largeBatch(1));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(1, endpoint.getFailures());
+        } finally {
+            for (Socket socket : queued) {
+                socket.close();
+            }
+        }
+    }
+}
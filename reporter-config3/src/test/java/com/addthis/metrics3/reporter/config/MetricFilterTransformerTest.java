@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.Arrays;
+
+import com.addthis.metrics.reporter.config.PredicateConfig;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricFilterTransformerTest {
+
+    private static PredicateConfig predicate(int cacheSize) {
+        PredicateConfig predicate = new PredicateConfig("black", Arrays.asList(".*JMXONLY$"), true);
+        predicate.setCacheSize(cacheSize);
+        return predicate;
+    }
+
+    @Test
+    public void nullPredicateAllowsAll() {
+        assertSame(MetricFilter.ALL, MetricFilterTransformer.generateFilter(null, new MetricRegistry()));
+    }
+
+    @Test
+    public void cachedDecisions() {
+        MetricFilterTransformer.PredicateConfigFilter filter =
+                (MetricFilterTransformer.PredicateConfigFilter) MetricFilterTransformer.generateFilter(predicate(10));
+        Counter counter = new Counter();
+        assertTrue(filter.matches("foo.requests", counter));
+        assertFalse(filter.matches("foo.requests_JMXONLY", counter));
+        assertEquals(0.0, filter.getCacheHitRatio(), 0.0);
+        assertTrue(filter.matches("foo.requests", counter));
+        assertFalse(filter.matches("foo.requests_JMXONLY", counter));
+        assertEquals(0.5, filter.getCacheHitRatio(), 0.0);
+        assertEquals(2, filter.getCacheSize());
+    }
+
+    @Test
+    public void cacheIsBounded() {
+        MetricFilterTransformer.PredicateConfigFilter filter =
+                (MetricFilterTransformer.PredicateConfigFilter) MetricFilterTransformer.generateFilter(predicate(2));
+        Counter counter = new Counter();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(filter.matches("foo" + i, counter));
+        }
+        assertEquals(2, filter.getCacheSize());
+    }
+
+    @Test
+    public void cacheDisabledByDefault() {
+        MetricFilterTransformer.PredicateConfigFilter filter =
+                (MetricFilterTransformer.PredicateConfigFilter) MetricFilterTransformer.generateFilter(predicate(0));
+        assertTrue(filter.matches("foo", new Counter()));
+        assertEquals(0, filter.getCacheSize());
+    }
+
+    @Test
+    public void removalEvicts() {
+        MetricRegistry registry = new MetricRegistry();
+        MetricFilterTransformer.PredicateConfigFilter filter =
+                (MetricFilterTransformer.PredicateConfigFilter) MetricFilterTransformer.generateFilter(predicate(10), registry);
+        Counter counter = registry.counter("foo");
+        registry.counter("bar");
+        assertEquals(2, registry.getCounters(filter).size());
+        assertEquals(2, filter.getCacheSize());
+        registry.remove("foo");
+        assertEquals(1, filter.getCacheSize());
+        assertTrue(filter.matches("foo", counter));
+    }
+
+    @Test
+    public void detachStopsEvicting() {
+        MetricRegistry registry = new MetricRegistry();
+        MetricFilterTransformer.PredicateConfigFilter filter =
+                (MetricFilterTransformer.PredicateConfigFilter) MetricFilterTransformer.generateFilter(predicate(10), registry);
+        registry.counter("foo");
+        assertEquals(1, registry.getCounters(filter).size());
+        MetricFilterTransformer.detach(filter);
+        MetricFilterTransformer.detach(filter);
+        registry.remove("foo");
+        assertEquals(1, filter.getCacheSize());
+        assertTrue(registry.getNames().isEmpty());
+    }
+
+    @Test
+    public void hitRatioIsRegisteredAsAGauge() {
+        MetricRegistry registry = new MetricRegistry();
+        MetricFilterTransformer.PredicateConfigFilter filter =
+                (MetricFilterTransformer.PredicateConfigFilter) MetricFilterTransformer.generateFilter(predicate(10), registry);
+        String name = filter.getHitRatioName();
+        assertTrue(name, name.matches("com\\.addthis\\.metrics3\\.reporter\\.config\\.MetricFilterTransformer"
+                                      + "\\.predicate\\d+\\.cacheHitRatio"));
+        Counter counter = registry.counter("foo");
+        filter.matches("foo", counter);
+        filter.matches("foo", counter);
+        assertEquals(0.5, (Double) registry.getGauges().get(name).getValue(), 0.0);
+    }
+}
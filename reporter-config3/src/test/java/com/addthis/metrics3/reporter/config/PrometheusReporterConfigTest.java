@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import com.addthis.metrics.reporter.config.AbstractPrometheusReporterConfig;
+import com.addthis.metrics.reporter.config.PredicateConfig;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class PrometheusReporterConfigTest {
+
+    private MetricRegistry registry;
+    private PrometheusReporterConfig config;
+
+    @Before
+    public void setUp() {
+        registry = new MetricRegistry();
+        registry.counter("requests.count").inc(3);
+        registry.timer("latency");
+
+        config = new PrometheusReporterConfig();
+        config.setType(AbstractPrometheusReporterConfig.Type.http);
+        config.setJob("job1");
+        config.setHttpHost("127.0.0.1");
+        config.setHttpPort(0);
+    }
+
+    @After
+    public void tearDown() {
+        config.stop();
+    }
+
+    @Test
+    public void scrapesOverLoopback() throws IOException {
+        assertTrue(config.enable(registry));
+
+        HttpURLConnection connection = open();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("text/plain; version=0.0.4; charset=utf-8", connection.getContentType());
+        assertNull(connection.getContentEncoding());
+        assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+        String body = read(connection.getInputStream());
+        assertTrue(body.contains("requests_count{job=\"job1\",} 3.0\n"));
+        assertTrue(body.contains("# TYPE latency summary\n"));
+    }
+
+    @Test
+    public void gzipsWhenAccepted() throws IOException {
+        assertTrue(config.enable(registry));
+
+        HttpURLConnection connection = open();
+        connection.setRequestProperty("Accept-Encoding", "deflate, gzip;q=1.0");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("gzip", connection.getContentEncoding());
+        assertTrue(read(new GZIPInputStream(connection.getInputStream())).contains("requests_count"));
+    }
+
+    @Test
+    public void keepsTheConnectionAlive() throws IOException {
+        assertTrue(config.enable(registry));
+
+        try (Socket socket = new Socket("127.0.0.1", config.getHttpAddress().getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            for (int i = 0; i < 3; i++) {
+                registry.counter("requests.count").inc();
+                out.write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+                out.flush();
+                String body = readResponse(in);
+                assertTrue(body, body.contains("requests_count{job=\"job1\",} " + (4 + i) + ".0\n"));
+            }
+        }
+    }
+
+    @Test
+    public void reusesScrapesWithinTheCacheTtl() throws IOException {
+        config.setScrapeCacheTtl(TimeUnit.HOURS.toMillis(1));
+        assertTrue(config.enable(registry));
+
+        String first = read(open().getInputStream());
+        registry.counter("requests.count").inc();
+        assertEquals(first, read(open().getInputStream()));
+
+        HttpURLConnection connection = open();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(first, read(new GZIPInputStream(connection.getInputStream())));
+
+        connection = open();
+        assertEquals(first.length(), connection.getContentLength());
+        read(connection.getInputStream());
+    }
+
+    @Test
+    public void keepsTheConnectionAliveWithTheCache() throws IOException {
+        config.setScrapeCacheTtl(TimeUnit.HOURS.toMillis(1));
+        assertTrue(config.enable(registry));
+
+        try (Socket socket = new Socket("127.0.0.1", config.getHttpAddress().getPort())) {
+            socket.setSoTimeout(5000);
+            for (int i = 0; i < 3; i++) {
+                socket.getOutputStream().write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+                assertTrue(readResponse(socket.getInputStream()).contains("requests_count{job=\"job1\",} 3.0\n"));
+            }
+        }
+    }
+
+    @Test
+    public void scrapesOnlyWhatThePredicateAllows() throws IOException {
+        config.setPredicate(new PredicateConfig("black", Collections.singletonList("latency"), true));
+        assertTrue(config.enable(registry));
+
+        String body = read(open().getInputStream());
+        assertTrue(body.contains("requests_count"));
+        assertFalse(body.contains("latency"));
+    }
+
+    @Test
+    public void onlyGetAndHead() throws IOException {
+        assertTrue(config.enable(registry));
+
+        HttpURLConnection connection = open();
+        connection.setRequestMethod("HEAD");
+        assertEquals(200, connection.getResponseCode());
+
+        connection = open();
+        connection.setRequestMethod("POST");
+        assertEquals(405, connection.getResponseCode());
+        assertEquals("GET, HEAD", connection.getHeaderField("Allow"));
+    }
+
+    @Test
+    public void stopClosesTheEndpoint() throws IOException {
+        assertTrue(config.enable(registry));
+        InetSocketAddress address = config.getHttpAddress();
+
+        config.stop();
+        assertNull(config.getHttpAddress());
+        try {
+            new Socket(address.getAddress(), address.getPort()).close();
+            fail("endpoint still listening");
+        } catch (ConnectException expected) {
+        }
+    }
+
+    @Test
+    public void enablingAgainReleasesTheFirstEndpoint() throws IOException {
+        assertTrue(config.enable(registry));
+        InetSocketAddress first = config.getHttpAddress();
+        assertTrue(config.enable(registry));
+
+        assertTrue(read(open().getInputStream()).contains("requests_count"));
+        try {
+            new Socket(first.getAddress(), first.getPort()).close();
+            fail("first endpoint still listening");
+        } catch (ConnectException expected) {
+        }
+    }
+
+    @Test
+    public void stopRemovesTheRegistryListeners() {
+        PredicateConfig predicate = new PredicateConfig("black", Collections.singletonList("latency"), true);
+        predicate.setCacheSize(10);
+        config.setPredicate(predicate);
+        MetricRegistry spied = spy(registry);
+        assertTrue(config.enable(spied));
+        assertTrue(config.enable(spied));
+        config.stop();
+
+        // the writer's and the filter's, twice
+        verify(spied, times(4)).addListener(Mockito.any(MetricRegistryListener.class));
+        verify(spied, times(4)).removeListener(Mockito.any(MetricRegistryListener.class));
+    }
+
+    @Test
+    public void servletCollectorsAreBuiltOnceAndReleasedOnStop() {
+        PredicateConfig predicate = new PredicateConfig("black", Collections.singletonList("latency"), true);
+        predicate.setCacheSize(10);
+        config.setPredicate(predicate);
+        MetricRegistry spied = spy(registry);
+        assertTrue(config.enable(spied));
+        assertSame(config.getServletRegistry(), config.getServletRegistry());
+        config.stop();
+
+        // the writer's and the decorator's, and each one's filter
+        verify(spied, times(4)).addListener(Mockito.any(MetricRegistryListener.class));
+        verify(spied, times(4)).removeListener(Mockito.any(MetricRegistryListener.class));
+    }
+
+    @Test
+    public void requiresAPort() {
+        config.setHttpPort(null);
+        assertFalse(config.enable(registry));
+        assertNull(config.getHttpAddress());
+    }
+
+    private HttpURLConnection open() throws IOException {
+        URL url = new URL("http://127.0.0.1:" + config.getHttpAddress().getPort() + "/metrics");
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        in.close();
+        return bytes.toString("UTF-8");
+    }
+
+    /**
+     * Reads one response off a kept-alive connection, which only works when
+     * it comes with a length or in chunks.
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        String headers = readUntil(in, "\r\n\r\n");
+        assertTrue(headers, headers.startsWith("HTTP/1.1 200"));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String lower = headers.toLowerCase();
+        if (lower.contains("transfer-encoding: chunked")) {
+            int length;
+            while ((length = Integer.parseInt(readUntil(in, "\r\n").trim(), 16)) > 0) {
+                body.write(readFully(in, length));
+                readUntil(in, "\r\n");
+            }
+            readUntil(in, "\r\n");
+        } else {
+            int start = lower.indexOf("content-length:");
+            assertTrue(headers, start >= 0);
+            int end = lower.indexOf("\r\n", start);
+            body.write(readFully(in, Integer.parseInt(headers.substring(start + "content-length:".length(), end).trim())));
+        }
+        return body.toString("UTF-8");
+    }
+
+    private static String readUntil(InputStream in, String end) throws IOException {
+        StringBuilder read = new StringBuilder();
+        while (!read.toString().endsWith(end)) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("connection closed after " + read);
+            }
+            read.append((char) b);
+        }
+        return read.toString();
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        for (int read = 0; read < length; ) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) {
+                throw new IOException("connection closed in the body");
+            }
+            read += n;
+        }
+        return bytes;
+    }
+}
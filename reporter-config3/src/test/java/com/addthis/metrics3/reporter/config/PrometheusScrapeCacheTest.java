@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Clock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PrometheusScrapeCacheTest {
+
+    private static class ManualClock extends Clock {
+        volatile long tick;
+
+        @Override
+        public long getTick() {
+            return tick;
+        }
+    }
+
+    private static class CountingCache extends PrometheusScrapeCache<Integer> {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        CountingCache(Clock clock, CountDownLatch release) {
+            super(10, TimeUnit.SECONDS, clock);
+            this.release = release;
+        }
+
+        @Override
+        protected Integer load() {
+            loading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return loads.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void reusesTheResultWithinTheTtl() {
+        ManualClock clock = new ManualClock();
+        CountingCache cache = new CountingCache(clock, new CountDownLatch(0));
+
+        assertEquals(1, (int) cache.get());
+        clock.tick = TimeUnit.SECONDS.toNanos(9);
+        assertEquals(1, (int) cache.get());
+        clock.tick = TimeUnit.SECONDS.toNanos(10);
+        assertEquals(2, (int) cache.get());
+        assertEquals(2, (int) cache.get());
+    }
+
+    @Test
+    public void concurrentScrapesShareOneLoad() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        final CountingCache cache = new CountingCache(new ManualClock(), release);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> scrapes = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                scrapes.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return cache.get();
+                    }
+                }));
+            }
+            cache.loading.await();
+            Thread.sleep(50);
+            release.countDown();
+
+            for (Future<Integer> scrape : scrapes) {
+                assertEquals(1, (int) scrape.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, cache.loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
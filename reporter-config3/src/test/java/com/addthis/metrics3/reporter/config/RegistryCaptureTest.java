@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.addthis.metrics.reporter.config.AbstractMetricReporterConfig;
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class RegistryCaptureTest {
+
+    private static class ManualClock extends Clock {
+        long tick;
+
+        @Override
+        public long getTick() {
+            return tick;
+        }
+    }
+
+    @Test
+    public void sharesCopiesWithinHalfAPeriod() {
+        MetricRegistry registry = new MetricRegistry();
+        final AtomicInteger reads = new AtomicInteger();
+        registry.register("gauge", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return reads.incrementAndGet();
+            }
+        });
+        Histogram histogram = registry.histogram("histogram");
+        histogram.update(5);
+        ManualClock clock = new ManualClock();
+        RegistryCapture capture = new RegistryCapture(10, TimeUnit.SECONDS, clock);
+        registry.addListener(capture);
+        MetricSource first = capture.capture(new FilteredRegistrySource(registry, MetricFilter.ALL));
+        MetricSource second = capture.capture(new FilteredRegistrySource(registry, MetricFilter.ALL));
+
+        assertEquals(1, first.getGauges().get("gauge").getValue());
+        assertEquals(1, second.getGauges().values().iterator().next().getValue());
+        assertSame(first.getHistograms().get("histogram").getSnapshot(),
+                   second.getHistograms().get("histogram").getSnapshot());
+
+        clock.tick = TimeUnit.SECONDS.toNanos(5);
+        histogram.update(7);
+        assertEquals(2, second.getGauges().get("gauge").getValue());
+        assertEquals(2, first.getHistograms().get("histogram").getCount());
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    public void releasesRemovedMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("counter").inc(3);
+        RegistryCapture capture = RegistryCapture.attach(registry, 1, TimeUnit.MINUTES);
+        MetricSource source = capture.capture(new FilteredRegistrySource(registry, MetricFilter.ALL));
+        assertEquals(3, source.getCounters().get("counter").getCount());
+        assertEquals(1, capture.size());
+
+        registry.remove("counter");
+        assertEquals(0, capture.size());
+        registry.counter("counter").inc();
+        assertEquals(1, source.getCounters().get("counter").getCount());
+    }
+
+    @Test
+    public void dropsCopiesOlderThanHalfAPeriod() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.histogram("first").update(1);
+        registry.histogram("second").update(2);
+        ManualClock clock = new ManualClock();
+        RegistryCapture capture = new RegistryCapture(10, TimeUnit.SECONDS, clock);
+        MetricSource source = capture.capture(new FilteredRegistrySource(registry, MetricFilter.ALL));
+        source.getHistograms().get("first").getSnapshot();
+        source.getHistograms().get("second").getSnapshot();
+        assertEquals(2, capture.size());
+
+        clock.tick = TimeUnit.SECONDS.toNanos(6);
+        source.getHistograms().get("first").getSnapshot();
+        assertEquals(1, capture.size());
+    }
+
+    @Test
+    public void theLastReporterToStopDetachesTheCapture() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("counter").inc();
+        ReporterContext context = new ReporterContext(true, null);
+        ConfiguredReporters consoleReporters = new ConfiguredReporters(hourly(new ConsoleReporterConfig()));
+        ConfiguredReporters csvReporters = new ConfiguredReporters(hourly(new CsvReporterConfig()));
+        consoleReporters.setContext(context);
+        csvReporters.setContext(context);
+        consoleReporters.start(mock(ScheduledReporter.class), "console-reporter", registry, MetricFilter.ALL);
+        csvReporters.start(mock(ScheduledReporter.class), "csv-reporter", registry, MetricFilter.ALL);
+        RegistryCapture capture = context.getCapture(registry, 1, TimeUnit.HOURS);
+        context.releaseCapture(capture);
+        capture.capture(new FilteredRegistrySource(registry, MetricFilter.ALL)).getCounters().get("counter");
+        assertEquals(1, capture.size());
+
+        consoleReporters.stop();
+        assertSame(capture, context.getCapture(registry, 1, TimeUnit.HOURS));
+        context.releaseCapture(capture);
+        csvReporters.stop();
+        assertEquals(0, capture.size());
+        assertNotSame(capture, context.getCapture(registry, 1, TimeUnit.HOURS));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void reportersOnTheSamePeriodShareOneCapture() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.register("timer", new Timer(new UniformReservoir()));
+        ReporterContext context = new ReporterContext(true, null);
+        ScheduledReporter console = mock(ScheduledReporter.class);
+        ScheduledReporter csv = mock(ScheduledReporter.class);
+        ConfiguredReporters consoleReporters = new ConfiguredReporters(hourly(new ConsoleReporterConfig()));
+        ConfiguredReporters csvReporters = new ConfiguredReporters(hourly(new CsvReporterConfig()));
+        consoleReporters.setContext(context);
+        csvReporters.setContext(context);
+        consoleReporters.start(console, "console-reporter", registry, MetricFilter.ALL);
+        csvReporters.start(csv, "csv-reporter", registry, MetricFilter.ALL);
+        consoleReporters.report();
+        csvReporters.report();
+        consoleReporters.stop();
+        csvReporters.stop();
+
+        ArgumentCaptor<SortedMap> consoleTimers = ArgumentCaptor.forClass(SortedMap.class);
+        ArgumentCaptor<SortedMap> csvTimers = ArgumentCaptor.forClass(SortedMap.class);
+        verify(console).report(Mockito.<SortedMap<String, Gauge>>anyObject(),
+                               Mockito.<SortedMap<String, Counter>>anyObject(),
+                               Mockito.<SortedMap<String, Histogram>>anyObject(),
+                               Mockito.<SortedMap<String, Meter>>anyObject(), consoleTimers.capture());
+        verify(csv).report(Mockito.<SortedMap<String, Gauge>>anyObject(),
+                           Mockito.<SortedMap<String, Counter>>anyObject(),
+                           Mockito.<SortedMap<String, Histogram>>anyObject(),
+                           Mockito.<SortedMap<String, Meter>>anyObject(), csvTimers.capture());
+        Timer consoleTimer = (Timer) consoleTimers.getValue().get("timer");
+        assertNotSame(registry.timer("timer"), consoleTimer);
+        assertSame(consoleTimer, csvTimers.getValue().get("timer"));
+    }
+
+    private static <T extends AbstractMetricReporterConfig> T hourly(T config) {
+        config.setPeriod(1);
+        config.setTimeunit("HOURS");
+        return config;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Timer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReporterSchedulerTest {
+
+    private static class CountingReporter extends ScheduledReporter {
+        final AtomicInteger reports = new AtomicInteger();
+        final CountDownLatch release;
+        volatile String thread;
+
+        CountingReporter(CountDownLatch release) {
+            super(new MetricRegistry(), "counting-reporter", MetricFilter.ALL, TimeUnit.SECONDS,
+                  TimeUnit.MILLISECONDS);
+            this.release = release;
+        }
+
+        @Override
+        public void report() {
+            thread = Thread.currentThread().getName();
+            reports.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+                           SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+                           SortedMap<String, Timer> timers) {
+        }
+    }
+
+    @Test
+    public void slowReporterDoesNotStarveOthers() throws Exception {
+        ReporterScheduler scheduler = new ReporterScheduler(2, "test-reporter");
+        CountDownLatch stuck = new CountDownLatch(1);
+        CountingReporter slow = new CountingReporter(stuck);
+        CountingReporter fast = new CountingReporter(new CountDownLatch(0));
+        try {
+            scheduler.schedule(slow, 10, TimeUnit.MILLISECONDS);
+            scheduler.schedule(fast, 10, TimeUnit.MILLISECONDS);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (fast.reports.get() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(fast.reports.get() >= 20);
+            assertEquals(1, slow.reports.get());
+            assertTrue(fast.thread.startsWith("test-reporter-"));
+
+            // ticks missed while stuck are dropped, not run back to back
+            stuck.countDown();
+            Thread.sleep(30);
+            assertTrue(slow.reports.get() < 10);
+        } finally {
+            stuck.countDown();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void sendsRunOffTheTimerThread() throws Exception {
+        ExecutorService sends = Executors.newCachedThreadPool();
+        ReporterScheduler scheduler = new ReporterScheduler(1, "test-reporter", sends);
+        CountDownLatch stuck = new CountDownLatch(1);
+        CountingReporter slow = new CountingReporter(stuck);
+        CountingReporter fast = new CountingReporter(new CountDownLatch(0));
+        try {
+            scheduler.schedule(slow, 10, TimeUnit.MILLISECONDS);
+            scheduler.schedule(fast, 10, TimeUnit.MILLISECONDS);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (fast.reports.get() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(fast.reports.get() >= 5);
+            assertEquals(1, slow.reports.get());
+            assertFalse(fast.thread.startsWith("test-reporter-"));
+        } finally {
+            stuck.countDown();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void virtualThreadsWhenAvailable() throws Exception {
+        ExecutorService sends = ReporterScheduler.newVirtualThreadExecutor("test-send-");
+        if (sends == null) {
+            return;
+        }
+        try {
+            Future<String> name = sends.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return Thread.currentThread().getName();
+                }
+            });
+            assertEquals("test-send-1", name.get());
+        } finally {
+            sends.shutdown();
+        }
+    }
+
+    @Test
+    public void initialDelayAndJitter() throws Exception {
+        ReporterScheduler scheduler = new ReporterScheduler(1, "test-reporter");
+        CountingReporter reporter = new CountingReporter(new CountDownLatch(0));
+        try {
+            ReporterScheduler.ReportTask task = scheduler.schedule(reporter, 0, 3600000, 50, TimeUnit.MILLISECONDS);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (reporter.reports.get() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // the first report came within the jitter, well before the period
+            assertEquals(1, reporter.reports.get());
+            task.cancel();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void staggerSpreadsReportersOverThePeriod() {
+        long period = TimeUnit.SECONDS.toNanos(60);
+        long[] offsets = new long[5];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = ConfiguredReporters.staggerOffset(i, period);
+            assertTrue(offsets[i] >= 0 && offsets[i] < period);
+        }
+        Arrays.sort(offsets);
+        for (int i = 1; i < offsets.length; i++) {
+            // golden ratio offsets are never closer than a fraction of period / n
+            assertTrue(offsets[i] - offsets[i - 1] > period / offsets.length / 3);
+        }
+    }
+
+    @Test
+    public void alignedTicksFallOnPeriodBoundaries() throws Exception {
+        ReporterScheduler scheduler = new ReporterScheduler(1, "test-reporter");
+        final AlignedClock clock = new AlignedClock(100);
+        final List<Long> lateness = new CopyOnWriteArrayList<Long>();
+        final List<Long> stamps = new CopyOnWriteArrayList<Long>();
+        CountingReporter reporter = new CountingReporter(new CountDownLatch(0)) {
+            @Override
+            public void report() {
+                long now = System.currentTimeMillis();
+                lateness.add(now % 100);
+                stamps.add(clock.getTime());
+                super.report();
+            }
+        };
+        try {
+            scheduler.scheduleAligned(reporter, 0, 100, 0, TimeUnit.MILLISECONDS);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (reporter.reports.get() < 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+        assertTrue(reporter.reports.get() >= 4);
+        // the first tick may pay for class loading
+        for (int i = 1; i < 4; i++) {
+            assertTrue("tick " + i + " ran " + lateness.get(i) + "ms after the boundary", lateness.get(i) < 50);
+            assertEquals(0, stamps.get(i) % 100);
+        }
+        assertEquals(100, stamps.get(2) - stamps.get(1));
+    }
+
+    @Test
+    public void anOffsetNearThePeriodStampsTheScheduledBoundary() throws Exception {
+        ReporterScheduler scheduler = new ReporterScheduler(1, "test-reporter");
+        final AlignedClock clock = new AlignedClock(200);
+        final List<Long> ranAt = new CopyOnWriteArrayList<Long>();
+        final List<Long> stamps = new CopyOnWriteArrayList<Long>();
+        // holds the only thread from 180ms to 220ms into each period
+        CountingReporter busy = new CountingReporter(new CountDownLatch(0)) {
+            @Override
+            public void report() {
+                try {
+                    Thread.sleep(40);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        CountingReporter late = new CountingReporter(new CountDownLatch(0)) {
+            @Override
+            public void report() {
+                ranAt.add(System.currentTimeMillis());
+                stamps.add(clock.getTime());
+                super.report();
+            }
+        };
+        try {
+            scheduler.scheduleAligned(busy, 180, 200, 0, TimeUnit.MILLISECONDS);
+            scheduler.scheduleAligned(late, 190, 200, 0, TimeUnit.MILLISECONDS);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (late.reports.get() < 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+        assertTrue(late.reports.get() >= 4);
+        for (int i = 1; i < 4; i++) {
+            long sinceStamp = ranAt.get(i) - stamps.get(i);
+            assertEquals(0, stamps.get(i) % 200);
+            // run after the next boundary, yet stamped with its own
+            assertTrue("tick " + i + " ran " + sinceStamp + "ms after its stamp", sinceStamp >= 200 && sinceStamp < 400);
+            assertEquals(200, stamps.get(i) - stamps.get(i - 1));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void alignedOffsetAndJitterMustStayWithinThePeriod() {
+        ReporterScheduler scheduler = new ReporterScheduler(1, "test-reporter");
+        try {
+            scheduler.scheduleAligned(new CountingReporter(new CountDownLatch(0)), 90, 100, 20,
+                                      TimeUnit.MILLISECONDS);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void alignedClockFloorsToThePeriod() {
+        AlignedClock clock = new AlignedClock(TimeUnit.SECONDS.toMillis(10));
+        assertEquals(1500000000000L, clock.floor(1500000009999L));
+        assertEquals(1500000010000L, clock.floor(1500000010000L));
+    }
+}
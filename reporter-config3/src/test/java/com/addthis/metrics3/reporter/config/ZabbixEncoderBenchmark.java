@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config;
+
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.github.hengyunabc.zabbix.sender.DataObject;
+import io.github.hengyunabc.zabbix.sender.SenderRequest;
+import io.github.hengyunabc.zabbix.sender.SenderResult;
+import io.github.hengyunabc.zabbix.sender.ZabbixSender;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares building a tick's sender data request with {@link ZabbixEncoder}
+ * against {@link ZabbixReporter}, which builds a {@code DataObject} per
+ * measurement and serializes them with zabbix-sender.  Neither touches the
+ * network.  Lives next to the encoder rather than in the benchmark package
+ * as the encoder is package private.  Run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.addthis.metrics3.reporter.config.ZabbixEncoderBenchmark}
+ * or from the IDE; the GC profiler reports the bytes allocated per report as
+ * {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZabbixEncoderBenchmark
+{
+    /** of each kind of metric */
+    @Param({"200"})
+    public int metricCount;
+
+    private SortedMap<String, Gauge> gauges;
+    private SortedMap<String, Counter> counters;
+    private SortedMap<String, Histogram> histograms;
+    private SortedMap<String, Meter> meters;
+    private SortedMap<String, Timer> timers;
+
+    private ZabbixEncoder encoder;
+    private ZabbixPayload payload;
+    private ZabbixPayload.Frame frame;
+    private ZabbixReporter legacy;
+    private SerializingSender legacySender;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        MetricRegistry registry = new MetricRegistry();
+        Random random = new Random(0);
+        for (int i = 0; i < metricCount; i++)
+        {
+            final long value = random.nextInt(1000000);
+            registry.register("com.example.service" + i + ".Gauge", new Gauge<Long>()
+            {
+                @Override
+                public Long getValue()
+                {
+                    return value;
+                }
+            });
+            registry.counter("com.example.service" + i + ".Requests").inc(random.nextInt(1000000));
+            Histogram histogram = registry.histogram("com.example.service" + i + ".Sizes");
+            Meter meter = registry.meter("com.example.service" + i + ".Hits");
+            Timer timer = registry.timer("com.example.service" + i + ".Latency");
+            for (int j = 0; j < 100; j++)
+            {
+                histogram.update(random.nextInt(65536));
+                meter.mark(random.nextInt(10));
+                timer.update(random.nextInt(50000000), TimeUnit.NANOSECONDS);
+            }
+        }
+        gauges = registry.getGauges();
+        counters = registry.getCounters();
+        histograms = registry.getHistograms();
+        meters = registry.getMeters();
+        timers = registry.getTimers();
+
+        encoder = new ZabbixEncoder("web1.example.com", "app.", TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+        payload = new ZabbixPayload();
+        frame = new ZabbixPayload.Frame();
+        legacySender = new SerializingSender();
+        legacy = new ZabbixReporter(legacySender, "web1.example.com", "app.", new MetricRegistry(), "zabbix",
+                                    MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, Clock.defaultClock());
+    }
+
+    @Benchmark
+    public ZabbixPayload.Frame encoder()
+    {
+        payload.clear(System.currentTimeMillis() / 1000);
+        encoder.encode(payload, gauges, counters, histograms, meters, timers);
+        payload.frame(frame, 0, payload.items());
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] legacyReporter()
+    {
+        legacy.report(gauges, counters, histograms, meters, timers);
+        return legacySender.request;
+    }
+
+    /**
+     * Builds the request zabbix-sender would write, without sending it.
+     */
+    private static final class SerializingSender extends ZabbixSender
+    {
+        byte[] request;
+
+        SerializingSender()
+        {
+            super("localhost", 10051);
+        }
+
+        @Override
+        public SenderResult send(List<DataObject> dataObjectList)
+        {
+            SenderRequest senderRequest = new SenderRequest();
+            senderRequest.setData(dataObjectList);
+            senderRequest.setClock(System.currentTimeMillis() / 1000);
+            request = senderRequest.toBytes();
+            return new SenderResult();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(ZabbixEncoderBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.addthis.metrics3.reporter.config;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZabbixNioReporterTest {
+
+    private static final Clock FIXED = new Clock() {
+        @Override
+        public long getTick() {
+            return 0;
+        }
+
+        @Override
+        public long getTime() {
+            return 1500000000000L;
+        }
+    };
+
+    private ExecutorService executor;
+    private MetricRegistry registry;
+    private ServerSocket server;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        registry = new MetricRegistry();
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.close();
+    }
+
+    private Future<List<String>> trapper(ServerSocket server, int requests) {
+        return trapper(server, requests, 0);
+    }
+
+    /**
+     * Answers requests like a Zabbix trapper, one per connection, and
+     * returns their bodies; the requests after those it answers are read and
+     * their connections dropped without a response.
+     */
+    private Future<List<String>> trapper(final ServerSocket server, final int requests, final int dropped) {
+        return executor.submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws IOException {
+                List<String> bodies = new ArrayList<>();
+                for (int i = 0; i < requests + dropped; i++) {
+                    try (Socket socket = server.accept()) {
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        byte[] header = new byte[13];
+                        in.readFully(header);
+                        assertEquals("ZBXD\1", new String(header, 0, 5, "UTF-8"));
+                        long length = ByteBuffer.wrap(header, 5, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+                        byte[] body = new byte[(int) length];
+                        in.readFully(body);
+                        String request = new String(body, "UTF-8");
+                        if (i >= requests) {
+                            continue;
+                        }
+                        bodies.add(request);
+                        int items = request.split("\"key\"").length - 1;
+                        byte[] response = ("{\"response\":\"success\",\"info\":\"processed: " + items
+                                           + "; failed: 0; total: " + items + "; seconds spent: 0.000055\"}")
+                                .getBytes("UTF-8");
+                        ByteBuffer reply = ByteBuffer.allocate(13 + response.length).order(ByteOrder.LITTLE_ENDIAN);
+                        reply.put(header, 0, 5).putLong(response.length).put(response);
+                        socket.getOutputStream().write(reply.array());
+                    }
+                }
+                return bodies;
+            }
+        });
+    }
+
+    private ZabbixNioSender sender(ServerSocket server) {
+        return new ZabbixNioSender(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+                                   2000, 2000);
+    }
+
+    @Test
+    public void sendsTheItemsOfTheZabbixReporter() throws Exception {
+        registry.counter("requests").inc(3);
+        registry.register("name", new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return "say \"hi\"";
+            }
+        });
+        registry.meter("hits");
+        Future<List<String>> received = trapper(server, 1);
+        ZabbixNioReporter reporter = new ZabbixNioReporter(
+                registry, "zabbix", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "web1", "app.",
+                Collections.singletonList(sender(server)), FIXED);
+        reporter.report();
+        reporter.stop();
+
+        String body = received.get(10, TimeUnit.SECONDS).get(0);
+        assertTrue(body, body.startsWith("{\"request\":\"sender data\",\"data\":["
+                                         + "{\"host\":\"web1\",\"key\":\"app.name\",\"value\":\"say \\\"hi\\\"\","
+                                         + "\"clock\":1500000000},"
+                                         + "{\"host\":\"web1\",\"key\":\"app.requests\",\"value\":\"3\","
+                                         + "\"clock\":1500000000},"
+                                         + "{\"host\":\"web1\",\"key\":\"app.hits.count\",\"value\":\"0\","));
+        assertTrue(body, body.endsWith("\"key\":\"app.hits.15-minuteRate\",\"value\":\"0.0\",\"clock\":1500000000}],"
+                                       + "\"clock\":1500000000}"));
+    }
+
+    @Test
+    public void itemsAreSplitIntoBatches() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            registry.counter("c" + i).inc(i);
+        }
+        Future<List<String>> received = trapper(server, 3);
+        ZabbixNioSender sender = new ZabbixNioSender(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), 2000, 2000, 2, 2);
+        ZabbixNioReporter reporter = new ZabbixNioReporter(
+                registry, "zabbix", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "web1", "",
+                Collections.singletonList(sender), FIXED);
+        reporter.report();
+        reporter.stop();
+
+        List<String> bodies = new ArrayList<>(received.get(10, TimeUnit.SECONDS));
+        Collections.sort(bodies);
+        assertEquals(3, bodies.size());
+        assertTrue(bodies.get(0), bodies.get(0).contains("\"key\":\"c0\",\"value\":\"0\",\"clock\":1500000000},"
+                                                         + "{\"host\":\"web1\",\"key\":\"c1\""));
+        assertEquals("{\"request\":\"sender data\",\"data\":["
+                     + "{\"host\":\"web1\",\"key\":\"c4\",\"value\":\"4\",\"clock\":1500000000}],"
+                     + "\"clock\":1500000000}", bodies.get(2));
+        assertEquals(5, sender.getProcessed());
+        assertEquals(0, sender.getFailed());
+        assertEquals(0, sender.getErrors());
+    }
+
+    @Test
+    public void failoverSendsToTheFirstHealthyServer() throws Exception {
+        registry.counter("requests").inc();
+        ServerSocket closed = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        closed.close();
+        ZabbixNioSender down = sender(closed);
+        ZabbixNioSender up = sender(server);
+        Future<List<String>> received = trapper(server, 2);
+        ZabbixNioReporter reporter = new ZabbixNioReporter(
+                registry, "zabbix", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "web1", "",
+                Arrays.asList(down, up), FIXED, ZabbixNioReporter.Routing.FAILOVER, 3600, false, 0);
+        reporter.report();
+        assertFalse(down.isHealthy());
+        reporter.report();
+        reporter.stop();
+
+        assertEquals(2, received.get(10, TimeUnit.SECONDS).size());
+        assertEquals(1, down.getErrors());
+        assertEquals(2, up.getProcessed());
+        assertFalse(down.probe());
+    }
+
+    @Test
+    public void failoverPassesOverAnUnresolvableServer() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            registry.counter("c" + i).inc(i);
+        }
+        // five batches, only one of which is started before the sender gives up
+        ZabbixNioSender unresolvable = new ZabbixNioSender(
+                InetSocketAddress.createUnresolved("zabbix.invalid", 10051), 2000, 2000, 2, 1);
+        ZabbixNioSender up = sender(server);
+        Future<List<String>> received = trapper(server, 2);
+        ZabbixNioReporter reporter = new ZabbixNioReporter(
+                registry, "zabbix", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "web1", "",
+                Arrays.asList(unresolvable, up), FIXED, ZabbixNioReporter.Routing.FAILOVER, 3600, false, 0);
+        reporter.report();
+        assertFalse(unresolvable.isHealthy());
+        // tried again while no server is healthy, rather than skipped as still in flight
+        up.setHealthy(false);
+        reporter.report();
+        reporter.stop();
+
+        List<String> bodies = received.get(10, TimeUnit.SECONDS);
+        assertEquals(2, bodies.size());
+        for (String body : bodies) {
+            for (int i = 0; i < 10; i++) {
+                assertTrue(body, body.contains("\"key\":\"c" + i + "\""));
+            }
+        }
+        assertEquals(2, unresolvable.getErrors());
+        assertEquals(20, up.getProcessed());
+    }
+
+    @Test
+    public void itemCountsAreSharedAndRemovedOnStop() throws Exception {
+        registry.counter("requests").inc();
+        Future<List<String>> received = trapper(server, 1);
+        ZabbixNioSender first = sender(server);
+        ZabbixNioSender second = sender(server);
+        first.registerMetrics(registry);
+        second.registerMetrics(registry);
+        ZabbixNioReporter reporter = new ZabbixNioReporter(
+                registry, "zabbix", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "web1", "",
+                Collections.singletonList(first), FIXED);
+        reporter.report();
+        received.get(10, TimeUnit.SECONDS);
+        // the three counts of the senders go out with the test's counter
+        assertEquals(4, second.getProcessed());
+        reporter.stop();
+
+        assertEquals(Collections.singleton("requests"), registry.getNames());
+    }
+
+    @Test
+    public void roundRobinTakesTurns() throws Exception {
+        registry.counter("requests").inc();
+        ServerSocket other = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        try {
+            Future<List<String>> first = trapper(server, 2);
+            Future<List<String>> second = trapper(other, 1);
+            ZabbixNioReporter reporter = new ZabbixNioReporter(
+                    registry, "zabbix", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "web1", "",
+                    Arrays.asList(sender(server), sender(other)), FIXED, ZabbixNioReporter.Routing.ROUND_ROBIN,
+                    3600, false, 0);
+            reporter.report();
+            reporter.report();
+            reporter.report();
+            reporter.stop();
+
+            assertEquals(2, first.get(10, TimeUnit.SECONDS).size());
+            assertEquals(1, second.get(10, TimeUnit.SECONDS).size());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void failoverResendsOnlyTheUnansweredBatches() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            registry.counter("c" + i).inc(i);
+        }
+        ServerSocket other = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        try {
+            // answers the first batch, then drops the connection of the other two
+            Future<List<String>> first = trapper(server, 1, 2);
+            Future<List<String>> second = trapper(other, 2);
+            ZabbixNioSender flaky = new ZabbixNioSender(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), 2000, 2000, 2, 1);
+            ZabbixNioSender backup = new ZabbixNioSender(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), other.getLocalPort()), 2000, 2000, 2, 1);
+            ZabbixNioReporter reporter = new ZabbixNioReporter(
+                    registry, "zabbix", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "web1", "",
+                    Arrays.asList(flaky, backup), FIXED, ZabbixNioReporter.Routing.FAILOVER, 3600, false, 0);
+            reporter.report();
+            reporter.stop();
+
+            List<String> answered = first.get(10, TimeUnit.SECONDS);
+            assertEquals(1, answered.size());
+            assertTrue(answered.get(0), answered.get(0).contains("\"c0\"") && answered.get(0).contains("\"c1\""));
+            String resent = second.get(10, TimeUnit.SECONDS).toString();
+            assertFalse(resent, resent.contains("\"c0\"") || resent.contains("\"c1\""));
+            assertTrue(resent, resent.contains("\"c2\"") && resent.contains("\"c3\"") && resent.contains("\"c4\""));
+            assertEquals(2, flaky.getProcessed());
+            assertEquals(2, flaky.getErrors());
+            assertFalse(flaky.isHealthy());
+            assertEquals(3, backup.getProcessed());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void probesRunOnTheSharedScheduler() throws Exception {
+        ServerSocket other = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ReporterScheduler scheduler = new ReporterScheduler(1, "shared");
+        try {
+            ZabbixNioReporter reporter = new ZabbixNioReporter(
+                    registry, "probed", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "web1", "",
+                    Arrays.asList(sender(server), sender(other)), FIXED, ZabbixNioReporter.Routing.FAILOVER,
+                    3600, false, 0, scheduler);
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertFalse(thread.getName(), thread.getName().startsWith("probed-health-check"));
+            }
+            reporter.stop();
+        } finally {
+            scheduler.shutdown();
+            other.close();
+        }
+    }
+
+    @Test
+    public void routingIsParsed() {
+        assertEquals(ZabbixNioReporter.Routing.ROUND_ROBIN, ZabbixNioReporter.Routing.parse("round-robin"));
+        assertEquals(ZabbixNioReporter.Routing.FAILOVER, ZabbixNioReporter.Routing.parse("failover"));
+    }
+
+    @Test
+    public void discoveryIsSentWhenTheMetricsChange() throws Exception {
+        registry.counter("requests");
+        registry.timer("lat\"ency");
+        final AtomicLong time = new AtomicLong(1500000000000L);
+        Clock clock = new Clock() {
+            @Override
+            public long getTick() {
+                return 0;
+            }
+
+            @Override
+            public long getTime() {
+                return time.get();
+            }
+        };
+        Future<List<String>> received = trapper(server, 4);
+        ZabbixNioReporter reporter = new ZabbixNioReporter(
+                registry, "zabbix", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS, "web1", "app.",
+                Collections.singletonList(sender(server)), clock, ZabbixNioReporter.Routing.REPLICATE, 10, true, 3600);
+        reporter.report();
+        time.addAndGet(60000);
+        reporter.report();
+        registry.meter("hits");
+        time.addAndGet(60000);
+        reporter.report();
+        time.addAndGet(3600000);
+        reporter.report();
+        reporter.stop();
+
+        List<String> bodies = received.get(10, TimeUnit.SECONDS);
+        String discovery = "{\"host\":\"web1\",\"key\":\"app.discovery\",\"value\":\"{\\\"data\\\":["
+                           + "{\\\"{#NAME}\\\":\\\"requests\\\",\\\"{#TYPE}\\\":\\\"counter\\\"},"
+                           + "{\\\"{#NAME}\\\":\\\"lat\\\\\\\"ency\\\",\\\"{#TYPE}\\\":\\\"timer\\\"}]}\"";
+        assertTrue(bodies.get(0), bodies.get(0).contains("\"data\":[" + discovery));
+        assertFalse(bodies.get(1), bodies.get(1).contains("app.discovery"));
+        assertTrue(bodies.get(2),
+                   bodies.get(2).contains("{\\\"{#NAME}\\\":\\\"hits\\\",\\\"{#TYPE}\\\":\\\"meter\\\"}"));
+        assertTrue(bodies.get(3), bodies.get(3).contains("app.discovery"));
+    }
+
+    @Test
+    public void numbersAreFormattedAsTheZabbixReporterDoes() throws Exception {
+        SortedMap<String, Gauge> gauges = new TreeMap<>();
+        gauges.put("double", constant(0.1 + 0.2));
+        gauges.put("float", constant(1.1f));
+        gauges.put("int", constant(-42));
+        gauges.put("tiny", constant(1.0E-7));
+        ZabbixEncoder encoder = new ZabbixEncoder("h", "", TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+        ZabbixPayload payload = new ZabbixPayload();
+        payload.clear(1);
+        encoder.encode(payload, gauges, new TreeMap<String, Counter>(), new TreeMap<String, Histogram>(),
+                       new TreeMap<String, Meter>(), new TreeMap<String, Timer>());
+        ZabbixPayload.Frame frame = new ZabbixPayload.Frame();
+        payload.frame(frame, 0, payload.items());
+        ByteBuffer data = frame.message()[2];
+        String items = new String(data.array(), data.position(), data.remaining(), "UTF-8");
+
+        for (String key : gauges.keySet()) {
+            String value = "" + gauges.get(key).getValue();
+            assertTrue(items, items.contains("\"key\":\"" + key + "\",\"value\":\"" + value + "\""));
+        }
+    }
+
+    private static <T> Gauge<T> constant(final T value) {
+        return new Gauge<T>() {
+            @Override
+            public T getValue() {
+                return value;
+            }
+        };
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void aStalledServerTimesOut() throws Exception {
+        ZabbixNioSender sender = new ZabbixNioSender(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), 2000, 200);
+        ZabbixPayload payload = new ZabbixPayload();
+        payload.clear(1);
+        payload.startItem(ZabbixPayload.itemHead("web1", "key"));
+        payload.putPlain("1");
+        payload.endItem();
+        try {
+            // accepted by the backlog, never answered
+            sender.send(payload);
+        } finally {
+            sender.close();
+        }
+    }
+
+    @Test
+    public void responsesAreParsed() {
+        ZabbixNioSender.Response response = ZabbixNioSender.Response.parse(
+                "{\"response\":\"success\",\"info\":\"processed: 7; failed: 2; total: 9; seconds spent: 0.1\"}");
+        assertTrue(response.success);
+        assertEquals(Arrays.asList(7, 2, 9), Arrays.asList(response.processed, response.failed, response.total));
+    }
+}
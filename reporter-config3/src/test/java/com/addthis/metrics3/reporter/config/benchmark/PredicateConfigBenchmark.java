@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.addthis.metrics.reporter.config.PredicateConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link PredicateConfig#allowString(String)} against the
+ * pattern-at-a-time loop it replaced.  Run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.addthis.metrics3.reporter.config.benchmark.PredicateConfigBenchmark}
+ * or from the IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredicateConfigBenchmark
+{
+    @Param({"black", "white"})
+    public String color;
+
+    @Param({"40"})
+    public int patternCount;
+
+    private PredicateConfig predicate;
+    private List<Pattern> legacyPatterns;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        List<String> patterns = new ArrayList<String>();
+        for (int i = 0; i < patternCount; i++)
+        {
+            // mostly the prefix style seen in real configs, plus a few suffix/regex ones
+            switch (i % 4)
+            {
+                case 0:
+                    patterns.add("^org.apache.cassandra.metrics.Table" + i + ".+");
+                    break;
+                case 1:
+                    patterns.add("com.example.service" + i + ".*");
+                    break;
+                case 2:
+                    patterns.add("jvm\\.pool" + i + "\\.used");
+                    break;
+                default:
+                    patterns.add(".*Metric" + i + "_JMXONLY$");
+            }
+        }
+        predicate = new PredicateConfig(color, patterns, true);
+        legacyPatterns = new ArrayList<Pattern>();
+        for (String s : patterns)
+        {
+            legacyPatterns.add(Pattern.compile(s));
+        }
+
+        Random random = new Random(0);
+        names = new String[4096];
+        for (int i = 0; i < names.length; i++)
+        {
+            int n = random.nextInt(patternCount * 2);
+            names[i] = random.nextBoolean()
+                       ? "org.apache.cassandra.metrics.Table" + n + ".ReadLatency"
+                       : "com.example.service" + n + ".Requests.Metric" + n + "_JMXONLY";
+        }
+    }
+
+    private String nextName()
+    {
+        next = (next + 1) & (names.length - 1);
+        return names[next];
+    }
+
+    @Benchmark
+    public boolean compiled()
+    {
+        return predicate.allowString(nextName());
+    }
+
+    @Benchmark
+    public boolean legacyLoop()
+    {
+        String name = nextName();
+        if (color.equals("black"))
+        {
+            for (Pattern pat : legacyPatterns)
+            {
+                if (pat.matcher(name).matches())
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (color.equals("white"))
+        {
+            for (Pattern pat : legacyPatterns)
+            {
+                if (pat.matcher(name).matches())
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(PredicateConfigBenchmark.class.getSimpleName()).build()).run();
+    }
+}
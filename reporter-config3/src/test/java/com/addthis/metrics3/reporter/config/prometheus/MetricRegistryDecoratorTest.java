@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config.prometheus;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+
+import static org.junit.Assert.assertEquals;
+
+public class MetricRegistryDecoratorTest {
+
+    private MetricRegistry registry;
+    private MetricRegistryDecorator decorator;
+
+    @Before
+    public void setUp() {
+        registry = new MetricRegistry();
+        decorator = new MetricRegistryDecorator(registry, "job1", Collections.singletonMap("dc", "east"));
+    }
+
+    @Test
+    public void samplesCarryTheLabels() {
+        registry.counter("requests.count").inc(3);
+        registry.register("state", new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return "up";
+            }
+        });
+        registry.timer("latency").update(2, TimeUnit.SECONDS);
+        registry.meter("hits").mark();
+
+        List<MetricFamilySamples> families = decorator.collect();
+        assertEquals(4, families.size());
+
+        MetricFamilySamples state = families.get(0);
+        assertEquals("state", state.name);
+        assertEquals(Collector.Type.GAUGE, state.type);
+        assertEquals(new Sample("state", Arrays.asList("job", "dc", "gauge_value"), Arrays.asList("job1", "east", "up"), 1),
+                     state.samples.get(0));
+
+        MetricFamilySamples requests = families.get(1);
+        assertEquals("requests_count", requests.name);
+        assertEquals("Generated from dropwizard metric import (metric=requests_count, type=com.codahale.metrics.Counter)",
+                     requests.help);
+        assertEquals(new Sample("requests_count", Arrays.asList("job", "dc"), Arrays.asList("job1", "east"), 3),
+                     requests.samples.get(0));
+
+        MetricFamilySamples latency = families.get(2);
+        assertEquals(Collector.Type.SUMMARY, latency.type);
+        assertEquals(7, latency.samples.size());
+        Sample quantile = latency.samples.get(5);
+        assertEquals(Arrays.asList("job", "dc", "quantile"), quantile.labelNames);
+        assertEquals(Arrays.asList("job1", "east", "0.999"), quantile.labelValues);
+        assertEquals(2, quantile.value, 1e-9);
+        assertEquals(new Sample("latency_count", Collections.<String>emptyList(), Collections.<String>emptyList(), 1),
+                     latency.samples.get(6));
+
+        MetricFamilySamples hits = families.get(3);
+        assertEquals("hits_total", hits.name);
+        assertEquals(Collector.Type.COUNTER, hits.type);
+    }
+
+    @Test
+    public void filteredMetricsAreLeftOutAndDecidedOnce() {
+        final AtomicInteger decisions = new AtomicInteger();
+        MetricFilter filter = new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                decisions.incrementAndGet();
+                return !name.startsWith("internal.");
+            }
+        };
+        MetricRegistryDecorator filtered = new MetricRegistryDecorator(registry, "job1",
+                                                                       Collections.<String, String>emptyMap(), filter);
+        registry.counter("requests");
+        registry.counter("internal.requests");
+        registry.timer("internal.latency");
+        registry.meter("hits");
+
+        List<MetricFamilySamples> families = filtered.collect();
+        assertEquals(2, families.size());
+        assertEquals("requests", families.get(0).name);
+        assertEquals("hits_total", families.get(1).name);
+        assertEquals(4, decisions.get());
+
+        assertEquals(2, filtered.collect().size());
+        assertEquals(4, decisions.get());
+        filtered.close();
+    }
+
+    @Test
+    public void metricsRemovedDuringAScrapeAreNotCached() {
+        MetricFilter filter = new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                // a removal landing between the scrape reading the metric
+                // and caching its names
+                if (name.equals("removed")) {
+                    registry.remove(name);
+                }
+                return true;
+            }
+        };
+        MetricRegistryDecorator filtered = new MetricRegistryDecorator(registry, "job1",
+                                                                       Collections.<String, String>emptyMap(), filter);
+        registry.counter("removed");
+        registry.counter("kept");
+
+        filtered.collect();
+        assertEquals(1, filtered.cachedNames());
+        filtered.close();
+    }
+
+    @Test
+    public void namesOfRemovedMetricsAreDropped() {
+        registry.counter("a");
+        registry.histogram("b");
+        decorator.collect();
+        assertEquals(2, decorator.cachedNames());
+
+        registry.remove("a");
+        assertEquals(1, decorator.cachedNames());
+
+        decorator.close();
+        registry.remove("b");
+        assertEquals(1, decorator.cachedNames());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.addthis.metrics3.reporter.config.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TextExpositionWriterTest {
+
+    private MetricRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new MetricRegistry();
+        registry.counter("requests.count").inc(3);
+        registry.register("state", constant("say \"up\"\n"));
+        registry.register("ratio", constant(0.25));
+        registry.register("enabled", constant(true));
+        registry.register("nothing", constant(new Object()));
+        registry.histogram("sizes").update(42);
+        registry.timer("latency").update(2, TimeUnit.MILLISECONDS);
+        registry.meter("hits").mark(5);
+    }
+
+    private static <T> Gauge<T> constant(final T value) {
+        return new Gauge<T>() {
+            @Override
+            public T getValue() {
+                return value;
+            }
+        };
+    }
+
+    @Test
+    public void writesWhatTheMetricsServletWould() throws IOException {
+        Map<String, String> labels = new HashMap<>();
+        labels.put("dc", "east \\ \"1\"");
+        assertSameFamilies(registry, "job1", labels);
+    }
+
+    @Test
+    public void samplesWithoutLabelsHaveNoBraces() throws IOException {
+        assertSameFamilies(registry, null, Collections.<String, String>emptyMap());
+    }
+
+    @Test
+    public void familiesOfRemovedMetricsAreDropped() throws IOException {
+        TextExpositionWriter writer = new TextExpositionWriter(registry, "job1", Collections.<String, String>emptyMap());
+        writer.write(new ByteArrayOutputStream());
+        assertEquals(8, writer.cachedFamilies());
+
+        registry.remove("sizes");
+        assertEquals(7, writer.cachedFamilies());
+        writer.close();
+    }
+
+    @Test
+    public void writesOnlyWhatTheFilterAccepts() throws IOException {
+        MetricFilter filter = new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return !name.equals("latency") && !name.equals("state");
+            }
+        };
+        TextExpositionWriter writer = new TextExpositionWriter(registry, "job1",
+                                                               Collections.<String, String>emptyMap(), filter);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(out);
+        writer.close();
+
+        String text = out.toString("UTF-8");
+        assertFalse(text.contains("latency"));
+        assertFalse(text.contains("gauge_value"));
+        assertTrue(text.contains("requests_count{job=\"job1\",} 3.0\n"));
+        assertEquals(5, families(text).size());
+    }
+
+    @Test
+    public void metricsRemovedDuringAScrapeAreNotCached() throws IOException {
+        MetricFilter filter = new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                // a removal landing between the scrape reading the metric
+                // and caching its family
+                if (name.equals("sizes")) {
+                    registry.remove(name);
+                }
+                return true;
+            }
+        };
+        TextExpositionWriter writer = new TextExpositionWriter(registry, "job1",
+                                                               Collections.<String, String>emptyMap(), filter);
+        writer.write(new ByteArrayOutputStream());
+        assertEquals(7, writer.cachedFamilies());
+        writer.close();
+    }
+
+    @Test
+    public void largeScrapesSpanTheBuffer() throws IOException {
+        for (int i = 0; i < 2000; i++) {
+            registry.timer("timer" + i);
+        }
+        assertSameFamilies(registry, "job1", Collections.<String, String>emptyMap());
+    }
+
+    private static void assertSameFamilies(MetricRegistry registry, String job, Map<String, String> labels)
+            throws IOException {
+        MetricRegistryDecorator decorator = new MetricRegistryDecorator(registry, job, labels);
+        CollectorRegistry collectorRegistry = new CollectorRegistry();
+        collectorRegistry.register(decorator);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, collectorRegistry.metricFamilySamples());
+        decorator.close();
+
+        TextExpositionWriter writer = new TextExpositionWriter(registry, job, labels);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        writer.write(actual);
+        writer.close();
+
+        SortedSet<String> families = families(actual.toString("UTF-8"));
+        assertTrue(families.size() > 1);
+        assertEquals(families(expected.toString()), families);
+    }
+
+    /**
+     * @return the help, type and sample lines of each family, which may
+     *         come out in any order
+     */
+    private static SortedSet<String> families(String text) {
+        SortedSet<String> families = new TreeSet<>();
+        for (String family : text.split("(?=# HELP )")) {
+            if (!family.isEmpty()) {
+                families.add(family);
+            }
+        }
+        return families;
+    }
+}